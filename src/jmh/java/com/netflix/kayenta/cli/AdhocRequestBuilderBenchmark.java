@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+
+/**
+ * Cost of building a request from a configuration file, and from an already parsed configuration. buildFromFile is
+ * also the compiled config cache miss, to compare with a hit served from memory and one read back from disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdhocRequestBuilderBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  int metricCount;
+
+  ObjectMapper mapper;
+  AdhocRequestBuilder builder;
+  AdhocRequestBuilder memoryCachedBuilder;
+  AdhocRequestBuilder diskCachedBuilder;
+  AdhocRequestConfig requestConfig;
+  File requestConfigFile;
+  long analysisEndTime;
+  long analysisStartTime;
+
+  @Setup
+  public void setup() throws Exception {
+    mapper = Client.createObjectMapper();
+    builder = new AdhocRequestBuilder(mapper);
+    String cacheDirectory = Files.createTempDirectory("compiled-config-cache").toString();
+    memoryCachedBuilder = new AdhocRequestBuilder(mapper, new CompiledConfigCache(cacheDirectory, mapper));
+    diskCachedBuilder = new AdhocRequestBuilder(mapper, new CompiledConfigCache(cacheDirectory, mapper, 0));
+    requestConfig = BenchmarkFixtures.requestConfig(metricCount);
+    requestConfigFile = BenchmarkFixtures.writeRequestConfig(mapper, metricCount);
+    analysisEndTime = System.currentTimeMillis();
+    analysisStartTime = analysisEndTime - BenchmarkFixtures.ONE_HOUR_IN_MILLIS;
+    // fill the cache, on disk and in memory
+    memoryCachedBuilder.build(requestConfigFile.getPath(), analysisStartTime, analysisEndTime);
+  }
+
+  @Benchmark
+  public CanaryAdhocExecutionRequest buildFromFile() {
+    return builder.build(requestConfigFile.getPath(), analysisStartTime, analysisEndTime);
+  }
+
+  @Benchmark
+  public CanaryAdhocExecutionRequest buildFromFileMemoryCacheHit() {
+    return memoryCachedBuilder.build(requestConfigFile.getPath(), analysisStartTime, analysisEndTime);
+  }
+
+  @Benchmark
+  public CanaryAdhocExecutionRequest buildFromFileDiskCacheHit() {
+    return diskCachedBuilder.build(requestConfigFile.getPath(), analysisStartTime, analysisEndTime);
+  }
+
+  @Benchmark
+  public CanaryAdhocExecutionRequest buildFromParsedConfig() {
+    return builder.build(requestConfig, analysisStartTime, analysisEndTime);
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Synthetic request configurations of a given number of metrics, shaped like the sample adhoc-request.json, and the
+ * matching status responses of the stub server.
+ */
+class BenchmarkFixtures {
+
+  static final int GROUP_COUNT = StubKayentaServer.GROUP_COUNT;
+  static final long ONE_HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+  static String serviceType() {
+    Map<String, MetricQueryFactory> queryFactories = MetricProviderRegistry.getInstance().getQueryFactories();
+    return queryFactories.containsKey("prometheus") ? "prometheus" : queryFactories.keySet().iterator().next();
+  }
+
+  static AdhocRequestConfig requestConfig(int metricCount) {
+
+    AdhocRequestConfig config = new AdhocRequestConfig();
+    config.setName("benchmark-request");
+    config.setScopeName("benchmarkscope");
+    config.setJudge("NetflixACAJudge-v1.0");
+    config.setRequestThresholds(thresholds(70.0, 90.0));
+    config.setTemplates(Collections.singletonMap("server.name", "serverName=${host}"));
+    config.setControlScope(scope("control.example.com"));
+    config.setExperimentScope(scope("experiment.example.com"));
+
+    AdhocRequestConfig.CanaryConfigClassifier classifier = new AdhocRequestConfig.CanaryConfigClassifier();
+    classifier.setScoreThresholds(thresholds(75.0, 90.0));
+    Map<String, Double> groupWeights = new LinkedHashMap<>();
+    List<AdhocRequestConfig.MetricGroup> metricGroups = new ArrayList<>();
+    String serviceType = serviceType();
+    for (int group = 0; group < GROUP_COUNT; group++) {
+      AdhocRequestConfig.MetricGroup metricGroup = new AdhocRequestConfig.MetricGroup();
+      metricGroup.setGroupName("GROUP" + group);
+      metricGroup.setServiceType(serviceType);
+      metricGroup.setCustomFilterTemplate("server.name");
+      Map<String, Map> analysisConfigurations = new HashMap<>();
+      analysisConfigurations.put("canary", Collections.singletonMap("direction", "increase"));
+      metricGroup.setAnalysisConfigurations(analysisConfigurations);
+      List<String> metricNames = new ArrayList<>();
+      for (int metric = group; metric < metricCount; metric += GROUP_COUNT) {
+        metricNames.add("metric-name-" + metric);
+      }
+      metricGroup.setMetricNames(metricNames);
+      metricGroups.add(metricGroup);
+      groupWeights.put(metricGroup.getGroupName(), 100.0 / GROUP_COUNT);
+    }
+    classifier.setGroupWeights(groupWeights);
+    config.setClassifier(classifier);
+    config.setMetricGroups(metricGroups);
+
+    return config;
+
+  }
+
+  static File writeRequestConfig(ObjectMapper mapper, int metricCount) throws IOException {
+    File file = File.createTempFile("adhoc-request-" + metricCount + "-", ".json");
+    file.deleteOnExit();
+    mapper.writeValue(file, requestConfig(metricCount));
+    return file;
+  }
+
+  /**
+   * A completed execution status response with one analysis result per metric.
+   */
+  static byte[] statusResponse(ObjectMapper mapper, int metricCount) throws IOException {
+    return StubKayentaServer.completedStatusBody(mapper, metricCount, false);
+  }
+
+  private static Map<String, Double> thresholds(double marginal, double pass) {
+    Map<String, Double> thresholds = new HashMap<>();
+    thresholds.put("marginal", marginal);
+    thresholds.put("pass", pass);
+    return thresholds;
+  }
+
+  private static AdhocRequestConfig.ClientCanaryScope scope(String host) {
+    AdhocRequestConfig.ClientCanaryScope scope = new AdhocRequestConfig.ClientCanaryScope();
+    scope.setLocation("");
+    scope.setExtendedScopeParams(Collections.singletonMap("host", host));
+    return scope;
+  }
+
+}
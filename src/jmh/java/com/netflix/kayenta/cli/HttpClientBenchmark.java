@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionResponse;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+/**
+ * Round trips through the HTTP transport against an in-process stub Kayenta server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientBenchmark {
+
+  @Param({"10", "1000"})
+  int metricCount;
+
+  ObjectMapper mapper;
+  StubKayentaServer server;
+  HttpTransport transport;
+  StatusResponseReader statusReader;
+  CanaryAdhocExecutionRequest adhocRequest;
+  String statusURL;
+  Map<String, String> requestParameters = Collections.emptyMap();
+
+  @Setup
+  public void setup() throws Exception {
+
+    mapper = Client.createObjectMapper();
+
+    StubServerConfig config = new StubServerConfig();
+    config.setPort(0);
+    config.setCompletionDelayMillis(0);
+    config.setResultMetricCount(metricCount);
+    config.setThreads(4);
+    server = new StubKayentaServer(config, mapper).start();
+
+    transport = new UrlConnectionTransport();
+    statusReader = new StatusResponseReader(mapper, false);
+
+    long analysisEndTime = System.currentTimeMillis();
+    adhocRequest = new AdhocRequestBuilder(mapper).build(BenchmarkFixtures.requestConfig(metricCount), 
+                                                         analysisEndTime - BenchmarkFixtures.ONE_HOUR_IN_MILLIS, analysisEndTime);
+
+    statusURL = server.getCanaryURL() + "/" + submitRequest();
+
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Benchmark
+  public CanaryExecutionStatusResponse pollStatus() throws IOException {
+    return transport.get(statusURL, requestParameters, (response, in) -> statusReader.read(in));
+  }
+
+  @Benchmark
+  public String submitRequest() throws IOException {
+    return transport.post(server.getCanaryURL(), requestParameters, 
+                          out -> mapper.writeValue(out, adhocRequest),
+                          (response, in) -> mapper.readValue(in, CanaryExecutionResponse.class).getCanaryExecutionId());
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+/**
+ * Cost of serializing a request and of parsing a completed status response, both with the object mapper and with the
+ * token level status reader used while polling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  int metricCount;
+
+  ObjectMapper mapper;
+  CanaryAdhocExecutionRequest adhocRequest;
+  byte[] statusResponse;
+  StatusResponseReader summaryReader;
+  StatusResponseReader fullReader;
+
+  @Setup
+  public void setup() throws Exception {
+    mapper = Client.createObjectMapper();
+    long analysisEndTime = System.currentTimeMillis();
+    adhocRequest = new AdhocRequestBuilder(mapper).build(BenchmarkFixtures.requestConfig(metricCount), 
+                                                         analysisEndTime - BenchmarkFixtures.ONE_HOUR_IN_MILLIS, analysisEndTime);
+    statusResponse = BenchmarkFixtures.statusResponse(mapper, metricCount);
+    summaryReader = new StatusResponseReader(mapper, false);
+    fullReader = new StatusResponseReader(mapper, true);
+  }
+
+  @Benchmark
+  public void serializeAdhocRequest() throws IOException {
+    mapper.writeValue(ByteStreams.nullOutputStream(), adhocRequest);
+  }
+
+  @Benchmark
+  public CanaryExecutionStatusResponse deserializeStatusResponse() throws IOException {
+    return mapper.readValue(new ByteArrayInputStream(statusResponse), CanaryExecutionStatusResponse.class);
+  }
+
+  @Benchmark
+  public CanaryExecutionStatusResponse readStatusSummary() throws IOException {
+    return summaryReader.read(new ByteArrayInputStream(statusResponse));
+  }
+
+  @Benchmark
+  public CanaryExecutionStatusResponse readStatusWithMetricResults() throws IOException {
+    return fullReader.read(new ByteArrayInputStream(statusResponse));
+  }
+
+}
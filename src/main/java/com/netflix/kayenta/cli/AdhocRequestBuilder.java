@@ -14,22 +14,15 @@
 
 package com.netflix.kayenta.cli;
 
-import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.springframework.beans.factory.config.BeanDefinition;
-import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
-import org.springframework.core.type.filter.AssignableTypeFilter;
-import org.springframework.util.ClassUtils;
-
-import com.fasterxml.jackson.annotation.JsonTypeName;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.jsontype.NamedType;
 import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
 import com.netflix.kayenta.canary.CanaryClassifierConfig;
 import com.netflix.kayenta.canary.CanaryClassifierThresholdsConfig;
@@ -37,48 +30,196 @@ import com.netflix.kayenta.canary.CanaryConfig;
 import com.netflix.kayenta.canary.CanaryExecutionRequest;
 import com.netflix.kayenta.canary.CanaryJudgeConfig;
 import com.netflix.kayenta.canary.CanaryMetricConfig;
-import com.netflix.kayenta.canary.CanaryMetricSetQueryConfig;
 import com.netflix.kayenta.canary.CanaryScope;
 import com.netflix.kayenta.canary.CanaryScopePair;
 import com.netflix.kayenta.canary.Metadata;
-import com.netflix.kayenta.canary.providers.metrics.DatadogCanaryMetricSetQueryConfig;
-import com.netflix.kayenta.canary.providers.metrics.PrometheusCanaryMetricSetQueryConfig;
-import com.netflix.kayenta.canary.providers.metrics.StackdriverCanaryMetricSetQueryConfig;
-import com.netflix.spinnaker.kork.jackson.InvalidSubtypeConfigurationException;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class AdhocRequestBuilder {
 
+  // the compiled config cache variant of the request the expanded requests of a configuration are copied from
+  static final String EXPANDED_VARIANT = "expanded";
+
   ObjectMapper mapper;
-  NamedType[] metricProviders = null;
+  Map<String, MetricQueryFactory> queryFactories = null;
+  CompiledConfigCache configCache = null;
+  PhaseTimings timings = null;
  
   public AdhocRequestBuilder(ObjectMapper mapper) {
     super();
     this.mapper = mapper;
   }
 
+  public AdhocRequestBuilder(ObjectMapper mapper, CompiledConfigCache configCache) {
+    this(mapper);
+    this.configCache = configCache;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
   /**
-   * Build an instance of <code>CanaryAdhocExecutionRequest</code> from the request parameters.
+   * Build an instance of <code>CanaryAdhocExecutionRequest</code> from the request parameters. When a compiled config
+   * cache is used and the configuration file (and metric provider set) did not change since it was last built, the
+   * cached request is reused and only its analysis window is set.
    * 
-   * @param adhocRequestConfigFilename
-   * @param mapper
+   * @param configFilename
    * @param analysisStartTime
    * @param analysisEndTime
    * @return an Adhoc execution request.
    */
   public CanaryAdhocExecutionRequest build(String configFilename, long analysisStartTime, long analysisEndTime ) {
 
+    long startNanos = System.nanoTime();
+    byte[] configContent = readContent(configFilename);
+
+    String cacheKey = null;
+    if (configCache != null) {
+      cacheKey = configCache.key(configContent);
+      CanaryAdhocExecutionRequest cachedRequest = configCache.get(cacheKey);
+      if (cachedRequest != null) {
+        setAnalysisWindow(cachedRequest, analysisStartTime, analysisEndTime);
+        if (timings != null) timings.record(PhaseTimings.REQUEST_BUILD, System.nanoTime() - startNanos, configContent.length);
+        return cachedRequest;
+      }
+    }
+
     AdhocRequestConfig adhocRequestConfig;
     try {
-      adhocRequestConfig = mapper.readValue(new File(configFilename), AdhocRequestConfig.class);
+      adhocRequestConfig = mapper.readValue(configContent, AdhocRequestConfig.class);
     } catch (Exception ex) {
       String errorMessage = "An exception was encountered reading adhoc request configuration file "+configFilename;
       log.error(errorMessage, ex);
       throw new RuntimeException(errorMessage, ex);
     }
 
+    long parsedNanos = System.nanoTime();
+    if (timings != null) timings.record(PhaseTimings.CONFIG_PARSE, parsedNanos - startNanos, configContent.length);
+
+    CanaryAdhocExecutionRequest adhocRequest = build(adhocRequestConfig, analysisStartTime, analysisEndTime);
+
+    if (configCache != null) {
+      configCache.put(cacheKey, adhocRequest);
+    }
+
+    if (timings != null) timings.record(PhaseTimings.REQUEST_BUILD, System.nanoTime() - parsedNanos);
+
+    return adhocRequest;
+
+  }
+
+  /**
+   * Build the requests for the configurations a configuration file was expanded into, e.g. the scopes of a fan-out.
+   * They differ in their scopes only, so the metrics are compiled once (or taken from the compiled config cache) and
+   * every request is a copy with the scopes of its configuration.
+   * 
+   * @param configFilename the file the configurations were expanded from
+   * @param expandedConfigs at least one
+   * @param analysisStartTime
+   * @param analysisEndTime
+   * @return a request per configuration, in the same order.
+   */
+  public List<CanaryAdhocExecutionRequest> buildExpanded(String configFilename, List<AdhocRequestConfig> expandedConfigs, 
+                                                         long analysisStartTime, long analysisEndTime) {
+
+    long startNanos = System.nanoTime();
+    String cacheKey = null;
+    CanaryAdhocExecutionRequest template = null;
+    if (configCache != null) {
+      cacheKey = configCache.key(readContent(configFilename), EXPANDED_VARIANT);
+      template = configCache.get(cacheKey);
+    }
+    if (template == null) {
+      template = build(expandedConfigs.get(0), analysisStartTime, analysisEndTime);
+      if (configCache != null) configCache.put(cacheKey, template);
+    }
+
+    List<CanaryAdhocExecutionRequest> adhocRequests = new ArrayList<>();
+    for (AdhocRequestConfig expandedConfig : expandedConfigs) {
+      CanaryAdhocExecutionRequest adhocRequest = CompiledConfigCache.copy(template);
+      setScopes(adhocRequest, expandedConfig);
+      setAnalysisWindow(adhocRequest, analysisStartTime, analysisEndTime);
+      adhocRequests.add(adhocRequest);
+    }
+
+    if (timings != null) timings.record(PhaseTimings.REQUEST_BUILD, System.nanoTime() - startNanos);
+    return adhocRequests;
+
+  }
+
+  private static byte[] readContent(String configFilename) {
+    try {
+      return Files.readAllBytes(Paths.get(configFilename));
+    } catch (Exception ex) {
+      String errorMessage = "An exception was encountered reading adhoc request configuration file "+configFilename;
+      log.error(errorMessage, ex);
+      throw new RuntimeException(errorMessage, ex);
+    }
+  }
+
+  /**
+   * Set the location and scope parameters of every scope of the request to those of the configuration.
+   */
+  private static void setScopes(CanaryAdhocExecutionRequest adhocRequest, AdhocRequestConfig adhocRequestConfig) {
+    for (CanaryScopePair scopePair : adhocRequest.getExecutionRequest().getScopes().values()) {
+      scopePair.getControlScope().setLocation(adhocRequestConfig.getControlScope().getLocation());
+      scopePair.getControlScope().setExtendedScopeParams(adhocRequestConfig.getControlScope().getExtendedScopeParams());
+      scopePair.getExperimentScope().setLocation(adhocRequestConfig.getExperimentScope().getLocation());
+      scopePair.getExperimentScope().setExtendedScopeParams(adhocRequestConfig.getExperimentScope().getExtendedScopeParams());
+    }
+  }
+
+  /**
+   * Read the request configuration file without building a request from it, e.g. to expand it into several requests.
+   * 
+   * @param configFilename
+   * @return the parsed request configuration.
+   */
+  public AdhocRequestConfig readConfig(String configFilename) {
+    try {
+      return mapper.readValue(Files.readAllBytes(Paths.get(configFilename)), AdhocRequestConfig.class);
+    } catch (Exception ex) {
+      String errorMessage = "An exception was encountered reading adhoc request configuration file "+configFilename;
+      log.error(errorMessage, ex);
+      throw new RuntimeException(errorMessage, ex);
+    }
+  }
+
+  /**
+   * Set the start and end time of every scope of the request.
+   * 
+   * @param adhocRequest
+   * @param analysisStartTime
+   * @param analysisEndTime
+   */
+  public static void setAnalysisWindow(CanaryAdhocExecutionRequest adhocRequest, long analysisStartTime, long analysisEndTime) {
+    for (CanaryScopePair scopePair : adhocRequest.getExecutionRequest().getScopes().values()) {
+      for (CanaryScope scope : new CanaryScope[] { scopePair.getControlScope(), scopePair.getExperimentScope() }) {
+        scope.setStart(Instant.ofEpochMilli(analysisStartTime));
+        scope.setEnd(Instant.ofEpochMilli(analysisEndTime));
+      }
+    }
+  }
+
+  /**
+   * Build an instance of <code>CanaryAdhocExecutionRequest</code> from an already parsed request configuration.
+   * 
+   * @param adhocRequestConfig
+   * @param analysisStartTime
+   * @param analysisEndTime
+   * @return an Adhoc execution request.
+   */
+  public CanaryAdhocExecutionRequest build(AdhocRequestConfig adhocRequestConfig, long analysisStartTime, long analysisEndTime) {
+
+    for (AdhocRequestConfig.ClientCanaryScope scope : new AdhocRequestConfig.ClientCanaryScope[] { adhocRequestConfig.getControlScope(), adhocRequestConfig.getExperimentScope() }) {
+      if (scope.getExtendedScopeParamValues() != null && !scope.getExtendedScopeParamValues().isEmpty()) {
+        throw new RuntimeException("The request configuration lists several values of scope parameters "+scope.getExtendedScopeParamValues().keySet()+", which are analyzed with --fan-out");
+      }
+    }
+
     String scopeName = adhocRequestConfig.getScopeName();
 
     // ======================
@@ -122,13 +263,7 @@ public class AdhocRequestBuilder {
 
     for (AdhocRequestConfig.MetricGroup metricGroup : adhocRequestConfig.getMetricGroups()) {
       for (String metricName : metricGroup.getMetricNames()) {
-        canaryMetricConfigs.add(getMetricConfig(scopeName, metricName, 
-                                                metricGroup.getGroupName(),
-                                                metricGroup.getServiceType(),
-                                                metricGroup.getCustomFilter(),
-                                                metricGroup.getCustomFilterTemplate(),
-                                                metricGroup.getGroupByFields(),
-                                                metricGroup.getAnalysisConfigurations()));
+        canaryMetricConfigs.add(getMetricConfig(scopeName, metricName, metricGroup));
       }
     }
 
@@ -225,94 +360,34 @@ public class AdhocRequestBuilder {
   }
 
   /**
-   * Get the CanaryMetricConfig instance for a specific Server Metric definition.
+   * Get the CanaryMetricConfig instance for a specific Server Metric definition. The query is built by the
+   * <code>MetricQueryFactory</code> registered for the service type of the metric group.
    * 
    * @param scopeName
    * @param metricName
    * @param metricGroup
-   * @param filterName
    * 
-   * @returna CanaryMetricConfig instance
+   * @return a CanaryMetricConfig instance
    */
-  private CanaryMetricConfig getMetricConfig(String scopeName, String metricName, String metricGroup, String serviceType, 
-                                             String customFilter, String customFilterTemplate, List<String> groupByFields, 
-                                             Map<String, Map> analysisConfigurations) {
+  private CanaryMetricConfig getMetricConfig(String scopeName, String metricName, AdhocRequestConfig.MetricGroup metricGroup) {
 
-    if (metricProviders == null) {
-      metricProviders = findMetricProviders();
+    if (queryFactories == null) {
+      queryFactories = MetricProviderRegistry.getInstance().getQueryFactories();
     }
 
-    // TODO: There is most likely a more elegant way to do this...a pluggable interface would be nice...
-    
-    CanaryMetricSetQueryConfig query = null;
-    for (NamedType metricProvider : metricProviders) {
-      if (metricProvider.getName().equals(serviceType)) {
-        Class<?> cls = metricProvider.getType();
-        if (cls.getSimpleName().equals("DatadogCanaryMetricSetQueryConfig")) {
-          query = DatadogCanaryMetricSetQueryConfig.builder()
-              .metricName(metricName)
-              .build();        
-        } else if (cls.getSimpleName().equals("PrometheusCanaryMetricSetQueryConfig")) {
-          query = PrometheusCanaryMetricSetQueryConfig.builder()
-              .metricName(metricName)
-              .groupByFields(groupByFields)
-              .customFilter(customFilter)
-              .customFilterTemplate(customFilterTemplate)
-              .build();        
-        } else if (cls.getSimpleName().equals("StackdriverCanaryMetricSetQueryConfig")) {
-          query = StackdriverCanaryMetricSetQueryConfig.builder()
-              .metricType(metricName)
-              .groupByFields(groupByFields)
-              .customFilter(customFilter)
-              .customFilterTemplate(customFilterTemplate)
-              .build();        
-        } else {
-          throw new RuntimeException("No CanaryMetricSetQueryConfig subtype was found for service type "+serviceType);
-        }
-      }
+    MetricQueryFactory queryFactory = queryFactories.get(metricGroup.getServiceType());
+    if (queryFactory == null) {
+      throw new RuntimeException("No CanaryMetricSetQueryConfig subtype was found for service type "+metricGroup.getServiceType());
     }
 
     return CanaryMetricConfig.builder()
         .name(metricName)
         .scopeName(scopeName)
-        .group(metricGroup)
-        .analysisConfigurations(analysisConfigurations)
-        .query(query)
+        .group(metricGroup.getGroupName())
+        .analysisConfigurations(metricGroup.getAnalysisConfigurations())
+        .query(queryFactory.createQuery(metricName, metricGroup))
         .build();
 
   }
 
-  /**
-   * The following method is taken from com.netflix.spinnaker.kork.jackson.ObjectMapperSubtypeConfigurer.findSubtypes, and supports
-   * the mapping of metric provider types to implementation classes.
-   */  
-  private NamedType[] findMetricProviders() {
-    
-    List<NamedType> namedTypes = new ArrayList<NamedType>();
-
-    Class<?> clazz = CanaryMetricSetQueryConfig.class;
-    String pkg = "com.netflix.kayenta.canary.providers.metrics";
-
-    ClassPathScanningCandidateComponentProvider provider = new ClassPathScanningCandidateComponentProvider(false);
-    provider.addIncludeFilter(new AssignableTypeFilter(clazz));
-
-    Set<BeanDefinition> beans = provider.findCandidateComponents(pkg);
-    for (BeanDefinition bean : beans) {
-      
-      Class<?> cls = ClassUtils.resolveClassName(bean.getBeanClassName(), ClassUtils.getDefaultClassLoader());
-      
-      JsonTypeName nameAnnotation = cls.getAnnotation(JsonTypeName.class);
-      if (nameAnnotation == null || "".equals(nameAnnotation.value())) {
-        String message = "Subtype " + cls.getSimpleName() + " does not have a JsonTypeName annotation";
-        throw new InvalidSubtypeConfigurationException(message);
-      }
-      
-      namedTypes.add(new NamedType(cls, nameAnnotation.value()));
-
-    }
-    
-    return namedTypes.toArray(new NamedType[0]);
-
-  }
-
 }
@@ -28,6 +28,8 @@ public class AdhocRequestConfig {
   public static class ClientCanaryScope {
     private String location;
     private Map<String, String> extendedScopeParams; 
+    // several values of a scope parameter, or patterns like host-{01..40}, analyzed one by one with --fan-out
+    private Map<String, List<String>> extendedScopeParamValues;
   }
   
   @Data
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.Map;
+
+import lombok.Data;
+
+/**
+ * A single line of a batch manifest. Any property that is not set falls back to the corresponding
+ * command line argument (or its default).
+ */
+@Data
+public class BatchRequest {
+
+  public static final String DEFAULT_FILENAME = "./batch-requests.jsonl";
+
+  // optional label echoed back in the result line
+  private String id;
+
+  // request configuration file, e.g. ./adhoc-request.json
+  private String configFile;
+
+  // analysis window, "yyyy-MM-dd HH:mm:ss" in the client's local time zone
+  private String t0;
+  private String t1;
+
+  private String metricsAccount;
+  private String storageAccount;
+
+  // HIGH, NORMAL or LOW, e.g. LOW for backfills so release gating canaries go first
+  private SubmissionGovernor.Priority priority;
+
+  // merged over the extendedScopeParams defined in the request configuration file
+  private Map<String, String> controlScopeParams;
+  private Map<String, String> experimentScopeParams;
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.Data;
+
+/**
+ * The outcome of a single batch manifest line, written as one JSON line per execution.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchResult {
+
+  private int line;
+  private String id;
+  private String canaryExecutionId;
+  private Boolean complete;
+  private String status;
+  private Double score;
+  private String classification;
+  private String error;
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryScope;
+import com.netflix.kayenta.canary.CanaryScopePair;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs every line of a JSONL batch manifest as a separate canary execution, with at most <code>parallelism</code>
+ * executions outstanding at once. A single object mapper is shared by all executions, and one result line is
+ * written per execution in completion order. Requests are built and sent by a few threads and the outstanding
+ * executions are polled by an <code>ExecutionTracker</code>, so the parallelism is not limited by the thread count.
+ */
+@Slf4j
+public class BatchRunner {
+
+  public static final int DEFAULT_PARALLELISM = 8;
+  static final int MAX_SUBMIT_THREADS = 16;
+
+  ObjectMapper mapper;
+  int parallelism;
+
+  String configFilename;
+  String kayentaURL;
+  String metricsAccount;
+  String storageAccount;
+  long analysisStartTime;
+  long analysisEndTime;
+
+  PollingStrategy pollingStrategy = 
+      PollingStrategy.defaultStrategy(PollingStrategy.DEFAULT_TIMEOUT_MILLIS, PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS);
+
+  CompiledConfigCache configCache = null;
+  PhaseTimings timings = null;
+  SubmissionGovernor.Priority priority = SubmissionGovernor.Priority.NORMAL;
+  HistoryStore history = null;
+
+  public BatchRunner(ObjectMapper mapper, int parallelism, String configFilename, String kayentaURL, 
+                     String metricsAccount, String storageAccount, long analysisStartTime, long analysisEndTime) {
+    super();
+    this.mapper = mapper;
+    this.parallelism = parallelism;
+    this.configFilename = configFilename;
+    this.kayentaURL = kayentaURL;
+    this.metricsAccount = metricsAccount;
+    this.storageAccount = storageAccount;
+    this.analysisStartTime = analysisStartTime;
+    this.analysisEndTime = analysisEndTime;
+  }
+
+  public void setPollingStrategy(PollingStrategy pollingStrategy) {
+    this.pollingStrategy = pollingStrategy;
+  }
+
+  public void setConfigCache(CompiledConfigCache configCache) {
+    this.configCache = configCache;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
+  public void setPriority(SubmissionGovernor.Priority priority) {
+    this.priority = priority;
+  }
+
+  public void setHistory(HistoryStore history) {
+    this.history = history;
+  }
+
+  /**
+   * Submit every manifest line, wait for all of them to complete and write one JSON result line per execution.
+   * 
+   * @param manifestFilename
+   * @param out
+   * @return the number of executions that did not complete successfully.
+   */
+  public int run(String manifestFilename, PrintStream out) {
+
+    ExecutorService submitters = Executors.newFixedThreadPool(Math.min(parallelism, MAX_SUBMIT_THREADS));
+    ExecutionTracker tracker = new ExecutionTracker(mapper, HttpClient.getDefaultTransport(), ExecutionTracker.DEFAULT_POLL_THREADS, 
+                                                    Math.max(parallelism, ExecutionTracker.DEFAULT_CAPACITY));
+    KayentaClient client = 
+        KayentaClient.builder()
+        .mapper(mapper)
+        .kayentaURL(kayentaURL)
+        .pollingStrategy(pollingStrategy)
+        .executor(submitters)
+        .tracker(tracker)
+        .timings(timings)
+        .includeMetricResults(history != null)
+        .build();
+    Semaphore outstanding = new Semaphore(parallelism);
+    AtomicInteger failed = new AtomicInteger();
+    List<CompletableFuture<Void>> executions = new ArrayList<>();
+
+    try (BufferedReader reader = new BufferedReader(new FileReader(manifestFilename))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (StringUtils.isBlank(line)) continue;
+        final int currentLine = lineNumber;
+        final String currentRequest = line;
+        outstanding.acquire();
+        // the submit threads only build and send requests; waiting for completion is left to the tracker
+        CompletableFuture<Void> execution = 
+            CompletableFuture.supplyAsync(() -> submit(client, currentLine, currentRequest), submitters)
+            .thenCompose(this::track)
+            .thenAccept(result -> {
+              if (result.getError() != null || !Boolean.TRUE.equals(result.getComplete())) failed.incrementAndGet();
+              write(result, out);
+            })
+            .whenComplete((result, ex) -> outstanding.release());
+        executions.add(execution);
+      }
+      CompletableFuture.allOf(executions.toArray(new CompletableFuture[0])).get();
+    } catch (IOException ex) {
+      throw new RuntimeException("An exception was encountered reading batch manifest file "+manifestFilename, ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for batch executions to complete", ex);
+    } catch (ExecutionException ex) {
+      throw new RuntimeException("Unable to write batch result, reason: "+ex.getCause().getMessage(), ex);
+    } finally {
+      submitters.shutdownNow();
+      tracker.close();
+    }
+    out.flush();
+
+    return failed.get();
+
+  }
+
+  /**
+   * A sent (or failed) manifest line: its result so far and what to track it with.
+   */
+  static class SubmittedRequest {
+    final BatchResult result;
+    final KayentaClient client;
+    final PollingStrategy strategy;
+    final CanaryAdhocExecutionRequest adhocRequest;
+
+    SubmittedRequest(BatchResult result, KayentaClient client, PollingStrategy strategy, CanaryAdhocExecutionRequest adhocRequest) {
+      this.result = result;
+      this.client = client;
+      this.strategy = strategy;
+      this.adhocRequest = adhocRequest;
+    }
+  }
+
+  /**
+   * Build and send the request described by a single manifest line.
+   */
+  SubmittedRequest submit(KayentaClient batchClient, int lineNumber, String line) {
+
+    BatchResult result = new BatchResult();
+    result.setLine(lineNumber);
+
+    try {
+
+      BatchRequest request = mapper.readValue(line, BatchRequest.class);
+      result.setId(request.getId());
+
+      long startTime = parseTime(request.getT0(), analysisStartTime);
+      long endTime = parseTime(request.getT1(), analysisEndTime);
+
+      AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper, configCache);
+      adhocRequestBuilder.setTimings(timings);
+      CanaryAdhocExecutionRequest adhocRequest = 
+          adhocRequestBuilder.build(StringUtils.defaultIfEmpty(request.getConfigFile(), configFilename), startTime, endTime);
+      applyScopeOverrides(adhocRequest, request);
+
+      KayentaClient client = 
+          batchClient.toBuilder()
+          .metricsAccount(StringUtils.defaultIfEmpty(request.getMetricsAccount(), metricsAccount))
+          .storageAccount(StringUtils.defaultIfEmpty(request.getStorageAccount(), storageAccount))
+          .priority(request.getPriority() != null ? request.getPriority() : priority)
+          .build();
+      result.setCanaryExecutionId(client.send(adhocRequest));
+
+      return new SubmittedRequest(result, client, pollingStrategy.estimateFor(adhocRequest), adhocRequest);
+
+    } catch (Exception ex) {
+      log.debug("Batch manifest line {} failed", lineNumber, ex);
+      result.setError(ex.getMessage());
+      return new SubmittedRequest(result, null, null, null);
+    }
+
+  }
+
+  /**
+   * Wait for a sent request to complete and fill in its result.
+   */
+  CompletableFuture<BatchResult> track(SubmittedRequest submitted) {
+
+    BatchResult result = submitted.result;
+    if (submitted.client == null) {
+      return CompletableFuture.completedFuture(result);
+    }
+
+    return submitted.client.track(result.getCanaryExecutionId(), submitted.strategy).handle((status, ex) -> {
+      if (ex != null) {
+        result.setError(ex.getMessage());
+        return result;
+      }
+      result.setComplete(status.getComplete());
+      result.setStatus(status.getStatus());
+      CanaryResult canaryResult = status.getResult();
+      if (canaryResult != null && canaryResult.getJudgeResult() != null) {
+        CanaryJudgeScore judgeScore = canaryResult.getJudgeResult().getScore();
+        result.setScore(judgeScore.getScore());
+        result.setClassification(judgeScore.getClassification());
+      }
+      if (history != null) {
+        try {
+          history.record(HistoryStore.configName(submitted.adhocRequest), HistoryStore.scope(submitted.adhocRequest), 
+                         result.getCanaryExecutionId(), status);
+        } catch (RuntimeException historyEx) {
+          log.warn("Unable to record batch manifest line {} in the history store", result.getLine(), historyEx);
+        }
+      }
+      return result;
+    });
+
+  }
+
+  private void write(BatchResult result, PrintStream out) {
+    try {
+      out.println(mapper.writeValueAsString(result));
+    } catch (IOException ex) {
+      throw new RuntimeException("Unable to write batch result, reason: "+ex.getMessage(), ex);
+    }
+  }
+
+  private long parseTime(String time, long defaultTime) throws ParseException {
+    if (StringUtils.isEmpty(time)) return defaultTime;
+    return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(time).getTime();
+  }
+
+  private void applyScopeOverrides(CanaryAdhocExecutionRequest adhocRequest, BatchRequest request) {
+    for (CanaryScopePair scopePair : adhocRequest.getExecutionRequest().getScopes().values()) {
+      mergeScopeParams(scopePair.getControlScope(), request.getControlScopeParams());
+      mergeScopeParams(scopePair.getExperimentScope(), request.getExperimentScopeParams());
+    }
+  }
+
+  private void mergeScopeParams(CanaryScope scope, Map<String, String> overrides) {
+    if (overrides == null || overrides.isEmpty()) return;
+    Map<String, String> params = new HashMap<String, String>();
+    if (scope.getExtendedScopeParams() != null) params.putAll(scope.getExtendedScopeParams());
+    params.putAll(overrides);
+    scope.setExtendedScopeParams(params);
+  }
+
+}
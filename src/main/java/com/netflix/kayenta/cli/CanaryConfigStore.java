@@ -0,0 +1,338 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.netflix.kayenta.canary.CanaryConfig;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the canary configs of requests in Kayenta's config storage, so executions can be started by config id instead
+ * of sending the whole config with every request. A config is identified by a hash of its content (without its
+ * timestamps) and stored under its name suffixed with the start of the hash, so each content has its own stored config
+ * and configs edited elsewhere under the plain name are never overwritten. The config id is remembered for the hash,
+ * in memory and in a directory shared by separate runs; an id remembered by an earlier run is only reused after the
+ * stored config was read back and found to still have the content.
+ * <p>
+ * Bodies are sent gzip compressed until the server rejects one (Kayenta only accepts them behind a decompressing
+ * filter); from then on, and in later runs, bodies to that server are sent uncompressed.
+ */
+@Slf4j
+public class CanaryConfigStore {
+
+  static final String CANARY_PATH = "/canary";
+  static final String CONFIG_PATH = "/canaryConfig";
+
+  // the length of the content hash prefix in the name of a stored config
+  static final int NAME_HASH_LENGTH = 12;
+
+  private static volatile CanaryConfigStore defaultStore;
+
+  final ObjectMapper mapper;
+  final String configurationAccount;
+  final Path directory;
+
+  // config ids by endpoint, account and content hash, checked against the stored config by this process
+  final Map<String, String> configIds = new ConcurrentHashMap<>();
+
+  // servers (scheme and authority) that rejected a gzip compressed body
+  final Set<String> gzipRejected = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param mapper
+   * @param configurationAccount the Kayenta configuration account, or null for its default
+   * @param directory where config ids and the servers rejecting compressed bodies are also kept, or null to keep them in memory only
+   */
+  public CanaryConfigStore(ObjectMapper mapper, String configurationAccount, String directory) {
+    super();
+    this.mapper = mapper;
+    this.configurationAccount = configurationAccount;
+    this.directory = directory != null ? Paths.get(directory) : null;
+  }
+
+  /**
+   * The store used by clients that are not given one, or null if requests carry their config.
+   */
+  public static CanaryConfigStore getDefault() {
+    return defaultStore;
+  }
+
+  public static void setDefault(CanaryConfigStore store) {
+    defaultStore = store;
+  }
+
+  public String getConfigurationAccount() {
+    return configurationAccount;
+  }
+
+  /**
+   * Compute the content hash of a config: a hash of its canonical JSON form without its id and timestamps.
+   * 
+   * @return a hex encoded SHA-256 hash.
+   */
+  public String contentHash(JsonNode canaryConfig) {
+    ObjectNode content = canaryConfig.deepCopy();
+    content.remove("id");
+    for (String field : ExecutionCache.IGNORED_CONFIG_FIELDS) {
+      content.remove(field);
+    }
+    try {
+      return Hashing.sha256().hashBytes(mapper.writeValueAsBytes(ExecutionCache.canonical(content))).toString();
+    } catch (IOException ex) {
+      throw new RuntimeException("Unable to hash the canary config, reason: " + ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * The name a config is stored under: its own name suffixed with the start of its content hash.
+   */
+  public static String storedName(String name, String hash) {
+    String suffix = hash.substring(0, Math.min(NAME_HASH_LENGTH, hash.length()));
+    return StringUtils.isEmpty(name) ? suffix : name + "-" + suffix;
+  }
+
+  /**
+   * Get the id of the stored config with the content of a config, storing it first if needed.
+   * 
+   * @param transport
+   * @param kayentaURL the canary endpoint, e.g. <code>http://localhost:8090/canary</code>
+   * @param canaryConfig
+   * @return the config id.
+   */
+  public String upsert(HttpTransport transport, String kayentaURL, CanaryConfig canaryConfig) throws IOException {
+
+    String configURL = getConfigURL(kayentaURL);
+    ObjectNode content = mapper.valueToTree(canaryConfig);
+    String hash = contentHash(content);
+    String key = key(configURL, hash);
+
+    String configId = configIds.get(key);
+    if (configId != null) return configId;
+
+    // upserts are rare (once per config change and process), so concurrent ones are simply serialized
+    synchronized (this) {
+      configId = configIds.get(key);
+      if (configId != null) return configId;
+
+      String name = canaryConfig.getName();
+      ObjectNode storedContent = content.deepCopy();
+      storedContent.put("name", storedName(name, hash));
+
+      configId = read(key);
+      if (configId != null && !isStored(transport, configURL, configId, name, hash)) {
+        log.debug("Canary config {} no longer has content hash {}", configId, hash);
+        configId = null;
+      }
+      if (configId == null) {
+        String application = canaryConfig.getApplications() != null && !canaryConfig.getApplications().isEmpty() ? canaryConfig.getApplications().get(0) : null;
+        configId = findByName(transport, configURL, storedName(name, hash), application);
+        if (configId == null) {
+          configId = send(transport, "POST", configURL, getRequestParameters(), storedContent);
+          if (configId == null) throw new IOException("The server did not return the id of the created canary config");
+          log.debug("Created canary config {} with content hash {}", configId, hash);
+        } else if (!isStored(transport, configURL, configId, name, hash)) {
+          // a config stored under this name was edited elsewhere
+          send(transport, "PUT", configURL + "/" + configId, getRequestParameters(), storedContent);
+          log.debug("Restored canary config {} to content hash {}", configId, hash);
+        }
+      }
+
+      configIds.put(key, configId);
+      write(key, configId);
+      return configId;
+    }
+
+  }
+
+  /**
+   * Read back a stored config and check that it has the content with the hash.
+   * 
+   * @return false when it was changed or no longer exists.
+   */
+  boolean isStored(HttpTransport transport, String configURL, String configId, String name, String hash) throws IOException {
+    JsonNode stored;
+    try {
+      stored = transport.get(configURL + "/" + configId, getRequestParameters(), (response, in) -> mapper.readTree(in));
+    } catch (HttpStatusException ex) {
+      if (ex.getStatusCode() == 404) return false;
+      throw ex;
+    }
+    if (!stored.isObject()) return false;
+    ObjectNode content = stored.deepCopy();
+    // stored under the suffixed name, hashed under its own
+    if (name != null) content.put("name", name); else content.remove("name");
+    return hash.equals(contentHash(content));
+  }
+
+  /**
+   * Forget the config id of a config, e.g. because the stored config was deleted.
+   */
+  public void forget(String kayentaURL, CanaryConfig canaryConfig) {
+    String key = key(getConfigURL(kayentaURL), contentHash(mapper.valueToTree(canaryConfig)));
+    configIds.remove(key);
+    if (directory != null) {
+      try {
+        Files.deleteIfExists(directory.resolve(key));
+      } catch (IOException ex) {
+        log.warn("Unable to remove canary config id {}", key, ex);
+      }
+    }
+  }
+
+  /**
+   * Send a request body, gzip compressed unless the server rejected a compressed body before.
+   */
+  public <T> T send(HttpTransport transport, String method, String url, Map<String, String> requestParameters, 
+                    HttpTransport.RequestBody requestBody, HttpTransport.ResponseHandler<T> handler) throws IOException {
+    String server = server(url);
+    if (!isGzipRejected(server)) {
+      try {
+        return call(transport, method, url, requestParameters, HttpTransport.RequestBody.gzip(requestBody, true), handler);
+      } catch (HttpStatusException ex) {
+        if (ex.getStatusCode() != 400 && ex.getStatusCode() != 415) throw ex;
+        // the compressed body may not have been understood, which only an uncompressed one can tell
+        T result = call(transport, method, url, requestParameters, HttpTransport.RequestBody.gzip(requestBody, false), handler);
+        log.info("The server {} did not accept a gzip compressed request body, sending uncompressed bodies from now on", server);
+        gzipRejected.add(server);
+        write(key(server, "no-gzip"), server);
+        return result;
+      }
+    }
+    return call(transport, method, url, requestParameters, HttpTransport.RequestBody.gzip(requestBody, false), handler);
+  }
+
+  boolean isGzipRejected(String server) {
+    if (gzipRejected.contains(server)) return true;
+    if (read(key(server, "no-gzip")) == null) return false;
+    gzipRejected.add(server);
+    return true;
+  }
+
+  static String server(String url) {
+    URI uri = URI.create(url);
+    return uri.getScheme() + "://" + uri.getRawAuthority();
+  }
+
+  public Map<String, String> getRequestParameters() {
+    Map<String, String> requestParameters = new HashMap<String, String>();
+    if (!StringUtils.isEmpty(configurationAccount)) requestParameters.put("configurationAccountName", configurationAccount);
+    return requestParameters;
+  }
+
+  private String send(HttpTransport transport, String method, String url, Map<String, String> requestParameters, JsonNode content) throws IOException {
+    return send(transport, method, url, requestParameters, out -> mapper.writeValue(out, content),
+                (response, in) -> mapper.readTree(in).path("canaryConfigId").asText(null));
+  }
+
+  private <T> T call(HttpTransport transport, String method, String url, Map<String, String> requestParameters, 
+                     HttpTransport.RequestBody requestBody, HttpTransport.ResponseHandler<T> handler) throws IOException {
+    return "PUT".equals(method) ? transport.put(url, requestParameters, requestBody, handler) : transport.post(url, requestParameters, requestBody, handler);
+  }
+
+  /**
+   * Find a stored config by name, as config names are unique per application.
+   * 
+   * @return its id, or null if there is none.
+   */
+  String findByName(HttpTransport transport, String configURL, String name, String application) throws IOException {
+    Map<String, String> requestParameters = getRequestParameters();
+    if (application != null) requestParameters.put("application", application);
+    JsonNode configs = transport.get(configURL, requestParameters, (response, in) -> mapper.readTree(in));
+    for (JsonNode config : configs) {
+      if (StringUtils.equals(name, config.path("name").asText(null))) return config.path("id").asText(null);
+    }
+    return null;
+  }
+
+  static String getConfigURL(String kayentaURL) {
+    String url = StringUtils.removeEnd(kayentaURL, "/");
+    if (!url.endsWith(CANARY_PATH)) {
+      throw new IllegalArgumentException("Stored canary configs need the Kayenta canary endpoint URL (ending in " + CANARY_PATH + "), but it was " + kayentaURL);
+    }
+    return StringUtils.removeEnd(url, CANARY_PATH) + CONFIG_PATH;
+  }
+
+  String key(String configURL, String hash) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(configURL, StandardCharsets.UTF_8).putByte((byte) 0);
+    hasher.putString(StringUtils.defaultString(configurationAccount), StandardCharsets.UTF_8).putByte((byte) 0);
+    hasher.putString(hash, StandardCharsets.UTF_8);
+    return hasher.hash().toString();
+  }
+
+  private String read(String key) {
+    if (directory == null) return null;
+    Path entry = directory.resolve(key);
+    if (!Files.isRegularFile(entry)) return null;
+    String value;
+    try {
+      value = new String(Files.readAllBytes(entry), StandardCharsets.UTF_8).trim();
+    } catch (IOException ex) {
+      log.warn("Ignoring unreadable canary config store entry {}", entry, ex);
+      return null;
+    }
+    return value.isEmpty() ? null : value;
+  }
+
+  private void write(String key, String configId) {
+    if (directory == null) return;
+    Path entry = directory.resolve(key);
+    Path temporary = null;
+    try {
+      Files.createDirectories(directory);
+      temporary = Files.createTempFile(directory, key, ".tmp");
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        out.write(configId.getBytes(StandardCharsets.UTF_8));
+      }
+      Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException ex) {
+      log.warn("Unable to store canary config id {}", entry, ex);
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException ignored) {
+          // best effort
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "config ids: " + configIds.size() + ", gzip rejected by: " + gzipRejected;
+  }
+
+}
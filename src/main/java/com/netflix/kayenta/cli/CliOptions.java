@@ -0,0 +1,531 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Data;
+
+/**
+ * The arguments of one client invocation, either from the command line or forwarded to a daemon by <code>--submit</code>.
+ */
+@Data
+public class CliOptions {
+
+  public static final long ONE_HOUR_IN_MILLIS = (60 * 60 * 1000); 
+  public static final String DEFAULT_KAYENTA_URL = "http://localhost:8090/canary"; 
+  public static final int DEFAULT_DAEMON_PORT = 8092;
+
+  // arguments that configure what a daemon shares between all submissions: the HTTP transport, the submission
+  // governor, the execution cache and the canary config store
+  static final Set<String> DAEMON_WIDE_ARGUMENTS = 
+      new HashSet<>(Arrays.asList("ct", "rt", "pool", "gz", "chunk", "nochunk", "retries", "hedge", "limit", "reuse", "stored-config", "config-account"));
+  static final Set<String> DAEMON_WIDE_FLAGS = new HashSet<>(Arrays.asList("gz", "chunk", "nochunk", "stored-config"));
+
+  private String requestConfigFilename = AdhocRequestConfig.DEFAULT_FILENAME;
+
+  private String kayentaURL = DEFAULT_KAYENTA_URL;
+  private List<String> kayentaEndpoints = Collections.singletonList(DEFAULT_KAYENTA_URL);
+  private String metricsAccount = "";
+  private String storageAccount = "";
+
+  private Date analysisEndTime = null; 
+  private Date analysisStartTime = null;
+
+  private boolean verbose = false;
+  private boolean help = false;
+
+  private HttpTransportConfig transportConfig = new HttpTransportConfig();
+
+  private Map<String, SubmissionGovernor.Limit> submissionLimits = new LinkedHashMap<>();
+  private SubmissionGovernor.Priority priority = SubmissionGovernor.Priority.NORMAL;
+
+  private long waitTimeoutMillis = PollingStrategy.DEFAULT_TIMEOUT_MILLIS;
+  private long maxPollIntervalMillis = PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS;
+
+  private String batchManifestFilename = null;
+  private String batchOutputFilename = null;
+  private int batchParallelism = BatchRunner.DEFAULT_PARALLELISM;
+
+  private String configCacheDirectory = null;
+  private long reuseMillis = 0;
+  private boolean storedConfig = false;
+  private String configurationAccount = null;
+
+  private boolean daemon = false;
+  private boolean submit = false;
+  private int daemonPort = DEFAULT_DAEMON_PORT;
+
+  private boolean stubServer = false;
+  private StubServerConfig stubServerConfig = new StubServerConfig();
+
+  private int windowCount = WindowedAnalysis.DEFAULT_WINDOW_COUNT;
+  private WindowedAnalysis.Aggregation windowAggregation = WindowedAnalysis.Aggregation.WORST;
+
+  private int shardSize = 0;
+
+  private boolean fanOut = false;
+  private WindowedAnalysis.Aggregation fanOutAggregation = WindowedAnalysis.Aggregation.WORST;
+
+  private boolean progressive = false;
+  private int progressiveIntervalMinutes = ProgressiveAnalysis.DEFAULT_INTERVAL_MINUTES;
+  private int progressivePasses = ProgressiveAnalysis.DEFAULT_REQUIRED_PASSES;
+
+  private ResultRenderer.Format outputFormat = ResultRenderer.Format.HUMAN;
+  private Set<ResultRenderer.Field> outputFields = null;
+
+  private String historyDirectory = null;
+  private HistoryQuery historyQuery = new HistoryQuery();
+
+  private String timingsFilename = null;
+  private String prometheusFilename = null;
+
+  private boolean load = false;
+  private LoadGeneratorConfig loadGeneratorConfig = new LoadGeneratorConfig();
+
+  /**
+   * The help statement for the program.
+   * 
+   */
+  public static String usage() {
+    StringBuilder builder = new StringBuilder(System.lineSeparator());
+    builder.append("Kayenta client program arguments: ").append(System.lineSeparator()).append(System.lineSeparator());
+    builder.append("-u url[,url...] The Kayenta server URL, or several endpoints to balance over (defaults to ").append(DEFAULT_KAYENTA_URL).append(")").append(System.lineSeparator());
+    builder.append("-m metricAccount The name of the metric account (defaults to empty string)").append(System.lineSeparator());
+    builder.append("-s storageAccount The name of the storage account (defaults to empty string)").append(System.lineSeparator());
+    builder.append("-r filename The name of the request configuration file (defaults to ").append(AdhocRequestConfig.DEFAULT_FILENAME).append(")").append(System.lineSeparator());
+    builder.append("-t0 \"yyyy-MM-dd HH:mm:ss\" The analysis start time (defaults to local time zone, 1 hour ago)"+System.lineSeparator());
+    builder.append("-t1 \"yyyy-MM-dd HH:mm:ss\" The analysis end time. (defaults to local time zone, now)"+System.lineSeparator());
+    builder.append("-b filename Run every request in the JSONL batch manifest (e.g. ").append(BatchRequest.DEFAULT_FILENAME).append(")").append(System.lineSeparator());
+    builder.append("-p parallelism The maximum number of concurrent batch executions (defaults to ").append(BatchRunner.DEFAULT_PARALLELISM).append(")").append(System.lineSeparator());
+    builder.append("-o filename The file batch results are written to (defaults to standard output)").append(System.lineSeparator());
+    builder.append("-ct millis The HTTP connect timeout (defaults to ").append(HttpTransportConfig.DEFAULT_CONNECT_TIMEOUT_MILLIS).append(")").append(System.lineSeparator());
+    builder.append("-rt millis The HTTP read timeout (defaults to ").append(HttpTransportConfig.DEFAULT_READ_TIMEOUT_MILLIS).append(")").append(System.lineSeparator());
+    builder.append("-pool size The maximum number of pooled keep-alive connections per server (defaults to ").append(HttpTransportConfig.DEFAULT_MAX_CONNECTIONS).append(")").append(System.lineSeparator());
+    builder.append("-gz compress request bodies (the server must accept Content-Encoding: gzip)").append(System.lineSeparator());
+    builder.append("-retries count Retries of a failed request, on another endpoint when there is one (defaults to ").append(HttpTransportConfig.DEFAULT_MAX_RETRIES).append(")").append(System.lineSeparator());
+    builder.append("-hedge percentile Repeat status reads slower than this percentile of recent ones on another endpoint, 0 to disable (defaults to ").append(HttpTransportConfig.DEFAULT_HEDGE_PERCENTILE).append(")").append(System.lineSeparator());
+    builder.append("-nochunk send request bodies with a Content-Length instead of chunked transfer encoding").append(System.lineSeparator());
+    builder.append("-limit target=rate[/maxInFlight] Limit submissions per second and executions in flight; target is endpoint, account, endpoint:URL or account:NAME (repeatable)").append(System.lineSeparator());
+    builder.append("-priority high|normal|low Which submissions go first when limits are reached (defaults to normal)").append(System.lineSeparator());
+    builder.append("-timeout seconds How long to wait for an execution to complete (defaults to ").append(Client.WAIT_TIMEOUT_IN_SECONDS).append(")").append(System.lineSeparator());
+    builder.append("-pmax seconds The maximum interval between execution status polls (defaults to ").append(PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS / 1000).append(")").append(System.lineSeparator());
+    builder.append("-cache directory Reuse requests built from an unchanged configuration file, cached in the directory (e.g. ").append(CompiledConfigCache.DEFAULT_DIRECTORY).append(")").append(System.lineSeparator());
+    builder.append("-reuse seconds Reuse the execution of an identical request that is in flight or was analyzed within this many seconds (in the -cache directory too when given)").append(System.lineSeparator());
+    builder.append("--stored-config store the canary config in Kayenta once per change and start executions by its id, with gzip compressed bodies when accepted").append(System.lineSeparator());
+    builder.append("-config-account name The Kayenta configuration account canary configs are stored in (defaults to Kayenta's default)").append(System.lineSeparator());
+    builder.append("-windows count Split the analysis window into this many sub-windows, analyzed concurrently (up to -p at a time)").append(System.lineSeparator());
+    builder.append("-window-rule worst|mean|weighted How sub-window scores are combined (defaults to worst)").append(System.lineSeparator());
+    builder.append("-shard-size count Analyze the metrics in shards of this size, run concurrently (up to -p at a time), and combine the scores locally").append(System.lineSeparator());
+    builder.append("--fan-out analyze every combination of the scope parameter values listed in extendedScopeParamValues (which may be patterns, e.g. host-{01..40}) by its own execution, up to -p at a time").append(System.lineSeparator());
+    builder.append("-fan-out-rule worst|mean|weighted How the per-scope scores are combined (defaults to worst)").append(System.lineSeparator());
+    builder.append("--progressive re-analyze a growing window until a score falls below marginal (exit status 4) or passes repeatedly").append(System.lineSeparator());
+    builder.append("-interval minutes How much the progressive window grows per analysis (defaults to ").append(ProgressiveAnalysis.DEFAULT_INTERVAL_MINUTES).append(")").append(System.lineSeparator());
+    builder.append("-passes count Stop the progressive analysis after this many consecutive passes, 0 to run up to -t1 (defaults to ").append(ProgressiveAnalysis.DEFAULT_REQUIRED_PASSES).append(")").append(System.lineSeparator());
+    builder.append("-format human|json|jsonl|csv How the execution status is written: a report, a JSON document, a JSON line per metric or a CSV row per metric (defaults to human)").append(System.lineSeparator());
+    builder.append("-fields list The comma separated fields of the json, jsonl and csv formats, out of execution, score, grade, metric, classification, reason, groups, critical, experiment, control and result (defaults to execution,metric,classification,reason,critical)").append(System.lineSeparator());
+    builder.append("-history directory Record the verdict and per-metric classifications of each execution in the history store in the directory (e.g. ").append(HistoryStore.DEFAULT_DIRECTORY).append(")").append(System.lineSeparator());
+    builder.append("-query trend|flaky|passrate Query the history store (the -history directory, defaults to ").append(HistoryStore.DEFAULT_DIRECTORY).append(") instead of sending a request").append(System.lineSeparator());
+    builder.append("-config name Only query executions of this config").append(System.lineSeparator());
+    builder.append("-scope name Only query executions of this scope").append(System.lineSeparator());
+    builder.append("-metric name Query the trend of this metric's classification instead of the overall score").append(System.lineSeparator());
+    builder.append("-since days Only query executions recorded in the last number of days").append(System.lineSeparator());
+    builder.append("-last count The number of trend points or ranked rows queried (defaults to ").append(HistoryQuery.DEFAULT_LIMIT).append(")").append(System.lineSeparator());
+    builder.append("-timings filename Append a JSON line with the time spent in each phase of the run to the file").append(System.lineSeparator());
+    builder.append("-prom filename Write the phase timings of the run to the file in Prometheus text format (node exporter textfile collector)").append(System.lineSeparator());
+    builder.append("--daemon keep a warm client running that accepts --submit requests on the loopback interface").append(System.lineSeparator());
+    builder.append("--submit forward the remaining arguments to a running daemon and print its output").append(System.lineSeparator());
+    builder.append("-port port The loopback port of the daemon (defaults to ").append(DEFAULT_DAEMON_PORT).append(")").append(System.lineSeparator());
+    builder.append("--stub-server run a local stand-in for the Kayenta canary endpoints instead of a client").append(System.lineSeparator());
+    builder.append("-stub-port port The stub server port (defaults to ").append(StubServerConfig.DEFAULT_PORT).append(")").append(System.lineSeparator());
+    builder.append("-stub-delay millis How long stub executions take to complete (defaults to 5000)").append(System.lineSeparator());
+    builder.append("-stub-latency millis The mean stub response latency (defaults to 0)").append(System.lineSeparator());
+    builder.append("-stub-latency-dist fixed|uniform|exponential The stub response latency distribution (defaults to fixed)").append(System.lineSeparator());
+    builder.append("-stub-errors rate The fraction of stub requests that fail with 503 (defaults to 0)").append(System.lineSeparator());
+    builder.append("-stub-fail rate The fraction of stub executions judged Fail (defaults to 0)").append(System.lineSeparator());
+    builder.append("-stub-metrics count The number of metric results in completed stub responses (defaults to 10)").append(System.lineSeparator());
+    builder.append("-stub-retry-after seconds The Retry-After hint sent for running stub executions (defaults to none)").append(System.lineSeparator());
+    builder.append("-stub-no-gzip reject gzip compressed stub request bodies with 415").append(System.lineSeparator());
+    builder.append("--load submit the request repeatedly and report latency percentiles and throughput").append(System.lineSeparator());
+    builder.append("-rate perSecond The load submission rate, scheduled independently of completions (defaults to ").append(LoadGeneratorConfig.DEFAULT_RATE).append(")").append(System.lineSeparator());
+    builder.append("-concurrency count Keep this many load executions outstanding instead of submitting at -rate").append(System.lineSeparator());
+    builder.append("-duration seconds How long load is submitted for (defaults to ").append(LoadGeneratorConfig.DEFAULT_DURATION_SECONDS).append(")").append(System.lineSeparator());
+    builder.append("-report seconds The load report interval (defaults to ").append(LoadGeneratorConfig.DEFAULT_REPORT_INTERVAL_SECONDS).append(")").append(System.lineSeparator());
+    builder.append("-v print per-metric results, phase timings and HTTP transport statistics").append(System.lineSeparator());
+    builder.append("-? print this help message").append(System.lineSeparator());
+    builder.append(System.lineSeparator()).append("-b, -windows, -shard-size, --fan-out and --progressive select different analyses; only one of them can be given").append(System.lineSeparator());
+    return builder.toString();
+  }
+
+  /**
+   * Parse command line arguments.
+   * 
+   * @param args
+   * @return the options, with the analysis times defaulted if they were not given.
+   * @throws IllegalArgumentException if an argument is invalid.
+   */
+  public static CliOptions parse(String[] args) {
+
+    CliOptions options = new CliOptions();
+    SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    String argument = "";
+    for (String arg : args) {
+      if (argument.length() > 0) {
+        // "arg" contains the previous arguments parameter
+        if (argument.equals("r")) {
+          options.requestConfigFilename = arg;
+        } else if (argument.equals("u")) {
+          options.kayentaEndpoints = LoadBalancingTransport.parseEndpoints(arg);
+          if (options.kayentaEndpoints.isEmpty()) {
+            throw new IllegalArgumentException("The Kayenta server URL argument must contain at least one URL.");
+          }
+          options.kayentaURL = options.kayentaEndpoints.get(0);
+        } else if (argument.equals("m")) {
+          options.metricsAccount = arg;
+        } else if (argument.equals("s")) {
+          options.storageAccount = arg;
+        } else if (argument.equals("b")) {
+          options.batchManifestFilename = arg;
+        } else if (argument.equals("o")) {
+          options.batchOutputFilename = arg;
+        } else if (argument.equals("p")) {
+          options.batchParallelism = parsePositiveInt(arg, "batch parallelism");
+        } else if (argument.equals("ct")) {
+          options.transportConfig.setConnectTimeoutMillis(parsePositiveInt(arg, "connect timeout"));
+        } else if (argument.equals("rt")) {
+          options.transportConfig.setReadTimeoutMillis(parsePositiveInt(arg, "read timeout"));
+        } else if (argument.equals("pool")) {
+          options.transportConfig.setMaxConnections(parsePositiveInt(arg, "pool size"));
+        } else if (argument.equals("retries")) {
+          options.transportConfig.setMaxRetries(parseNonNegativeInt(arg, "retries"));
+        } else if (argument.equals("hedge")) {
+          options.transportConfig.setHedgePercentile(parsePercentile(arg, "hedge percentile"));
+        } else if (argument.equals("limit")) {
+          int separator = arg.lastIndexOf('=');
+          String target = separator > 0 ? arg.substring(0, separator) : "";
+          if (!target.equals("endpoint") && !target.equals("account") && !target.startsWith("endpoint:") && !target.startsWith("account:")) {
+            throw new IllegalArgumentException("The limit argument must be written as target=rate[/maxInFlight], with target endpoint, account, endpoint:URL or account:NAME.");
+          }
+          options.submissionLimits.put(target, SubmissionGovernor.Limit.parse(arg.substring(separator + 1)));
+        } else if (argument.equals("priority")) {
+          try {
+            options.priority = SubmissionGovernor.Priority.valueOf(arg.toUpperCase());
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The priority argument must be one of high, normal or low.");
+          }
+        } else if (argument.equals("timeout")) {
+          options.waitTimeoutMillis = parsePositiveInt(arg, "timeout") * 1000L;
+        } else if (argument.equals("pmax")) {
+          options.maxPollIntervalMillis = parsePositiveInt(arg, "maximum poll interval") * 1000L;
+        } else if (argument.equals("format")) {
+          try {
+            options.outputFormat = ResultRenderer.Format.valueOf(arg.toUpperCase());
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The format argument must be one of human, json, jsonl or csv.");
+          }
+        } else if (argument.equals("fields")) {
+          options.outputFields = ResultRenderer.Field.parse(arg);
+        } else if (argument.equals("history")) {
+          options.historyDirectory = arg;
+        } else if (argument.equals("query")) {
+          try {
+            options.historyQuery.setKind(HistoryQuery.Kind.valueOf(arg.toUpperCase()));
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The query argument must be one of trend, flaky or passrate.");
+          }
+        } else if (argument.equals("config")) {
+          options.historyQuery.setConfigName(arg);
+        } else if (argument.equals("scope")) {
+          options.historyQuery.setScope(arg);
+        } else if (argument.equals("metric")) {
+          options.historyQuery.setMetric(arg);
+        } else if (argument.equals("since")) {
+          options.historyQuery.setSinceDays(parsePositiveInt(arg, "since"));
+        } else if (argument.equals("last")) {
+          options.historyQuery.setLimit(parsePositiveInt(arg, "last"));
+        } else if (argument.equals("config-account")) {
+          options.configurationAccount = arg;
+        } else if (argument.equals("reuse")) {
+          options.reuseMillis = parsePositiveInt(arg, "reuse time") * 1000L;
+        } else if (argument.equals("cache")) {
+          options.configCacheDirectory = arg;
+        } else if (argument.equals("windows")) {
+          options.windowCount = parsePositiveInt(arg, "window count");
+        } else if (argument.equals("window-rule")) {
+          try {
+            options.windowAggregation = WindowedAnalysis.Aggregation.valueOf(arg.toUpperCase());
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The window rule argument must be one of worst, mean or weighted.");
+          }
+        } else if (argument.equals("fan-out-rule")) {
+          try {
+            options.fanOutAggregation = WindowedAnalysis.Aggregation.valueOf(arg.toUpperCase());
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The fan-out rule argument must be one of worst, mean or weighted.");
+          }
+        } else if (argument.equals("shard-size")) {
+          options.shardSize = parsePositiveInt(arg, "shard size");
+        } else if (argument.equals("interval")) {
+          options.progressiveIntervalMinutes = parsePositiveInt(arg, "progressive interval");
+        } else if (argument.equals("passes")) {
+          options.progressivePasses = parseNonNegativeInt(arg, "progressive passes");
+        } else if (argument.equals("timings")) {
+          options.timingsFilename = arg;
+        } else if (argument.equals("prom")) {
+          options.prometheusFilename = arg;
+        } else if (argument.equals("port")) {
+          options.daemonPort = parsePositiveInt(arg, "daemon port");
+        } else if (argument.equals("stub-port")) {
+          options.stubServerConfig.setPort(parsePositiveInt(arg, "stub port"));
+        } else if (argument.equals("stub-delay")) {
+          options.stubServerConfig.setCompletionDelayMillis(parseNonNegativeInt(arg, "stub delay"));
+        } else if (argument.equals("stub-latency")) {
+          options.stubServerConfig.setLatencyMillis(parseNonNegativeInt(arg, "stub latency"));
+        } else if (argument.equals("stub-latency-dist")) {
+          try {
+            options.stubServerConfig.setLatencyDistribution(StubServerConfig.LatencyDistribution.valueOf(arg.toUpperCase()));
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The stub latency distribution argument must be one of fixed, uniform or exponential.");
+          }
+        } else if (argument.equals("stub-errors")) {
+          options.stubServerConfig.setErrorRate(parseRate(arg, "stub error rate"));
+        } else if (argument.equals("stub-fail")) {
+          options.stubServerConfig.setFailRate(parseRate(arg, "stub fail rate"));
+        } else if (argument.equals("stub-metrics")) {
+          options.stubServerConfig.setResultMetricCount(parseNonNegativeInt(arg, "stub metric count"));
+        } else if (argument.equals("stub-retry-after")) {
+          options.stubServerConfig.setRetryAfterSeconds(parseNonNegativeInt(arg, "stub retry after"));
+        } else if (argument.equals("rate")) {
+          options.loadGeneratorConfig.setRate(parsePositiveDouble(arg, "load rate"));
+        } else if (argument.equals("concurrency")) {
+          options.loadGeneratorConfig.setConcurrency(parsePositiveInt(arg, "load concurrency"));
+        } else if (argument.equals("duration")) {
+          options.loadGeneratorConfig.setDurationSeconds(parsePositiveInt(arg, "load duration"));
+        } else if (argument.equals("report")) {
+          options.loadGeneratorConfig.setReportIntervalSeconds(parsePositiveInt(arg, "load report interval"));
+        } else if (argument.equals("t0")) {
+          try {
+            options.analysisStartTime = dateFormatter.parse(arg);
+          } catch (ParseException e) {
+            throw new IllegalArgumentException("An error was encountered while parsing the analysis start time argument.");
+          }
+        } else if (argument.equals("t1")) {
+          try {
+            options.analysisEndTime = dateFormatter.parse(arg);
+          } catch (ParseException e) {
+            throw new IllegalArgumentException("An error was encountered while parsing the analysis start end argument.");
+          }
+        }
+        argument = "";
+      } else if (arg.startsWith("-")) {
+        argument = arg.startsWith("--") ? arg.substring(2) : arg.substring(1);
+        // process arguments that don't have parameters here...
+        if (argument.equals("?")) {
+          options.help = true;
+          argument = "";
+        } else if (argument.equals("v")) {
+          options.verbose = true;
+          argument = "";
+        } else if (argument.equals("gz")) {
+          options.transportConfig.setGzipRequests(true);
+          argument = "";
+        } else if (argument.equals("chunk")) {
+          // the default, still accepted for existing scripts
+          options.transportConfig.setChunkedStreaming(true);
+          argument = "";
+        } else if (argument.equals("nochunk")) {
+          options.transportConfig.setChunkedStreaming(false);
+          argument = "";
+        } else if (argument.equals("daemon")) {
+          options.daemon = true;
+          argument = "";
+        } else if (argument.equals("submit")) {
+          options.submit = true;
+          argument = "";
+        } else if (argument.equals("stub-server")) {
+          options.stubServer = true;
+          argument = "";
+        } else if (argument.equals("progressive")) {
+          options.progressive = true;
+          argument = "";
+        } else if (argument.equals("fan-out")) {
+          options.fanOut = true;
+          argument = "";
+        } else if (argument.equals("load")) {
+          options.load = true;
+          argument = "";
+        } else if (argument.equals("stored-config")) {
+          options.storedConfig = true;
+          argument = "";
+        } else if (argument.equals("stub-no-gzip")) {
+          options.stubServerConfig.setAcceptGzip(false);
+          argument = "";
+        }
+      }
+    }
+
+    // an invocation runs one kind of analysis, rather than one silently taking precedence over the others
+    List<String> modes = new ArrayList<>();
+    if (options.batchManifestFilename != null) modes.add("-b");
+    if (options.progressive) modes.add("--progressive");
+    if (options.shardSize > 0) modes.add("-shard-size");
+    if (options.fanOut) modes.add("--fan-out");
+    if (options.windowCount > 1) modes.add("-windows");
+    if (modes.size() > 1) {
+      throw new IllegalArgumentException("The " + StringUtils.join(modes, ", ") + " arguments select different analyses, only one of them can be used.");
+    }
+
+    if (options.analysisStartTime == null) {
+      // default start time to 1 hour ago
+      Date now = new Date();
+      options.analysisStartTime = new Date(now.getTime() - (ONE_HOUR_IN_MILLIS));  
+    }
+
+    if (options.analysisEndTime == null) {
+      // default end time to 1 hour after start time
+      options.analysisEndTime = new Date(options.analysisStartTime.getTime() + (ONE_HOUR_IN_MILLIS));
+    }
+
+    return options;
+
+  }
+
+  /**
+   * List the arguments that configure what a daemon shares between all submissions, so that a submission can be
+   * checked against the daemon's own: the transport, -limit, -reuse and --stored-config arguments, and -u when it
+   * lists several endpoints.
+   * 
+   * @param args command line arguments
+   * @return every such argument with its value (e.g. "-retries 2"), in order.
+   */
+  public static List<String> daemonWideArguments(String[] args) {
+    List<String> daemonWide = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("-")) continue;
+      String argument = args[i].startsWith("--") ? args[i].substring(2) : args[i].substring(1);
+      String value = !DAEMON_WIDE_FLAGS.contains(argument) && i + 1 < args.length ? args[i + 1] : null;
+      if (DAEMON_WIDE_ARGUMENTS.contains(argument) || (argument.equals("u") && value != null && value.contains(","))) {
+        daemonWide.add(value != null ? args[i] + " " + value : args[i]);
+      }
+    }
+    return daemonWide;
+  }
+
+  /**
+   * Create the execution cache selected by the -reuse and -cache arguments.
+   * 
+   * @return the cache, or null if executions are not reused.
+   */
+  public ExecutionCache createExecutionCache(ObjectMapper mapper) {
+    if (reuseMillis <= 0) return null;
+    String directory = configCacheDirectory != null ? Paths.get(configCacheDirectory, "executions").toString() : null;
+    return new ExecutionCache(mapper, reuseMillis, ExecutionCache.DEFAULT_MAX_ENTRIES, directory);
+  }
+
+  /**
+   * Create the canary config store selected by the --stored-config argument; config ids are also kept in the -cache
+   * directory, or the default cache directory when none is given.
+   * 
+   * @return the store, or null if requests carry their config.
+   */
+  public CanaryConfigStore createConfigStore(ObjectMapper mapper) {
+    if (!storedConfig) return null;
+    String directory = Paths.get(configCacheDirectory != null ? configCacheDirectory : CompiledConfigCache.DEFAULT_DIRECTORY, "canary-configs").toString();
+    return new CanaryConfigStore(mapper, configurationAccount, directory);
+  }
+
+  /**
+   * The transport for the options: pooled connections to the Kayenta server, with retries of failed requests, balanced
+   * over its endpoints when more than one was given.
+   */
+  public HttpTransport createTransport() {
+    // a single endpoint is balanced over too, since that is where failed requests are retried
+    return new LoadBalancingTransport(new UrlConnectionTransport(transportConfig), kayentaEndpoints, transportConfig);
+  }
+
+  public PollingStrategy getPollingStrategy() {
+    return PollingStrategy.defaultStrategy(waitTimeoutMillis, maxPollIntervalMillis);
+  }
+
+  static int parseNonNegativeInt(String arg, String name) {
+    try {
+      int value = Integer.parseInt(arg);
+      if (value >= 0) return value;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("The " + name + " argument must be zero or a positive number.");
+  }
+
+  static double parsePercentile(String arg, String name) {
+    try {
+      double value = Double.parseDouble(arg);
+      if (value >= 0.0 && value < 100.0) return value;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("The " + name + " argument must be a number from 0 up to 100.");
+  }
+
+  static double parseRate(String arg, String name) {
+    try {
+      double value = Double.parseDouble(arg);
+      if (value >= 0.0 && value <= 1.0) return value;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("The " + name + " argument must be a number between 0 and 1.");
+  }
+
+  static double parsePositiveDouble(String arg, String name) {
+    try {
+      double value = Double.parseDouble(arg);
+      if (value > 0.0) return value;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("The " + name + " argument must be a positive number.");
+  }
+
+  static int parsePositiveInt(String arg, String name) {
+    int value = 0;
+    try {
+      value = Integer.parseInt(arg);
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    if (value <= 0) {
+      throw new IllegalArgumentException("The " + name + " argument must be a positive number.");
+    }
+    return value;
+  }
+
+}
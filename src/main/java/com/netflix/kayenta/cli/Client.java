@@ -14,25 +14,19 @@
 
 package com.netflix.kayenta.cli;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
-import org.apache.commons.lang3.StringUtils;
-
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.ImmutableList;
-import com.netflix.kayenta.canary.CanaryExecutionResponse;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
 import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
-import com.netflix.kayenta.canary.CanaryMetricSetQueryConfig;
-import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
-import com.netflix.kayenta.canary.results.CanaryJudgeResult;
-import com.netflix.kayenta.canary.results.CanaryJudgeScore;
-import com.netflix.kayenta.canary.results.CanaryResult;
 import com.netflix.kayenta.config.KayentaConfiguration;
-import com.netflix.spinnaker.kork.jackson.ObjectMapperSubtypeConfigurer;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -41,20 +35,53 @@ public class Client extends HttpClient {
 
   public static final long WAIT_TIMEOUT_IN_SECONDS = 300;
 
-  ObjectMapper mapper = getObjectMapper();
+  static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+  ObjectMapper mapper;
 
   String kayentaURL;
   String metricsAccount;
   String storageAccount;
   
+  CanaryAdhocExecutionRequest adhocRequest;
   String canaryExecutionId;
   
   CanaryExecutionStatusResponse canaryExecutionStatus;
   
   boolean verbose = false;
+  boolean includeMetricResults = false;
+  boolean showProgress = true;
+  PrintStream out = System.out;
+
+  CompiledConfigCache configCache = null;
+  PhaseTimings timings = null;
+  ResultRenderer renderer = null;
+  SubmissionGovernor.Priority priority = SubmissionGovernor.Priority.NORMAL;
+
+  PollingStrategy pollingStrategy = 
+      PollingStrategy.defaultStrategy(PollingStrategy.DEFAULT_TIMEOUT_MILLIS, PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS);
+  PollingStrategy executionPollingStrategy;
+
+  // the client for the request that was sent
+  KayentaClient kayentaClient;
   
   public Client() {
+    this(createObjectMapper());
+  }
+
+  /**
+   * Create a client that shares an already configured object mapper, e.g. when running many requests from one process.
+   * 
+   * @param mapper
+   */
+  public Client(ObjectMapper mapper) {
     super();
+    this.mapper = mapper;
+  }
+
+  public Client(ObjectMapper mapper, HttpTransport transport) {
+    super(transport);
+    this.mapper = mapper;
   }
 
   /**
@@ -66,160 +93,183 @@ public class Client extends HttpClient {
    */
   public void sendAdhocRequest(String configFilename, String kayentaURL, String metricsAccount, String storageAccount, long analysisStartTime, long analysisEndTime, boolean verbose) {
     
+    AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper, configCache);
+    adhocRequestBuilder.setTimings(timings);
+
+    sendAdhocRequest(adhocRequestBuilder.build(configFilename, analysisStartTime, analysisEndTime), 
+                     kayentaURL, metricsAccount, storageAccount, verbose);
+    
+  }
+
+  /**
+   * Send an already built Kayenta Adhoc HTTP request 
+   * 
+   * @param adhocRequest
+   * @param kayentaURL
+   * @param metricsAccount
+   * @param storageAccount
+   * @param verbose
+   */
+  public void sendAdhocRequest(CanaryAdhocExecutionRequest adhocRequest, String kayentaURL, String metricsAccount, String storageAccount, boolean verbose) {
+    
     this.kayentaURL = kayentaURL;
     this.metricsAccount = metricsAccount;
     this.storageAccount = storageAccount;
     
     this.verbose = verbose;
-    
-    AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper);
+    this.adhocRequest = adhocRequest;
 
-    String requestBody = "";
-    try {
-      requestBody = mapper.writeValueAsString(adhocRequestBuilder.build(configFilename, analysisStartTime, analysisEndTime));
-    } catch (JsonProcessingException ex) {
-      throw new RuntimeException("Error parsing canary adhoc execution request, reason: "+ex.getMessage(),ex);
-    }
+    executionPollingStrategy = pollingStrategy.estimateFor(adhocRequest);
 
-    Map<String, String> requestParameters = new HashMap<String, String>();
-    if (!StringUtils.isEmpty(metricsAccount)) requestParameters.put("metricsAccountName", metricsAccount);
-    if (!StringUtils.isEmpty(storageAccount)) requestParameters.put("storageAccountName", storageAccount);
-    
-    try {
-      String response = doPost(kayentaURL, requestParameters, requestBody);
-      canaryExecutionId = mapper.readValue(response, CanaryExecutionResponse.class).getCanaryExecutionId(); 
-    } catch (Exception ex) {
-      throw new RuntimeException("Unable to complete POST request, reason: "+ex.getMessage());
-    }
+    kayentaClient = 
+        KayentaClient.builder()
+        .mapper(mapper)
+        .transport(transport)
+        .kayentaURL(kayentaURL)
+        .metricsAccount(metricsAccount)
+        .storageAccount(storageAccount)
+        .pollingStrategy(pollingStrategy)
+        .includeMetricResults(verbose || includeMetricResults)
+        .timings(timings)
+        .priority(priority)
+        .build();
+
+    canaryExecutionId = kayentaClient.send(adhocRequest);
     
   }
   
   /**
-   * Wait for the request to complete...
+   * Wait for the request to complete. The execution is polled by the client's execution tracker as directed by the
+   * polling strategy (estimated from the request that was sent); the calling thread only waits for the verdict, and
+   * prints a progress dot for every poll that finds the execution still running.
    * 
    */
   public void waitForRequestToComplete() {
 
-    String url = kayentaURL + "/" + canaryExecutionId;
-
-    Map<String, String> requestParameters = new HashMap<String, String>();
-    if (!StringUtils.isEmpty(storageAccount)) requestParameters.put("storageAccountName", storageAccount);
-    requestParameters.put("canaryExecutionId", canaryExecutionId);
-    
-    long countdown = WAIT_TIMEOUT_IN_SECONDS;
-    long progressTimer = 5;
-
-    boolean completed = false;
-    while (!completed && countdown > 0) {      
-      try {
-        String response = doGet(url, requestParameters);
-        canaryExecutionStatus = mapper.readValue(response, CanaryExecutionStatusResponse.class);
-        completed = canaryExecutionStatus.getComplete();
-      } catch (Exception ex) {
-        completed = true;
-        canaryExecutionStatus = 
-            CanaryExecutionStatusResponse.builder()
-            .complete(Boolean.FALSE)
-            .status(ex.getMessage())
-            .build();
-      }
-      if (!completed)
-        try {
-          Thread.sleep(1000);
-          if (--progressTimer <= 0) {
-            System.out.print(".");
-            progressTimer = 5;
-          }
-          if (--countdown <= 0) {
-            canaryExecutionStatus = 
-                CanaryExecutionStatusResponse.builder()
-                .complete(Boolean.FALSE)
-                .status("timed out waiting for completion status")
-                .build();
-          }
-        } catch (InterruptedException e) {
-          // ignore
+    ExecutionTracker.PollListener progress = (waitNanos, pollNanos, exchange, complete) -> {
+      if (showProgress && !complete) {
+        synchronized (out) {
+          out.print(".");
+          out.flush();
         }
+      }
+    };
+
+    try {
+      canaryExecutionStatus = kayentaClient.track(canaryExecutionId, getExecutionPollingStrategy(), progress).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      canaryExecutionStatus = 
+          CanaryExecutionStatusResponse.builder()
+          .complete(Boolean.FALSE)
+          .status("interrupted waiting for completion status")
+          .build();
+    } catch (ExecutionException ex) {
+      canaryExecutionStatus = 
+          CanaryExecutionStatusResponse.builder()
+          .complete(Boolean.FALSE)
+          .status(ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage())
+          .build();
     }
 
-    System.out.println("");
+    if (showProgress) out.println("");
     
   }
   
   /**
-   * Log the completion status...
+   * Hand the request that was sent to an execution tracker instead of waiting for it on the calling thread. The final
+   * status is also kept by this client, for <code>logExecutionStatus</code>, once the returned future completes.
    * 
+   * @param tracker
+   * @return a future completed with the final (or timed out) status.
    */
-  public void logExecutionStatus() {
-        
-    System.out.println("========== Canary Execution Status ==========");
-    System.out.println("Status URL: "+kayentaURL + "/" + canaryExecutionId);
-    if (canaryExecutionStatus != null) {
-    	
-      System.out.println("Complete: "+canaryExecutionStatus.getComplete().toString());
-      System.out.println("Status: "+canaryExecutionStatus.getStatus());
-      CanaryResult canaryResult = canaryExecutionStatus.getResult();
-      if (canaryResult != null) {
-        CanaryJudgeResult judgeResult = canaryResult.getJudgeResult();
-        if (judgeResult != null) {
-          CanaryJudgeScore judgeScore = judgeResult.getScore();
-          System.out.println("Score: "+judgeScore.getScore());
-          System.out.println("Grade: "+judgeScore.getClassification());
-          String reason = judgeScore.getClassificationReason();
-          if (!StringUtils.isEmpty(reason)) {
-            System.out.println("Reason: "+judgeScore.getClassification());
-          }
-          if (verbose) {
-	          List<CanaryAnalysisResult> results = judgeResult.getResults();
-	          System.out.println("========== Passed Results Summary ===========");
-	          int entry = 0;
-	          for (CanaryAnalysisResult result : results) {
-	        	  if (result.getClassification().equals("Pass")) {
-	        		  if (entry++ > 0) System.out.println("-------------");
-	        		  logResultEntry(result);
-	        	  }
-	          }
-	          System.out.println("========== Failed Results Summary ===========");
-	          entry = 0;
-	          for (CanaryAnalysisResult result : results) {
-	        	  if (!result.getClassification().equals("Pass")) {
-	        		  if (entry++ > 0) System.out.println("-------------");
-	        		  logResultEntry(result);
-	        	  }
-	          }
-          }
-        }
-      }
+  public CompletableFuture<CanaryExecutionStatusResponse> trackRequest(ExecutionTracker tracker) {
+    return kayentaClient.toBuilder().tracker(tracker).build()
+        .track(canaryExecutionId, getExecutionPollingStrategy())
+        .thenApply(status -> {
+          canaryExecutionStatus = status;
+          return status;
+        });
+  }
 
-    } else {
-      System.out.println("Complete: false");
-      System.out.println("Status: null");
+  PollingStrategy getExecutionPollingStrategy() {
+    return executionPollingStrategy != null ? executionPollingStrategy : pollingStrategy;
+  }
+
+  /**
+   * Write the completion status with the result renderer (the human readable report unless one was set), through a
+   * buffer that is flushed once.
+   * 
+   */
+  public void logExecutionStatus() {
+    ResultRenderer resultRenderer = renderer != null ? renderer : new HumanResultRenderer(verbose);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+    try {
+      resultRenderer.render(kayentaURL + "/" + canaryExecutionId, canaryExecutionId, canaryExecutionStatus, writer);
+      // not closed, as that would close the output stream
+      writer.flush();
+    } catch (IOException ex) {
+      throw new RuntimeException("Unable to write the canary execution status, reason: " + ex.getMessage(), ex);
     }
-    
-    System.out.println("=============================================");
-    
-  } 
-  
-  protected void logResultEntry(CanaryAnalysisResult result) {
-	  System.out.println("Name: "+result.getName());
-	  System.out.println("Experiment: "+result.getExperimentMetadata().toString());
-	  System.out.println("Control:    "+result.getControlMetadata().toString());
-	  System.out.println("Overall:    "+result.getResultMetadata().toString());
+  }
+
+  public CanaryAdhocExecutionRequest getAdhocRequest() {
+    return adhocRequest;
+  }
+
+  public String getCanaryExecutionId() {
+    return canaryExecutionId;
+  }
+
+  public CanaryExecutionStatusResponse getCanaryExecutionStatus() {
+    return canaryExecutionStatus;
+  }
+
+  public void setPollingStrategy(PollingStrategy pollingStrategy) {
+    this.pollingStrategy = pollingStrategy;
+  }
+
+  public void setConfigCache(CompiledConfigCache configCache) {
+    this.configCache = configCache;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
+  public void setPriority(SubmissionGovernor.Priority priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Materialize the per-metric results of the final status even when they are not printed, e.g. to record them.
+   */
+  public void setIncludeMetricResults(boolean includeMetricResults) {
+    this.includeMetricResults = includeMetricResults;
+  }
+
+  public void setRenderer(ResultRenderer renderer) {
+    this.renderer = renderer;
+  }
+
+  public void setOut(PrintStream out) {
+    this.out = out;
+  }
+
+  public void setShowProgress(boolean showProgress) {
+    this.showProgress = showProgress;
   }
 
   /**
-   * Included the following methods from com.netflix.kayenta.retrofit.config.KayentaConfiguration to support the
+   * Included the following from com.netflix.kayenta.retrofit.config.KayentaConfiguration to support the
    * correct de-serialization of 1) properties of type Instant and 2) subtypes of CanaryMetricSetQueryConfig.
-   * These methods are not available to this implementation because it currently does not use spring boot framework and
-   * therefore no "autowired" objectMapper is available.
+   * These are not available to this implementation because it currently does not use spring boot framework and
+   * therefore no "autowired" objectMapper is available. The subtypes come from the metric provider registry
+   * rather than from a classpath scan.
    */  
-  private ObjectMapperSubtypeConfigurer.ClassSubtypeLocator assetSpecSubTypeLocator() {
-    return new ObjectMapperSubtypeConfigurer.ClassSubtypeLocator(CanaryMetricSetQueryConfig.class, ImmutableList.of("com.netflix.kayenta.canary.providers.metrics"));
-  }
-  
-  private ObjectMapper getObjectMapper() {    
+  public static ObjectMapper createObjectMapper() {    
     ObjectMapper objectMapper = new ObjectMapper();
-    new ObjectMapperSubtypeConfigurer(true).registerSubtypes(objectMapper, Collections.singletonList(assetSpecSubTypeLocator()));
+    objectMapper.registerSubtypes(MetricProviderRegistry.getInstance().getNamedTypes());
     KayentaConfiguration.configureObjectMapperFeatures(objectMapper);
     return objectMapper;
   } 
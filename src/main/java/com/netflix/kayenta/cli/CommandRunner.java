@@ -0,0 +1,557 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.results.CanaryJudgeGroupScore;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+
+/**
+ * Runs a single client invocation, either a single request or a batch, writing its output to the given stream.
+ * Error and diagnostic messages are part of the output in the human format; with a machine-readable output they go
+ * to a stream of their own, so the output can be consumed directly. The object mapper (and the default HTTP transport) are shared, so a long running process such as the daemon only
+ * pays for their construction once.
+ */
+public class CommandRunner {
+
+  public static final int EXIT_OK = 0;
+  public static final int EXIT_INVALID_ARGUMENTS = 1;
+  public static final int EXIT_ERROR = 2;
+  public static final int EXIT_BATCH_FAILURES = 3;
+  public static final int EXIT_CANARY_FAILED = 4;
+
+  final ObjectMapper mapper;
+
+  // the metric providers are discovered once per process, so only the first run pays for (and reports) it
+  final AtomicBoolean providerDiscoveryReported = new AtomicBoolean(false);
+
+  // compiled config caches by directory
+  final Map<String, CompiledConfigCache> configCaches = new ConcurrentHashMap<>();
+
+  public CommandRunner(ObjectMapper mapper) {
+    super();
+    this.mapper = mapper;
+  }
+
+  /**
+   * Run the invocation described by the options.
+   * 
+   * @param options
+   * @param out
+   * @param err where error and diagnostic messages go when the output is machine-readable
+   * @return the process exit status.
+   */
+  public int run(CliOptions options, PrintStream out, PrintStream err) {
+
+    PrintStream diagnostics = isMachineReadable(options) ? err : out;
+
+    if (options.isLoad()) {
+      return runLoad(options, out, diagnostics);
+    }
+
+    if (options.getHistoryQuery().getKind() != null) {
+      return runHistoryQuery(options, out, diagnostics);
+    }
+
+    PhaseTimings timings = new PhaseTimings();
+    if (!providerDiscoveryReported.getAndSet(true)) {
+      timings.record(PhaseTimings.PROVIDER_DISCOVERY, TimeUnit.MILLISECONDS.toNanos(MetricProviderRegistry.getInstance().getLoadTimeMillis()));
+    }
+
+    String command;
+    int status;
+    // CliOptions.parse rejects more than one of these
+    if (options.getBatchManifestFilename() != null) {
+      command = "batch";
+      status = runBatch(options, out, diagnostics, timings);
+    } else if (options.isProgressive()) {
+      command = "progressive";
+      status = runProgressive(options, out, diagnostics, timings);
+    } else if (options.getShardSize() > 0) {
+      command = "sharded";
+      status = runSharded(options, out, diagnostics, timings);
+    } else if (options.isFanOut()) {
+      command = "fanout";
+      status = runFanOut(options, out, diagnostics, timings);
+    } else if (options.getWindowCount() > 1) {
+      command = "windowed";
+      status = runWindowed(options, out, diagnostics, timings);
+    } else {
+      command = "request";
+      status = runRequest(options, out, diagnostics, timings);
+    }
+    exportTimings(options, diagnostics, timings, command, status == EXIT_OK);
+    return status;
+
+  }
+
+  /**
+   * Whether the output is read by a program: a result format other than the human one, or the JSON lines of a history
+   * query or of a batch written to the output rather than to a file.
+   */
+  static boolean isMachineReadable(CliOptions options) {
+    return options.getOutputFormat() != ResultRenderer.Format.HUMAN || options.getHistoryQuery().getKind() != null
+           || options.getBatchManifestFilename() != null && options.getBatchOutputFilename() == null;
+  }
+
+  /**
+   * Print the statistics shown with -v: the metric providers, the phase timings of the run, the state of the submission
+   * governor, execution cache and canary config store, and the HTTP transport statistics.
+   */
+  void printStatistics(PrintStream out, PhaseTimings timings, HttpTransport transport) {
+    out.println("Metric providers: " + MetricProviderRegistry.getInstance());
+    out.println("Phase timings: " + timings);
+    out.println("Submission governor: " + SubmissionGovernor.getDefault());
+    if (ExecutionCache.getDefault() != null) out.println("Execution cache: " + ExecutionCache.getDefault());
+    if (CanaryConfigStore.getDefault() != null) out.println("Canary config store: " + CanaryConfigStore.getDefault());
+    out.println("HTTP transport: " + transport.getStats());
+  }
+
+  /**
+   * Write the phase timings of a run to the files requested by the options; a failure to do so does not fail the run.
+   */
+  void exportTimings(CliOptions options, PrintStream diagnostics, PhaseTimings timings, String command, boolean success) {
+    try {
+      if (options.getTimingsFilename() != null) {
+        timings.appendJson(options.getTimingsFilename(), mapper, command, success);
+      }
+      if (options.getPrometheusFilename() != null) {
+        timings.writePrometheus(options.getPrometheusFilename(), command, success);
+      }
+    } catch (IOException ex) {
+      diagnostics.println("Unable to write the phase timings, reason: " + ex.getMessage());
+    }
+  }
+
+  int runRequest(CliOptions options, PrintStream out, PrintStream diagnostics, PhaseTimings timings) {
+
+    Client client = new Client(mapper);
+    client.setOut(out);
+    client.setPollingStrategy(options.getPollingStrategy());
+    client.setConfigCache(getConfigCache(options));
+    client.setTimings(timings);
+    client.setPriority(options.getPriority());
+    // the machine-readable formats are written on their own, without progress messages, so they can be consumed directly
+    boolean human = options.getOutputFormat() == ResultRenderer.Format.HUMAN;
+    client.setRenderer(ResultRenderer.create(options.getOutputFormat(), options.getOutputFields(), mapper, options.isVerbose()));
+    client.setShowProgress(human);
+    client.setIncludeMetricResults(options.getHistoryDirectory() != null || !human);
+
+    try {
+      
+      if (human) out.println("sending the adhoc request to the server...");
+      client.sendAdhocRequest(options.getRequestConfigFilename(), options.getKayentaURL(), options.getMetricsAccount(), options.getStorageAccount(), 
+                              options.getAnalysisStartTime().getTime(), options.getAnalysisEndTime().getTime(), options.isVerbose());
+      
+      if (human) out.print("waiting for the request to complete..."); // note the use of print vs println,
+      client.waitForRequestToComplete();                             // the call to waitForRequestToComplete prints a newline before returning
+      recordHistory(options, diagnostics, client);
+      
+      if (human) out.println("logging the request execution status...");
+      long renderNanos = System.nanoTime();
+      client.logExecutionStatus();
+      timings.record(PhaseTimings.RENDER, System.nanoTime() - renderNanos);
+
+      if (human && options.isVerbose()) {
+        printStatistics(out, timings, client.getTransport());
+      }
+
+      if (human) out.println("done.");
+      
+    } catch (RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+    
+    return EXIT_OK;
+
+  }
+
+  /**
+   * Record the verdict of a request in the history store, if one was given; a failure to do so does not fail the run.
+   */
+  void recordHistory(CliOptions options, PrintStream diagnostics, Client client) {
+    if (options.getHistoryDirectory() == null) return;
+    try {
+      new HistoryStore(options.getHistoryDirectory())
+      .record(HistoryStore.configName(client.getAdhocRequest()), HistoryStore.scope(client.getAdhocRequest()), 
+              client.getCanaryExecutionId(), client.getCanaryExecutionStatus());
+    } catch (RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+    }
+  }
+
+  CompiledConfigCache getConfigCache(CliOptions options) {
+    if (options.getConfigCacheDirectory() == null) return null;
+    // one cache per directory, so the requests it keeps in memory serve every run of a daemon
+    return configCaches.computeIfAbsent(options.getConfigCacheDirectory(), directory -> new CompiledConfigCache(directory, mapper));
+  }
+
+  /**
+   * Re-analyze a growing window until the verdict is conclusive.
+   * 
+   */
+  int runProgressive(CliOptions options, PrintStream out, PrintStream diagnostics, PhaseTimings timings) {
+
+    Client client = new Client(mapper);
+    client.setOut(out);
+    client.setShowProgress(false);
+    client.setPollingStrategy(options.getPollingStrategy());
+    client.setTimings(timings);
+    client.setPriority(options.getPriority());
+
+    ProgressiveAnalysis analysis = 
+        new ProgressiveAnalysis(client, TimeUnit.MINUTES.toMillis(options.getProgressiveIntervalMinutes()), options.getProgressivePasses(), out);
+    analysis.setTimings(timings);
+
+    ProgressiveAnalysis.Outcome outcome;
+    try {
+
+      AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper, getConfigCache(options));
+      adhocRequestBuilder.setTimings(timings);
+      long startTime = options.getAnalysisStartTime().getTime();
+      long endTime = options.getAnalysisEndTime().getTime();
+      CanaryAdhocExecutionRequest adhocRequest = adhocRequestBuilder.build(options.getRequestConfigFilename(), startTime, endTime);
+
+      out.println("analyzing growing windows every " + options.getProgressiveIntervalMinutes() + " minutes...");
+      outcome = analysis.run(adhocRequest, options.getKayentaURL(), options.getMetricsAccount(), options.getStorageAccount(), startTime, endTime);
+
+      long renderNanos = System.nanoTime();
+      out.println("========= Progressive Canary Verdict ========");
+      out.println("Status URL: " + options.getKayentaURL() + "/" + client.getCanaryExecutionId());
+      out.println("Windows: " + analysis.getIterations());
+      out.println("Outcome: " + outcome.name().toLowerCase().replace('_', ' '));
+      if (outcome == ProgressiveAnalysis.Outcome.ERROR) {
+        out.println("Status: " + analysis.getStatus());
+      } else {
+        out.println("Score: " + analysis.getScore());
+        out.println("Grade: " + analysis.getClassification());
+      }
+      out.println("=============================================");
+      timings.record(PhaseTimings.RENDER, System.nanoTime() - renderNanos);
+
+    } catch (RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+
+    if (options.isVerbose()) {
+      printStatistics(diagnostics, timings, client.getTransport());
+    }
+
+    out.println("done.");
+    switch (outcome) {
+      case PASS:
+      case EARLY_PASS:
+        return EXIT_OK;
+      case ERROR:
+        return EXIT_ERROR;
+      default:
+        return EXIT_CANARY_FAILED;
+    }
+
+  }
+
+  /**
+   * Analyze the metrics of the request in concurrent shards and combine their results into one verdict.
+   * 
+   */
+  int runSharded(CliOptions options, PrintStream out, PrintStream diagnostics, PhaseTimings timings) {
+
+    MetricSharding sharding = 
+        new MetricSharding(mapper, options.getShardSize(), options.getBatchParallelism(), 
+                           options.getKayentaURL(), options.getMetricsAccount(), options.getStorageAccount());
+    sharding.setPollingStrategy(options.getPollingStrategy());
+    sharding.setTimings(timings);
+
+    boolean combined;
+    try {
+
+      AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper, getConfigCache(options));
+      adhocRequestBuilder.setTimings(timings);
+      CanaryAdhocExecutionRequest adhocRequest = 
+          adhocRequestBuilder.build(options.getRequestConfigFilename(), options.getAnalysisStartTime().getTime(), options.getAnalysisEndTime().getTime());
+
+      out.println("sending the adhoc request to the server in shards of " + options.getShardSize() + " metrics...");
+      combined = sharding.run(adhocRequest);
+
+      long renderNanos = System.nanoTime();
+      for (ShardResult result : sharding.getResults()) {
+        out.println(mapper.writeValueAsString(result));
+      }
+      out.println("========== Sharded Canary Verdict ===========");
+      out.println("Shards: " + sharding.getResults().size());
+      if (combined) {
+        CanaryJudgeResult judgeResult = sharding.getJudgeResult();
+        for (CanaryJudgeGroupScore groupScore : judgeResult.getGroupScores()) {
+          out.println("Group " + groupScore.getName() + ": " + groupScore.getScore());
+        }
+        out.println("Score: " + judgeResult.getScore().getScore());
+        out.println("Grade: " + judgeResult.getScore().getClassification());
+        if (judgeResult.getScore().getClassificationReason() != null) {
+          out.println("Reason: " + judgeResult.getScore().getClassificationReason());
+        }
+      } else {
+        out.println("Score: not every shard completed");
+      }
+      out.println("=============================================");
+      timings.record(PhaseTimings.RENDER, System.nanoTime() - renderNanos);
+
+    } catch (IOException | RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+
+    if (options.isVerbose()) {
+      printStatistics(diagnostics, timings, HttpClient.getDefaultTransport());
+    }
+
+    out.println("done.");
+    return combined ? EXIT_OK : EXIT_ERROR;
+
+  }
+
+  /**
+   * Split the analysis window into sub-windows, run them concurrently and combine their scores.
+   * 
+   */
+  int runWindowed(CliOptions options, PrintStream out, PrintStream diagnostics, PhaseTimings timings) {
+
+    WindowedAnalysis analysis = 
+        new WindowedAnalysis(mapper, options.getWindowCount(), options.getWindowAggregation(), options.getBatchParallelism(), 
+                             options.getKayentaURL(), options.getMetricsAccount(), options.getStorageAccount());
+    analysis.setPollingStrategy(options.getPollingStrategy());
+    analysis.setTimings(timings);
+
+    boolean scored;
+    try {
+
+      AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper, getConfigCache(options));
+      adhocRequestBuilder.setTimings(timings);
+      long startTime = options.getAnalysisStartTime().getTime();
+      long endTime = options.getAnalysisEndTime().getTime();
+      CanaryAdhocExecutionRequest adhocRequest = adhocRequestBuilder.build(options.getRequestConfigFilename(), startTime, endTime);
+
+      out.println("sending " + options.getWindowCount() + " window requests to the server...");
+      scored = analysis.run(adhocRequest, startTime, endTime);
+
+      long renderNanos = System.nanoTime();
+      for (WindowResult result : analysis.getResults()) {
+        out.println(mapper.writeValueAsString(result));
+      }
+      out.println("========== Windowed Canary Verdict ==========");
+      out.println("Windows: " + analysis.getResults().size() + " (" + options.getWindowAggregation().name().toLowerCase() + ")");
+      if (scored) {
+        out.println("Score: " + analysis.getScore());
+        out.println("Grade: " + analysis.getClassification());
+      } else {
+        out.println("Score: not every window produced a score");
+      }
+      out.println("=============================================");
+      timings.record(PhaseTimings.RENDER, System.nanoTime() - renderNanos);
+
+    } catch (IOException | RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+
+    if (options.isVerbose()) {
+      printStatistics(diagnostics, timings, HttpClient.getDefaultTransport());
+    }
+
+    out.println("done.");
+    return scored ? EXIT_OK : EXIT_ERROR;
+
+  }
+
+  /**
+   * Expand the scope parameters with several values into one execution per scope, run them concurrently and combine
+   * their scores, listing the outlying scopes.
+   * 
+   */
+  int runFanOut(CliOptions options, PrintStream out, PrintStream diagnostics, PhaseTimings timings) {
+
+    ScopeFanOut fanOut = 
+        new ScopeFanOut(mapper, options.getFanOutAggregation(), options.getBatchParallelism(), 
+                        options.getKayentaURL(), options.getMetricsAccount(), options.getStorageAccount());
+    fanOut.setPollingStrategy(options.getPollingStrategy());
+    fanOut.setTimings(timings);
+    fanOut.setConfigCache(getConfigCache(options));
+
+    boolean scored;
+    try {
+
+      out.println("sending one request per scope to the server...");
+      scored = fanOut.run(options.getRequestConfigFilename(), options.getAnalysisStartTime().getTime(), options.getAnalysisEndTime().getTime());
+
+      long renderNanos = System.nanoTime();
+      int passed = 0;
+      int marginal = 0;
+      int failed = 0;
+      for (ScopeResult result : fanOut.getResults()) {
+        out.println(mapper.writeValueAsString(result));
+        if ("Pass".equals(result.getClassification())) passed++;
+        else if ("Marginal".equals(result.getClassification())) marginal++;
+        else if ("Fail".equals(result.getClassification())) failed++;
+      }
+      out.println("========== Fan-out Canary Verdict ===========");
+      out.println("Scopes: " + fanOut.getResults().size() + " (" + options.getFanOutAggregation().name().toLowerCase() + ")");
+      out.println("Pass: " + passed + ", Marginal: " + marginal + ", Fail: " + failed 
+                  + ", No score: " + (fanOut.getResults().size() - passed - marginal - failed));
+      if (scored) {
+        out.println("Score: " + fanOut.getScore());
+        out.println("Grade: " + fanOut.getClassification());
+      } else {
+        out.println("Score: not every scope produced a score");
+      }
+      for (ScopeResult outlier : fanOut.getOutliers()) {
+        String detail = outlier.getScore() == null ? "no score" : "score " + outlier.getScore();
+        if (outlier.getFailedMetrics() != null && !outlier.getFailedMetrics().isEmpty()) {
+          detail += ", failed " + StringUtils.join(outlier.getFailedMetrics(), ",");
+        }
+        out.println("Outlier: " + outlier.getScope() + " (" + detail + ")");
+      }
+      out.println("=============================================");
+      timings.record(PhaseTimings.RENDER, System.nanoTime() - renderNanos);
+
+    } catch (IOException | RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+
+    if (options.isVerbose()) {
+      printStatistics(diagnostics, timings, HttpClient.getDefaultTransport());
+    }
+
+    out.println("done.");
+    return scored ? EXIT_OK : EXIT_ERROR;
+
+  }
+
+  /**
+   * Run every request of the batch manifest.
+   * 
+   */
+  int runBatch(CliOptions options, PrintStream out, PrintStream diagnostics, PhaseTimings timings) {
+
+    BatchRunner batchRunner = new BatchRunner(mapper, options.getBatchParallelism(), options.getRequestConfigFilename(), options.getKayentaURL(), 
+                                              options.getMetricsAccount(), options.getStorageAccount(), 
+                                              options.getAnalysisStartTime().getTime(), options.getAnalysisEndTime().getTime());
+    batchRunner.setPollingStrategy(options.getPollingStrategy());
+    batchRunner.setConfigCache(getConfigCache(options));
+    batchRunner.setTimings(timings);
+    batchRunner.setPriority(options.getPriority());
+    if (options.getHistoryDirectory() != null) batchRunner.setHistory(new HistoryStore(options.getHistoryDirectory()));
+
+    int failed = 0;
+    PrintStream resultsOut = out;
+    try {
+      if (options.getBatchOutputFilename() != null) resultsOut = new PrintStream(options.getBatchOutputFilename(), "UTF-8");
+      failed = batchRunner.run(options.getBatchManifestFilename(), resultsOut);
+    } catch (FileNotFoundException | UnsupportedEncodingException | RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    } finally {
+      if (resultsOut != out) resultsOut.close();
+    }
+
+    if (options.isVerbose()) {
+      printStatistics(diagnostics, timings, HttpClient.getDefaultTransport());
+    }
+
+    if (failed > 0) {
+      diagnostics.println(failed + " batch execution(s) did not complete successfully.");
+      return EXIT_BATCH_FAILURES;
+    }
+
+    return EXIT_OK;
+
+  }
+
+  /**
+   * Query the history store and print one JSON line per row.
+   * 
+   */
+  int runHistoryQuery(CliOptions options, PrintStream out, PrintStream diagnostics) {
+
+    String directory = options.getHistoryDirectory() != null ? options.getHistoryDirectory() : HistoryStore.DEFAULT_DIRECTORY;
+    try {
+      long startNanos = System.nanoTime();
+      HistoryStore.Snapshot snapshot = new HistoryStore(directory).open();
+      List<?> rows = options.getHistoryQuery().run(snapshot);
+      long queryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      for (Object row : rows) {
+        out.println(mapper.writeValueAsString(row));
+      }
+      if (options.isVerbose()) {
+        diagnostics.println("History store: " + snapshot + ", query: " + queryMillis + " ms");
+      }
+    } catch (IOException | RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+
+    return EXIT_OK;
+
+  }
+
+  /**
+   * Submit the request repeatedly, as configured by the load generator options, and report its latencies.
+   * 
+   */
+  int runLoad(CliOptions options, PrintStream out, PrintStream diagnostics) {
+
+    try {
+
+      CanaryAdhocExecutionRequest adhocRequest = 
+          new AdhocRequestBuilder(mapper, getConfigCache(options))
+          .build(options.getRequestConfigFilename(), options.getAnalysisStartTime().getTime(), options.getAnalysisEndTime().getTime());
+
+      LoadGenerator loadGenerator = 
+          new LoadGenerator(mapper, HttpClient.getDefaultTransport(), options.getLoadGeneratorConfig(), adhocRequest, options.getKayentaURL(), 
+                            options.getMetricsAccount(), options.getStorageAccount(), options.getPollingStrategy(), out);
+      loadGenerator.run();
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      diagnostics.println("interrupted.");
+      return EXIT_ERROR;
+    } catch (RuntimeException ex) {
+      diagnostics.println(ex.getMessage());
+      return EXIT_ERROR;
+    }
+
+    if (options.isVerbose()) {
+      out.println("HTTP transport: " + HttpClient.getDefaultTransport().getStats());
+    }
+
+    return EXIT_OK;
+
+  }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryConfig;
+import com.netflix.kayenta.canary.CanaryExecutionRequest;
+import com.netflix.kayenta.canary.CanaryScope;
+import com.netflix.kayenta.canary.CanaryScopePair;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cache of built (compiled) adhoc execution requests, keyed by a hash of the request configuration file content and
+ * the metric provider set that expanded it. Recently used requests are kept in memory, which spares the daemon and
+ * batches from reading them back; every entry is also stored on disk as gzip compressed JSON, written through a
+ * temporary file so concurrent runs never read a partial entry. An unreadable entry is treated as a miss.
+ * <p>
+ * A hit returns a copy that shares the (read-only) metric configurations of the cached request but has its own scopes,
+ * so callers may set the analysis window, and has the current time as its created and updated timestamps.
+ */
+@Slf4j
+public class CompiledConfigCache {
+
+  public static final String DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".kayenta-cli", "cache").toString();
+
+  // bump whenever the way a request is built changes, so stale entries are no longer hit
+  static final int FORMAT_VERSION = 1;
+  static final String SUFFIX = ".json.gz";
+
+  public static final int DEFAULT_MAX_MEMORY_ENTRIES = 64;
+
+  final Path directory;
+  final ObjectMapper mapper;
+
+  // cached requests by key, in access order; guarded by itself
+  final LinkedHashMap<String, CanaryAdhocExecutionRequest> memory;
+
+  public CompiledConfigCache(String directory, ObjectMapper mapper) {
+    this(directory, mapper, DEFAULT_MAX_MEMORY_ENTRIES);
+  }
+
+  /**
+   * @param directory
+   * @param mapper
+   * @param maxMemoryEntries how many requests are kept in memory, 0 to read every hit from disk
+   */
+  public CompiledConfigCache(String directory, ObjectMapper mapper, int maxMemoryEntries) {
+    super();
+    this.directory = Paths.get(directory);
+    this.mapper = mapper;
+    this.memory = new LinkedHashMap<String, CanaryAdhocExecutionRequest>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CanaryAdhocExecutionRequest> eldest) {
+        return size() > maxMemoryEntries;
+      }
+    };
+  }
+
+  /**
+   * Compute the cache key of a request configuration.
+   * 
+   * @param configContent the content of the request configuration file
+   * @return a hex encoded SHA-256 hash.
+   */
+  public String key(byte[] configContent) {
+    return key(configContent, "");
+  }
+
+  /**
+   * Compute the cache key of a variant of the request built from a request configuration, e.g. the one the requests
+   * of a fan-out are copied from.
+   * 
+   * @param configContent the content of the request configuration file
+   * @param variant the name of the variant, empty for the request itself
+   * @return a hex encoded SHA-256 hash.
+   */
+  public String key(byte[] configContent, String variant) {
+    MetricProviderRegistry registry = MetricProviderRegistry.getInstance();
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    hasher.putBytes(configContent);
+    hasher.putString(variant, StandardCharsets.UTF_8);
+    for (Map.Entry<String, Class<?>> provider : new TreeMap<>(registry.getProviders()).entrySet()) {
+      hasher.putString(provider.getKey(), StandardCharsets.UTF_8).putString(provider.getValue().getName(), StandardCharsets.UTF_8);
+    }
+    for (Map.Entry<String, MetricQueryFactory> queryFactory : new TreeMap<>(registry.getQueryFactories()).entrySet()) {
+      hasher.putString(queryFactory.getKey(), StandardCharsets.UTF_8).putString(queryFactory.getValue().getClass().getName(), StandardCharsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Get a cached request.
+   * 
+   * @param key
+   * @return the request, or null if it is not cached.
+   */
+  public CanaryAdhocExecutionRequest get(String key) {
+    CanaryAdhocExecutionRequest cached;
+    synchronized (memory) {
+      cached = memory.get(key);
+    }
+    if (cached != null) {
+      log.debug("Compiled config cache memory hit {}", key);
+      return copy(cached);
+    }
+
+    Path entry = directory.resolve(key + SUFFIX);
+    if (!Files.isRegularFile(entry)) return null;
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(entry))) {
+      cached = mapper.readValue(in, CanaryAdhocExecutionRequest.class);
+      log.debug("Compiled config cache hit {}", entry);
+    } catch (IOException | RuntimeException ex) {
+      log.warn("Ignoring unreadable compiled config cache entry {}", entry, ex);
+      return null;
+    }
+    synchronized (memory) {
+      memory.put(key, cached);
+    }
+    return copy(cached);
+  }
+
+  /**
+   * Cache a request; failures are logged and otherwise ignored.
+   * 
+   * @param key
+   * @param adhocRequest
+   */
+  public void put(String key, CanaryAdhocExecutionRequest adhocRequest) {
+    // the caller keeps using the request it built, so a copy is kept
+    synchronized (memory) {
+      memory.put(key, copy(adhocRequest));
+    }
+    Path entry = directory.resolve(key + SUFFIX);
+    Path temporary = null;
+    try {
+      Files.createDirectories(directory);
+      temporary = Files.createTempFile(directory, key, ".tmp");
+      try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary))) {
+        mapper.writeValue(out, adhocRequest);
+      }
+      Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      log.debug("Compiled config cache stored {}", entry);
+    } catch (IOException | RuntimeException ex) {
+      log.warn("Unable to store compiled config cache entry {}", entry, ex);
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException ignored) {
+          // best effort
+        }
+      }
+    }
+  }
+
+  /**
+   * Copy a request, sharing its metric configurations, templates and classifier but not its scopes, with the current
+   * time as its created and updated timestamps.
+   */
+  static CanaryAdhocExecutionRequest copy(CanaryAdhocExecutionRequest adhocRequest) {
+
+    long now = System.currentTimeMillis();
+    CanaryConfig canaryConfig = adhocRequest.getCanaryConfig();
+    CanaryConfig configCopy = 
+        CanaryConfig.builder()
+        .name(canaryConfig.getName())
+        .applications(canaryConfig.getApplications())
+        .judge(canaryConfig.getJudge())
+        .metrics(canaryConfig.getMetrics())
+        .templates(canaryConfig.getTemplates())
+        .classifier(canaryConfig.getClassifier())
+        .createdTimestamp(now)
+        .createdTimestampIso(Instant.ofEpochMilli(now).toString())
+        .updatedTimestamp(now)
+        .updatedTimestampIso(Instant.ofEpochMilli(now).toString())
+        .build();
+
+    CanaryExecutionRequest executionRequest = adhocRequest.getExecutionRequest();
+    Map<String, CanaryScopePair> scopes = new HashMap<>();
+    for (Map.Entry<String, CanaryScopePair> scopePair : executionRequest.getScopes().entrySet()) {
+      CanaryScopePair pairCopy = new CanaryScopePair();
+      pairCopy.setControlScope(copy(scopePair.getValue().getControlScope()));
+      pairCopy.setExperimentScope(copy(scopePair.getValue().getExperimentScope()));
+      scopes.put(scopePair.getKey(), pairCopy);
+    }
+    CanaryExecutionRequest requestCopy = new CanaryExecutionRequest();
+    requestCopy.setScopes(scopes);
+    requestCopy.setThresholds(executionRequest.getThresholds());
+    requestCopy.setMetadata(executionRequest.getMetadata() != null ? new ArrayList<>(executionRequest.getMetadata()) : null);
+    requestCopy.setSiteLocal(executionRequest.getSiteLocal() != null ? new HashMap<>(executionRequest.getSiteLocal()) : null);
+
+    CanaryAdhocExecutionRequest copy = new CanaryAdhocExecutionRequest();
+    copy.setCanaryConfig(configCopy);
+    copy.setExecutionRequest(requestCopy);
+    return copy;
+
+  }
+
+  private static CanaryScope copy(CanaryScope scope) {
+    CanaryScope copy = new CanaryScope();
+    copy.setScope(scope.getScope());
+    copy.setLocation(scope.getLocation());
+    copy.setStart(scope.getStart());
+    copy.setEnd(scope.getEnd());
+    copy.setStep(scope.getStep());
+    copy.setExtendedScopeParams(scope.getExtendedScopeParams() != null ? new HashMap<>(scope.getExtendedScopeParams()) : null);
+    return copy;
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+/**
+ * Runs the requests of a windowed, sharded or fan-out analysis as concurrent executions of one
+ * <code>KayentaClient</code>, at most <code>parallelism</code> in flight at a time. Requests are sent on the client's
+ * executor and polled by its execution tracker, so an execution waiting for its verdict holds no thread.
+ */
+public class ConcurrentExecutions {
+
+  /**
+   * Turns the outcome of one execution into its result; called on a sender or poll thread.
+   */
+  public interface Completion<R> {
+
+    /**
+     * @param index the position of the request
+     * @param canaryExecutionId or null if the request could not be sent
+     * @param status the final status (not complete if the execution timed out), or null on error
+     * @param error why the request could not be sent or polled, or null
+     * @return the result of the execution.
+     */
+    R completed(int index, String canaryExecutionId, CanaryExecutionStatusResponse status, Throwable error);
+
+  }
+
+  /**
+   * Run one execution per request and wait for all of them.
+   *
+   * @param client
+   * @param requests
+   * @param parallelism the maximum number of executions in flight
+   * @param kind what the requests are, for error messages (e.g. "window")
+   * @param completion
+   * @return the results, in the order of the requests.
+   */
+  public static <R> List<R> run(KayentaClient client, List<CanaryAdhocExecutionRequest> requests, int parallelism, String kind,
+                                Completion<R> completion) {
+
+    Semaphore permits = new Semaphore(parallelism);
+    List<CompletableFuture<R>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < requests.size(); i++) {
+        permits.acquire();
+        futures.add(execute(client, i, requests.get(i), completion).whenComplete((result, ex) -> permits.release()));
+      }
+      List<R> results = new ArrayList<>();
+      for (CompletableFuture<R> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the "+kind+" executions to complete", ex);
+    } catch (ExecutionException ex) {
+      throw new RuntimeException("Unable to complete the "+kind+" executions, reason: "+ex.getMessage(), ex);
+    }
+
+  }
+
+  private static <R> CompletableFuture<R> execute(KayentaClient client, int index, CanaryAdhocExecutionRequest request, Completion<R> completion) {
+    PollingStrategy strategy = client.getPollingStrategy().estimateFor(request);
+    String[] canaryExecutionId = { null };
+    return client.sendAsync(request)
+        .thenCompose(id -> {
+          canaryExecutionId[0] = id;
+          return client.track(id, strategy);
+        })
+        .handle((status, ex) -> completion.completed(index, canaryExecutionId[0], status, unwrap(ex)));
+  }
+
+  private static Throwable unwrap(Throwable ex) {
+    return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+  }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+
+/**
+ * Writes a header and one row per metric with the selected fields (RFC 4180 quoting). Groups are joined with
+ * <code>;</code> and metadata maps are written as JSON. Without per-metric results no rows are written.
+ */
+public class CsvResultRenderer implements ResultRenderer {
+
+  static final String LINE_SEPARATOR = "\r\n";
+
+  final ObjectMapper mapper;
+  final Set<Field> fields;
+
+  public CsvResultRenderer(ObjectMapper mapper, Set<Field> fields) {
+    super();
+    this.mapper = mapper;
+    this.fields = fields;
+  }
+
+  @Override
+  public void render(String statusURL, String canaryExecutionId, CanaryExecutionStatusResponse status, Writer out) throws IOException {
+
+    CanaryJudgeResult judgeResult = JsonResultRenderer.getJudgeResult(status);
+    CanaryJudgeScore judgeScore = judgeResult != null ? judgeResult.getScore() : null;
+    List<CanaryAnalysisResult> results = 
+        judgeResult != null && judgeResult.getResults() != null ? judgeResult.getResults() : Collections.<CanaryAnalysisResult>emptyList();
+
+    boolean first = true;
+    for (Field field : fields) {
+      if (!first) out.write(',');
+      out.write(field.getLabel());
+      first = false;
+    }
+    out.write(LINE_SEPARATOR);
+
+    for (CanaryAnalysisResult result : results) {
+      first = true;
+      for (Field field : fields) {
+        if (!first) out.write(',');
+        writeValue(out, getValue(field, canaryExecutionId, judgeScore, result));
+        first = false;
+      }
+      out.write(LINE_SEPARATOR);
+    }
+
+  }
+
+  String getValue(Field field, String canaryExecutionId, CanaryJudgeScore judgeScore, CanaryAnalysisResult result) throws IOException {
+    switch (field) {
+      case EXECUTION:
+        return canaryExecutionId;
+      case SCORE:
+        return String.valueOf(judgeScore.getScore());
+      case GRADE:
+        return judgeScore.getClassification();
+      case METRIC:
+        return result.getName();
+      case CLASSIFICATION:
+        return result.getClassification();
+      case REASON:
+        return result.getClassificationReason();
+      case GROUPS:
+        return result.getGroups() != null ? String.join(";", result.getGroups()) : null;
+      case CRITICAL:
+        return String.valueOf(result.isCritical());
+      case EXPERIMENT:
+        return mapper.writeValueAsString(result.getExperimentMetadata());
+      case CONTROL:
+        return mapper.writeValueAsString(result.getControlMetadata());
+      default:
+        return mapper.writeValueAsString(result.getResultMetadata());
+    }
+  }
+
+  static void writeValue(Writer out, String value) throws IOException {
+    if (value == null) return;
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      out.write(value);
+      return;
+    }
+    out.write('"');
+    out.write(value.replace("\"", "\"\""));
+    out.write('"');
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The thin <code>--submit</code> front end: forwards the arguments to a running <code>DaemonServer</code> and streams
+ * its output back. It deliberately avoids everything the daemon keeps warm (Kayenta object mapper, provider registry).
+ */
+public class DaemonClient {
+
+  /**
+   * Submit the arguments (minus <code>--submit</code>) to the daemon listening on the loopback port.
+   * 
+   * @param port
+   * @param args
+   * @param out
+   * @param err where the error and diagnostic messages of a machine-readable output are written
+   * @return the exit status of the invocation.
+   */
+  public static int submit(int port, String[] args, PrintStream out, PrintStream err) {
+
+    DaemonServer.SubmitRequest request = new DaemonServer.SubmitRequest();
+    try {
+      request.setToken(new String(Files.readAllBytes(DaemonServer.tokenPath(port)), StandardCharsets.UTF_8).trim());
+    } catch (IOException ex) {
+      out.println("No kayenta-cli daemon token was found in " + DaemonServer.tokenPath(port) + " (start a daemon with --daemon).");
+      return CommandRunner.EXIT_ERROR;
+    }
+    request.setWorkingDirectory(System.getProperty("user.dir"));
+    List<String> forwarded = new ArrayList<>();
+    for (String arg : args) {
+      if (!arg.equals("--submit") && !arg.equals("-submit")) forwarded.add(arg);
+    }
+    request.setArgs(forwarded);
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+
+      OutputStream requestOut = socket.getOutputStream();
+      requestOut.write(new ObjectMapper().writeValueAsBytes(request));
+      requestOut.write('\n');
+      requestOut.flush();
+
+      Reader in = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+      char[] buffer = new char[8192];
+      StringBuilder exitStatus = null;
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+          if (exitStatus == null && buffer[i] == DaemonServer.END_OF_OUTPUT) {
+            out.print(new String(buffer, start, i - start));
+            exitStatus = new StringBuilder();
+            start = i + 1;
+          }
+        }
+        if (exitStatus == null) {
+          out.print(new String(buffer, start, count - start));
+        } else {
+          exitStatus.append(buffer, start, count - start);
+        }
+        out.flush();
+      }
+
+      if (exitStatus == null) {
+        out.println("The daemon closed the connection before the request completed.");
+        return CommandRunner.EXIT_ERROR;
+      }
+      // the exit status, then the diagnostics if there are any
+      int newline = exitStatus.indexOf("\n");
+      if (newline >= 0) {
+        err.print(exitStatus.substring(newline + 1));
+        err.flush();
+        exitStatus.setLength(newline);
+      }
+      return Integer.parseInt(exitStatus.toString().trim());
+
+    } catch (ConnectException ex) {
+      out.println("No kayenta-cli daemon is listening on port " + port + " (start one with --daemon).");
+      return CommandRunner.EXIT_ERROR;
+    } catch (IOException | NumberFormatException ex) {
+      out.println("Unable to submit the request to the daemon, reason: " + ex.getMessage());
+      return CommandRunner.EXIT_ERROR;
+    }
+
+  }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.io.BaseEncoding;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resident client that keeps the JVM, the object mapper, the metric provider registry and the HTTP connection pool
+ * warm, and runs the invocations forwarded by <code>--submit</code>. It only listens on the loopback interface.
+ * <p>
+ * The loopback port is reachable by every local user (and by browsers), so a submission must carry the secret token
+ * the daemon writes, readable by its own user only, to <code>~/.kayenta-cli/daemon-PORT.token</code> when it starts.
+ * The files a submission reads or writes must be inside the submitter's working directory.
+ * <p>
+ * Protocol: the submitter sends one JSON line (a <code>SubmitRequest</code>); the daemon streams back the output of
+ * the invocation, followed by a NUL character and the exit status, then (after a newline) the error and diagnostic
+ * messages that a machine-readable output keeps out of the output, if any, and closes the connection.
+ */
+@Slf4j
+public class DaemonServer {
+
+  public static final char END_OF_OUTPUT = '\0';
+
+  // submissions run at once; more wait in a bounded queue and the rest are turned away
+  public static final int MAX_CONCURRENT_SUBMISSIONS = 32;
+  public static final int MAX_QUEUED_SUBMISSIONS = 128;
+
+  // how long a connection may take to send its request line
+  static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+  /**
+   * One forwarded invocation; relative file names in the arguments are resolved against the submitter's working directory.
+   */
+  @Data
+  public static class SubmitRequest {
+    private String token;
+    private String workingDirectory;
+    private List<String> args;
+  }
+
+  final int port;
+  final ObjectMapper mapper;
+  // the daemon-wide arguments the daemon was started with; see CliOptions.daemonWideArguments
+  final List<String> daemonWideArguments;
+  final CommandRunner commandRunner;
+  final ThreadPoolExecutor executor = 
+      new ThreadPoolExecutor(MAX_CONCURRENT_SUBMISSIONS, MAX_CONCURRENT_SUBMISSIONS, 60, TimeUnit.SECONDS, 
+                             new ArrayBlockingQueue<>(MAX_QUEUED_SUBMISSIONS));
+  byte[] token;
+
+  /**
+   * @param port
+   * @param mapper
+   * @param args the command line arguments of the daemon
+   */
+  public DaemonServer(int port, ObjectMapper mapper, String[] args) {
+    super();
+    this.port = port;
+    this.mapper = mapper;
+    this.daemonWideArguments = CliOptions.daemonWideArguments(args);
+    this.commandRunner = new CommandRunner(mapper);
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * The file holding the secret token of the daemon listening on the port.
+   */
+  public static Path tokenPath(int port) {
+    return Paths.get(System.getProperty("user.home"), ".kayenta-cli", "daemon-" + port + ".token");
+  }
+
+  /**
+   * Generate a new token and write it to the token file, readable and writable by the current user only.
+   */
+  static byte[] writeToken(int port) throws IOException {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    String token = BaseEncoding.base16().lowerCase().encode(secret);
+
+    Path path = tokenPath(port);
+    Files.createDirectories(path.getParent());
+    Files.deleteIfExists(path);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createFile(path);
+    }
+    Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+    return token.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Accept submissions until the process is stopped.
+   * 
+   * @throws IOException if the port cannot be bound.
+   */
+  public void run() throws IOException {
+
+    // warm up everything a submission needs before accepting the first one
+    MetricProviderRegistry.getInstance();
+
+    try (ServerSocket serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+      token = writeToken(port);
+      System.out.println("kayenta-cli daemon listening on " + serverSocket.getLocalSocketAddress() + ", token in " + tokenPath(port));
+      while (!Thread.currentThread().isInterrupted()) {
+        Socket socket = serverSocket.accept();
+        try {
+          executor.execute(() -> handle(socket));
+        } catch (RejectedExecutionException ex) {
+          reject(socket);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      Files.deleteIfExists(tokenPath(port));
+    }
+
+  }
+
+  void reject(Socket socket) {
+    try (Socket connection = socket;
+         PrintStream out = new PrintStream(new BufferedOutputStream(connection.getOutputStream()), true, "UTF-8")) {
+      out.println("The daemon is busy with " + MAX_CONCURRENT_SUBMISSIONS + " running and " + MAX_QUEUED_SUBMISSIONS + " queued submissions, try again later.");
+      out.print(END_OF_OUTPUT);
+      out.print(CommandRunner.EXIT_ERROR);
+      out.flush();
+    } catch (IOException ex) {
+      log.warn("Unable to reject submitted request", ex);
+    }
+  }
+
+  void handle(Socket socket) {
+
+    try (Socket connection = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+         PrintStream out = new PrintStream(new BufferedOutputStream(connection.getOutputStream()), true, "UTF-8")) {
+
+      int exitStatus;
+      ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+      try {
+        connection.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        String requestLine = in.readLine();
+        connection.setSoTimeout(0);
+        if (requestLine == null) return;
+        SubmitRequest request = mapper.readValue(requestLine, SubmitRequest.class);
+        if (!authenticated(request)) {
+          log.warn("Rejected a submission without a valid token from {}", connection.getRemoteSocketAddress());
+          out.println("The submission was rejected: it does not carry the token in " + tokenPath(port) + ".");
+          exitStatus = CommandRunner.EXIT_ERROR;
+        } else {
+          exitStatus = execute(request, out, new PrintStream(diagnostics, true, "UTF-8"));
+        }
+      } catch (IOException | RuntimeException ex) {
+        log.warn("Unable to run submitted request", ex);
+        out.println(ex.getMessage());
+        exitStatus = CommandRunner.EXIT_ERROR;
+      }
+
+      out.print(END_OF_OUTPUT);
+      out.print(exitStatus);
+      if (diagnostics.size() > 0) {
+        out.print('\n');
+        out.print(new String(diagnostics.toByteArray(), StandardCharsets.UTF_8));
+      }
+      out.flush();
+
+    } catch (IOException ex) {
+      log.warn("Unable to respond to submitted request", ex);
+    }
+
+  }
+
+  boolean authenticated(SubmitRequest request) {
+    return token != null && request.getToken() != null 
+        && MessageDigest.isEqual(token, request.getToken().getBytes(StandardCharsets.UTF_8));
+  }
+
+  int execute(SubmitRequest request, PrintStream out, PrintStream err) {
+
+    CliOptions options;
+    try {
+      options = CliOptions.parse(request.getArgs().toArray(new String[0]));
+    } catch (IllegalArgumentException ex) {
+      out.println(ex.getMessage());
+      out.println(CliOptions.usage());
+      return CommandRunner.EXIT_INVALID_ARGUMENTS;
+    }
+
+    if (options.isHelp()) {
+      out.println(CliOptions.usage());
+      return CommandRunner.EXIT_OK;
+    }
+
+    // the transport, submission governor, execution cache and config store are shared by all submissions, so a
+    // submission cannot change them; it is refused rather than run with settings it did not ask for
+    List<String> ignored = new ArrayList<>(CliOptions.daemonWideArguments(request.getArgs().toArray(new String[0])));
+    ignored.removeAll(daemonWideArguments);
+    if (!ignored.isEmpty()) {
+      out.println("The arguments " + StringUtils.join(ignored, ", ") + " differ from those the daemon was started with; "
+                  + "they apply to every submission, so the daemon has to be restarted with them.");
+      return CommandRunner.EXIT_INVALID_ARGUMENTS;
+    }
+
+    try {
+      String workingDirectory = request.getWorkingDirectory();
+      options.setRequestConfigFilename(resolve(workingDirectory, options.getRequestConfigFilename()));
+      options.setBatchManifestFilename(resolve(workingDirectory, options.getBatchManifestFilename()));
+      options.setBatchOutputFilename(resolve(workingDirectory, options.getBatchOutputFilename()));
+      options.setConfigCacheDirectory(resolve(workingDirectory, options.getConfigCacheDirectory()));
+      options.setTimingsFilename(resolve(workingDirectory, options.getTimingsFilename()));
+      options.setPrometheusFilename(resolve(workingDirectory, options.getPrometheusFilename()));
+      options.setHistoryDirectory(resolve(workingDirectory, options.getHistoryDirectory()));
+    } catch (IllegalArgumentException ex) {
+      out.println(ex.getMessage());
+      return CommandRunner.EXIT_INVALID_ARGUMENTS;
+    }
+
+    return commandRunner.run(options, out, err);
+
+  }
+
+  /**
+   * Resolve a file name of a submission against the submitter's working directory, rejecting names (absolute, or
+   * relative with ..) that lead outside of it.
+   * 
+   * @param workingDirectory the absolute working directory of the submitter.
+   * @param filename
+   * @return the resolved file name.
+   */
+  static String resolve(String workingDirectory, String filename) {
+    if (filename == null) return null;
+    if (workingDirectory == null || !Paths.get(workingDirectory).isAbsolute()) {
+      throw new IllegalArgumentException("The submission does not name an absolute working directory.");
+    }
+    Path directory = Paths.get(workingDirectory).normalize();
+    Path resolved = directory.resolve(filename).normalize();
+    if (!resolved.startsWith(directory)) {
+      throw new IllegalArgumentException("The file " + filename + " is outside of the working directory " + directory + " of the submission.");
+    }
+    return resolved.toString();
+  }
+
+}
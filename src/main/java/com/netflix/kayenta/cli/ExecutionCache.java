@@ -0,0 +1,365 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cache of executions keyed by a fingerprint of the request that started them, so an identical request (e.g. from a
+ * retried pipeline stage, or another team gating on the same service) reuses an execution that is still in flight, or
+ * gets its verdict right away, instead of making Kayenta query the metric stores again. Identical requests sent at the
+ * same time from one process share a single POST.
+ * <p>
+ * Entries are kept in memory, bounded in number and evicted least recently used first, and optionally in a directory so
+ * they are shared by separate runs. An in-flight entry expires with the polling timeout of its execution, a verdict
+ * after the configured time to live. Executions that end without a verdict are forgotten, so the next identical request
+ * is sent again.
+ */
+@Slf4j
+public class ExecutionCache {
+
+  public static final long DEFAULT_TTL_MILLIS = 15 * 60 * 1000;
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  // bump whenever the fingerprinted content changes, so stale entries are no longer hit
+  static final int FORMAT_VERSION = 1;
+  static final String SUFFIX = ".json.gz";
+
+  // set to "now" every time a request is built, so they would make every fingerprint unique
+  static final String[] IGNORED_CONFIG_FIELDS = { "createdTimestamp", "createdTimestampIso", "updatedTimestamp", "updatedTimestampIso" };
+
+  private static volatile ExecutionCache defaultCache;
+
+  /**
+   * A cached execution; the status is null while it is in flight.
+   */
+  @Data
+  public static class Entry {
+    private String canaryExecutionId;
+    private long expiresAt;
+    private boolean metricResults;
+    private CanaryExecutionStatusResponse status;
+  }
+
+  final ObjectMapper mapper;
+  final long ttlMillis;
+  final int maxEntries;
+  final Path directory;
+
+  // fingerprint to entry, in access order
+  final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // canary execution id to fingerprint
+  final Map<String, String> fingerprints = new HashMap<>();
+  // requests being sent, by fingerprint
+  final Map<String, CompletableFuture<String>> sending = new ConcurrentHashMap<>();
+
+  long hits = 0;
+  long misses = 0;
+
+  /**
+   * @param mapper
+   * @param ttlMillis how long a verdict is reused
+   * @param maxEntries
+   * @param directory where entries are also stored, or null to keep them in memory only
+   */
+  public ExecutionCache(ObjectMapper mapper, long ttlMillis, int maxEntries, String directory) {
+    super();
+    this.mapper = mapper;
+    this.ttlMillis = ttlMillis;
+    this.maxEntries = maxEntries;
+    this.directory = directory != null ? Paths.get(directory) : null;
+  }
+
+  /**
+   * The cache used by clients that are not given one, or null if executions are not cached.
+   */
+  public static ExecutionCache getDefault() {
+    return defaultCache;
+  }
+
+  public static void setDefault(ExecutionCache cache) {
+    defaultCache = cache;
+  }
+
+  /**
+   * Compute the fingerprint of a request: a hash of its canonical JSON form (object fields sorted by name), without the
+   * config timestamps, together with where it is sent.
+   * 
+   * @param mapper
+   * @param adhocRequest
+   * @param kayentaURL
+   * @param metricsAccount
+   * @param storageAccount
+   * @return a hex encoded SHA-256 hash.
+   */
+  public static String fingerprint(ObjectMapper mapper, CanaryAdhocExecutionRequest adhocRequest, 
+                                   String kayentaURL, String metricsAccount, String storageAccount) {
+    JsonNode request = mapper.valueToTree(adhocRequest);
+    JsonNode canaryConfig = request.get("canaryConfig");
+    if (canaryConfig instanceof ObjectNode) {
+      ((ObjectNode) canaryConfig).remove(Arrays.asList(IGNORED_CONFIG_FIELDS));
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    for (String value : new String[] { kayentaURL, metricsAccount, storageAccount }) {
+      hasher.putString(value != null ? value : "", StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+    try {
+      hasher.putBytes(mapper.writeValueAsBytes(canonical(request)));
+    } catch (IOException ex) {
+      throw new RuntimeException("Unable to fingerprint the canary adhoc execution request, reason: " + ex.getMessage(), ex);
+    }
+    return hasher.hash().toString();
+  }
+
+  static JsonNode canonical(JsonNode node) {
+    if (node.isObject()) {
+      List<String> names = new ArrayList<>();
+      node.fieldNames().forEachRemaining(names::add);
+      Collections.sort(names);
+      ObjectNode sorted = ((ObjectNode) node).objectNode();
+      for (String name : names) {
+        sorted.set(name, canonical(node.get(name)));
+      }
+      return sorted;
+    }
+    if (node.isArray()) {
+      for (int i = 0; i < node.size(); i++) {
+        ((ArrayNode) node).set(i, canonical(node.get(i)));
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Get the execution started by an identical request, or send the request. Concurrent callers with the same fingerprint
+   * wait for the one that sends it.
+   * 
+   * @param fingerprint
+   * @param sender sends the request and returns the canary execution id
+   * @param timeoutMillis how long the execution is polled for, i.e. how long it is reused while in flight
+   * @return the canary execution id.
+   */
+  public String getOrSend(String fingerprint, Supplier<String> sender, long timeoutMillis) {
+
+    CompletableFuture<String> sent = new CompletableFuture<>();
+    CompletableFuture<String> other = sending.putIfAbsent(fingerprint, sent);
+    if (other != null) {
+      try {
+        return other.join();
+      } catch (CompletionException ex) {
+        throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+      }
+    }
+
+    try {
+      Entry entry = get(fingerprint);
+      if (entry != null) {
+        log.debug("Reusing execution {} of an identical request", entry.getCanaryExecutionId());
+        sent.complete(entry.getCanaryExecutionId());
+        return entry.getCanaryExecutionId();
+      }
+      String canaryExecutionId = sender.get();
+      Entry inFlight = new Entry();
+      inFlight.setCanaryExecutionId(canaryExecutionId);
+      inFlight.setExpiresAt(System.currentTimeMillis() + timeoutMillis);
+      put(fingerprint, inFlight);
+      sent.complete(canaryExecutionId);
+      return canaryExecutionId;
+    } catch (RuntimeException ex) {
+      sent.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      sending.remove(fingerprint);
+    }
+
+  }
+
+  /**
+   * Get the cached final status of an execution.
+   * 
+   * @param canaryExecutionId
+   * @param metricResults whether the per-metric results are needed
+   * @return the status, or null if the execution has no cached verdict (with the per-metric results if needed).
+   */
+  public CanaryExecutionStatusResponse getResult(String canaryExecutionId, boolean metricResults) {
+    String fingerprint;
+    synchronized (this) {
+      fingerprint = fingerprints.get(canaryExecutionId);
+    }
+    Entry entry = fingerprint != null ? get(fingerprint) : null;
+    if (entry == null || entry.getStatus() == null || (metricResults && !entry.isMetricResults())) return null;
+    return entry.getStatus();
+  }
+
+  /**
+   * Record the final status of an execution: a verdict is kept for the time to live, anything else (a failed, timed out
+   * or unreachable execution) is forgotten.
+   * 
+   * @param canaryExecutionId
+   * @param status
+   * @param metricResults whether the status includes the per-metric results
+   */
+  public void completed(String canaryExecutionId, CanaryExecutionStatusResponse status, boolean metricResults) {
+    String fingerprint;
+    synchronized (this) {
+      fingerprint = fingerprints.get(canaryExecutionId);
+    }
+    if (fingerprint == null) return;
+    if (status == null || !Boolean.TRUE.equals(status.getComplete()) 
+        || status.getResult() == null || status.getResult().getJudgeResult() == null) {
+      remove(fingerprint);
+      return;
+    }
+    Entry entry = new Entry();
+    entry.setCanaryExecutionId(canaryExecutionId);
+    entry.setExpiresAt(System.currentTimeMillis() + ttlMillis);
+    entry.setMetricResults(metricResults);
+    entry.setStatus(status);
+    put(fingerprint, entry);
+  }
+
+  Entry get(String fingerprint) {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Entry entry = entries.get(fingerprint);
+      if (entry != null && entry.getExpiresAt() > now) {
+        hits++;
+        return entry;
+      }
+    }
+    Entry entry = read(fingerprint);
+    if (entry != null && entry.getExpiresAt() > now) {
+      synchronized (this) {
+        hits++;
+        remember(fingerprint, entry);
+      }
+      return entry;
+    }
+    remove(fingerprint);
+    synchronized (this) {
+      misses++;
+    }
+    return null;
+  }
+
+  void put(String fingerprint, Entry entry) {
+    synchronized (this) {
+      remember(fingerprint, entry);
+    }
+    write(fingerprint, entry);
+  }
+
+  void remove(String fingerprint) {
+    synchronized (this) {
+      Entry entry = entries.remove(fingerprint);
+      if (entry != null) fingerprints.remove(entry.getCanaryExecutionId());
+    }
+    if (directory != null) {
+      try {
+        Files.deleteIfExists(directory.resolve(fingerprint + SUFFIX));
+      } catch (IOException ex) {
+        log.warn("Unable to remove execution cache entry {}", fingerprint, ex);
+      }
+    }
+  }
+
+  private void remember(String fingerprint, Entry entry) {
+    Entry previous = entries.put(fingerprint, entry);
+    if (previous != null) fingerprints.remove(previous.getCanaryExecutionId());
+    fingerprints.put(entry.getCanaryExecutionId(), fingerprint);
+    // expired entries are dropped when they are next looked up; beyond the bound the least recently used ones go
+    for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext() && entries.size() > maxEntries; ) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      fingerprints.remove(eldest.getValue().getCanaryExecutionId());
+    }
+  }
+
+  private Entry read(String fingerprint) {
+    if (directory == null) return null;
+    Path file = directory.resolve(fingerprint + SUFFIX);
+    if (!Files.isRegularFile(file)) return null;
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+      return mapper.readValue(in, Entry.class);
+    } catch (IOException | RuntimeException ex) {
+      log.warn("Ignoring unreadable execution cache entry {}", file, ex);
+      return null;
+    }
+  }
+
+  private void write(String fingerprint, Entry entry) {
+    if (directory == null) return;
+    Path file = directory.resolve(fingerprint + SUFFIX);
+    Path temporary = null;
+    try {
+      Files.createDirectories(directory);
+      temporary = Files.createTempFile(directory, fingerprint, ".tmp");
+      try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary))) {
+        mapper.writeValue(out, entry);
+      }
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException ex) {
+      log.warn("Unable to store execution cache entry {}", file, ex);
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException ignored) {
+          // best effort
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "entries: " + entries.size() + ", hits: " + hits + ", misses: " + misses;
+  }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Polls the status of many outstanding executions with a fixed number of threads. Every tracked execution waits in a
+ * queue ordered by the time its next poll is due; one dispatcher thread takes executions off the queue as they become
+ * due and hands them to a small pool that performs the (blocking) status requests, after which they are queued again
+ * or completed. Waiting executions hold no thread, and only <code>complete</code> and <code>status</code> of a running
+ * execution are read, so the memory used is bounded by the number of tracked executions.
+ * <p>
+ * Completions are delivered through the returned futures, on a poll thread: callbacks should not block.
+ */
+@Slf4j
+public class ExecutionTracker implements Closeable {
+
+  public static final int DEFAULT_POLL_THREADS = 4;
+  public static final int DEFAULT_CAPACITY = 10000;
+
+  /**
+   * Notified, on a poll thread, of every status poll of a tracked execution, e.g. to show progress or record timings.
+   */
+  public interface PollListener {
+
+    /**
+     * @param waitNanos the time since the execution was tracked or last polled
+     * @param pollNanos the time the status request took
+     * @param exchange the response, or null if there was none
+     * @param complete whether the execution is complete
+     */
+    void polled(long waitNanos, long pollNanos, HttpResponse exchange, boolean complete);
+
+  }
+
+  class TrackedExecution implements Delayed {
+
+    final String statusURL;
+    final Map<String, String> requestParameters;
+    final PollingStrategy strategy;
+    final StatusResponseReader statusReader;
+    final PollListener listener;
+    final long deadlineNanos;
+    final CompletableFuture<CanaryExecutionStatusResponse> future = new CompletableFuture<>();
+
+    volatile long dueNanos;
+    int attempt = 0;
+    String lastError = null;
+    long lastPolledNanos;
+
+    TrackedExecution(String statusURL, Map<String, String> requestParameters, PollingStrategy strategy, boolean includeMetricResults, 
+                     PollListener listener) {
+      this.statusURL = statusURL;
+      this.requestParameters = requestParameters;
+      this.strategy = strategy;
+      this.statusReader = includeMetricResults ? detailedReader : summaryReader;
+      this.listener = listener;
+      long now = System.nanoTime();
+      this.lastPolledNanos = now;
+      this.deadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(strategy.getTimeoutMillis());
+      this.dueNanos = now + TimeUnit.MILLISECONDS.toNanos(strategy.getInitialDelayMillis());
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(dueNanos, ((TrackedExecution) other).dueNanos);
+    }
+
+  }
+
+  final HttpTransport transport;
+  final StatusResponseReader summaryReader;
+  final StatusResponseReader detailedReader;
+  final int capacity;
+
+  final DelayQueue<TrackedExecution> queue = new DelayQueue<>();
+  // every tracked execution, whether it waits in the queue, for a poll thread or on its status request
+  final Set<TrackedExecution> active = ConcurrentHashMap.newKeySet();
+  final ExecutorService pollers;
+  final Thread dispatcher;
+  final AtomicInteger tracked = new AtomicInteger();
+  final AtomicLong polls = new AtomicLong();
+
+  volatile boolean closed = false;
+
+  public ExecutionTracker(ObjectMapper mapper, HttpTransport transport) {
+    this(mapper, transport, DEFAULT_POLL_THREADS, DEFAULT_CAPACITY);
+  }
+
+  public ExecutionTracker(ObjectMapper mapper, HttpTransport transport, int pollThreads, int capacity) {
+    super();
+    this.transport = transport;
+    this.summaryReader = new StatusResponseReader(mapper, false);
+    this.detailedReader = new StatusResponseReader(mapper, true);
+    this.capacity = capacity;
+    this.pollers = Executors.newFixedThreadPool(pollThreads, daemonThreads("kayenta-cli-poller"));
+    this.dispatcher = daemonThreads("kayenta-cli-dispatcher").newThread(this::dispatch);
+    this.dispatcher.start();
+  }
+
+  /**
+   * Start tracking an execution; its first poll is due after the initial delay of the polling strategy.
+   * 
+   * @param statusURL
+   * @param requestParameters
+   * @param strategy
+   * @param includeMetricResults whether the per-metric results of the final status are materialized
+   * @return a future completed with the final status, or a status that is not complete when the execution could not be
+   *         polled or did not complete before the strategy's timeout.
+   * @throws RejectedExecutionException when the tracker is closed or already tracks <code>capacity</code> executions.
+   */
+  public CompletableFuture<CanaryExecutionStatusResponse> track(String statusURL, Map<String, String> requestParameters, 
+                                                               PollingStrategy strategy, boolean includeMetricResults) {
+    return track(statusURL, requestParameters, strategy, includeMetricResults, null);
+  }
+
+  /**
+   * Start tracking an execution, notifying the listener of every poll.
+   * 
+   * @see #track(String, Map, PollingStrategy, boolean)
+   */
+  public CompletableFuture<CanaryExecutionStatusResponse> track(String statusURL, Map<String, String> requestParameters, 
+                                                               PollingStrategy strategy, boolean includeMetricResults, PollListener listener) {
+    if (closed) {
+      throw new RejectedExecutionException("The execution tracker is closed");
+    }
+    if (tracked.incrementAndGet() > capacity) {
+      tracked.decrementAndGet();
+      throw new RejectedExecutionException("The execution tracker already tracks " + capacity + " executions");
+    }
+    TrackedExecution execution = new TrackedExecution(statusURL, requestParameters, strategy, includeMetricResults, listener);
+    execution.future.whenComplete((status, ex) -> {
+      active.remove(execution);
+      tracked.decrementAndGet();
+    });
+    active.add(execution);
+    queue.put(execution);
+    // closed while being added, in which case close may not have seen it
+    if (closed) completeClosed(execution);
+    return execution.future;
+  }
+
+  void dispatch() {
+    while (!closed) {
+      try {
+        TrackedExecution execution = queue.take();
+        if (execution.future.isDone()) continue; // cancelled by the caller
+        pollers.execute(() -> poll(execution));
+      } catch (InterruptedException ex) {
+        return;
+      } catch (RejectedExecutionException ex) {
+        return;
+      }
+    }
+  }
+
+  void poll(TrackedExecution execution) {
+
+    long retryAfterMillis = -1;
+    polls.incrementAndGet();
+    long startNanos = System.nanoTime();
+    final HttpResponse[] exchange = { null };
+    try {
+      final long[] retryAfter = { -1 };
+      CanaryExecutionStatusResponse status = transport.get(execution.statusURL, execution.requestParameters, (response, in) -> {
+        exchange[0] = response;
+        retryAfter[0] = PollingStrategy.parseRetryAfter(response.getHeader("Retry-After"));
+        return execution.statusReader.read(in);
+      });
+      boolean complete = Boolean.TRUE.equals(status.getComplete());
+      polled(execution, startNanos, exchange[0], complete);
+      if (complete) {
+        execution.future.complete(status);
+        return;
+      }
+      retryAfterMillis = retryAfter[0];
+    } catch (Exception ex) {
+      polled(execution, startNanos, exchange[0], false);
+      // with this many executions transient errors are expected, so the execution is polled again until its deadline,
+      // unless the status request itself was rejected
+      log.debug("Polling {} failed", execution.statusURL, ex);
+      execution.lastError = ex.getMessage();
+      if (ex instanceof HttpStatusException && !((HttpStatusException) ex).isTransient()) {
+        execution.future.complete(
+            CanaryExecutionStatusResponse.builder()
+            .complete(Boolean.FALSE)
+            .status(ex.getMessage())
+            .build());
+        return;
+      }
+    }
+
+    if (System.nanoTime() >= execution.deadlineNanos) {
+      execution.future.complete(
+          CanaryExecutionStatusResponse.builder()
+          .complete(Boolean.FALSE)
+          .status("timed out waiting for completion status" + (execution.lastError != null ? ", last error: " + execution.lastError : ""))
+          .build());
+      return;
+    }
+
+    if (closed) {
+      completeClosed(execution);
+      return;
+    }
+    long delayMillis = execution.strategy.nextDelay(++execution.attempt, retryAfterMillis);
+    execution.dueNanos = Math.min(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), execution.deadlineNanos);
+    queue.put(execution);
+
+  }
+
+  private void polled(TrackedExecution execution, long startNanos, HttpResponse exchange, boolean complete) {
+    long now = System.nanoTime();
+    long waitNanos = startNanos - execution.lastPolledNanos;
+    execution.lastPolledNanos = now;
+    if (execution.listener == null) return;
+    try {
+      execution.listener.polled(waitNanos, now - startNanos, exchange, complete);
+    } catch (RuntimeException ex) {
+      log.warn("Poll listener of {} failed", execution.statusURL, ex);
+    }
+  }
+
+  /**
+   * The number of executions currently tracked.
+   */
+  public int getTracked() {
+    return tracked.get();
+  }
+
+  public long getPolls() {
+    return polls.get();
+  }
+
+  /**
+   * Stop polling; executions that are still tracked, whether they wait for their next poll, for a poll thread or on a
+   * status request, are completed with a status that is not complete.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    dispatcher.interrupt();
+    pollers.shutdownNow();
+    for (TrackedExecution execution : active) {
+      completeClosed(execution);
+    }
+    queue.clear();
+  }
+
+  private static void completeClosed(TrackedExecution execution) {
+    execution.future.complete(
+        CanaryExecutionStatusResponse.builder()
+        .complete(Boolean.FALSE)
+        .status("execution tracker closed")
+        .build());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("tracked=%d polls=%d", getTracked(), getPolls());
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.Data;
+
+/**
+ * A query of the history store: the score trend of a config (or of one of its metrics), pass rates per config and
+ * scope, or the metrics ranked by how often their classification flips between consecutive executions.
+ */
+@Data
+public class HistoryQuery {
+
+  public enum Kind { TREND, FLAKY, PASSRATE }
+
+  public static final int DEFAULT_LIMIT = 50;
+
+  private Kind kind;
+  private String configName;
+  private String scope;
+  private String metric;
+  private int sinceDays = 0;
+  private int limit = DEFAULT_LIMIT;
+
+  /**
+   * One execution of a trend; for a metric trend the classification is the metric's and there is no score.
+   */
+  @Data
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class TrendPoint {
+    private String time;
+    private String canaryExecutionId;
+    private String config;
+    private String scope;
+    private String metric;
+    private Double score;
+    private String classification;
+  }
+
+  @Data
+  public static class PassRate {
+    private String config;
+    private String scope;
+    private int runs;
+    private int pass;
+    private int marginal;
+    private int fail;
+    private double passRate;
+    private String lastRun;
+  }
+
+  @Data
+  public static class FlakyMetric {
+    private String config;
+    private String scope;
+    private String metric;
+    private int runs;
+    private int failures;
+    private int flips;
+    // flips per consecutive pair of executions
+    private double flakiness;
+    @JsonIgnore
+    private String lastClassification;
+  }
+
+  long getSinceMillis() {
+    return sinceDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(sinceDays) : 0;
+  }
+
+  /**
+   * Run the query.
+   * 
+   * @param snapshot
+   * @return the rows, in the order they are reported.
+   */
+  public List<?> run(HistoryStore.Snapshot snapshot) {
+    switch (kind) {
+      case FLAKY:
+        return flaky(snapshot);
+      case PASSRATE:
+        return passRates(snapshot);
+      default:
+        return trend(snapshot);
+    }
+  }
+
+  /**
+   * The last executions (up to the limit), oldest first.
+   */
+  public List<TrendPoint> trend(HistoryStore.Snapshot snapshot) {
+    int[] runs = snapshot.select(configName, scope, getSinceMillis());
+    List<TrendPoint> points = new ArrayList<>();
+    // walk back from the most recent execution, as a metric may not be in every one
+    for (int i = runs.length - 1; i >= 0 && points.size() < limit; i--) {
+      int run = runs[i];
+      TrendPoint point = new TrendPoint();
+      point.setTime(Instant.ofEpochMilli(snapshot.getRecordedAt(run)).toString());
+      point.setCanaryExecutionId(snapshot.getCanaryExecutionId(run));
+      point.setConfig(snapshot.getConfigName(run));
+      point.setScope(snapshot.getScope(run));
+      if (metric != null) {
+        int index = snapshot.findMetric(run, metric);
+        if (index < 0) continue;
+        point.setMetric(metric);
+        point.setClassification(snapshot.getMetricClassification(run, index));
+      } else {
+        point.setScore(snapshot.getScore(run));
+        point.setClassification(snapshot.getClassification(run));
+      }
+      points.add(0, point);
+    }
+    return points;
+  }
+
+  /**
+   * The pass rate of each config and scope, most executed first.
+   */
+  public List<PassRate> passRates(HistoryStore.Snapshot snapshot) {
+    Map<Long, PassRate> passRates = new LinkedHashMap<>();
+    for (int run : snapshot.select(configName, scope, getSinceMillis())) {
+      long key = ((long) snapshot.getConfigId(run) << 32) | snapshot.getScopeId(run);
+      PassRate passRate = passRates.get(key);
+      if (passRate == null) {
+        passRate = new PassRate();
+        passRate.setConfig(snapshot.getConfigName(run));
+        passRate.setScope(snapshot.getScope(run));
+        passRates.put(key, passRate);
+      }
+      passRate.setRuns(passRate.getRuns() + 1);
+      String classification = snapshot.getClassification(run);
+      if ("Pass".equals(classification)) {
+        passRate.setPass(passRate.getPass() + 1);
+      } else if ("Marginal".equals(classification)) {
+        passRate.setMarginal(passRate.getMarginal() + 1);
+      } else {
+        passRate.setFail(passRate.getFail() + 1);
+      }
+      passRate.setLastRun(Instant.ofEpochMilli(snapshot.getRecordedAt(run)).toString());
+    }
+    List<PassRate> rows = new ArrayList<>(passRates.values());
+    for (PassRate passRate : rows) {
+      passRate.setPassRate((double) passRate.getPass() / passRate.getRuns());
+    }
+    rows.sort(Comparator.comparingInt(PassRate::getRuns).reversed());
+    return rows.size() > limit ? rows.subList(0, limit) : rows;
+  }
+
+  /**
+   * The metrics whose classification changes most often between consecutive executions of the same config and scope,
+   * up to the limit; metrics with fewer than two executions are left out.
+   */
+  public List<FlakyMetric> flaky(HistoryStore.Snapshot snapshot) {
+    Map<String, FlakyMetric> metrics = new LinkedHashMap<>();
+    for (int run : snapshot.select(configName, scope, getSinceMillis())) {
+      for (int index = 0, count = snapshot.getMetricCount(run); index < count; index++) {
+        int metricId = snapshot.getMetricId(run, index);
+        String key = snapshot.getConfigId(run) + ":" + snapshot.getScopeId(run) + ":" + metricId;
+        FlakyMetric flakyMetric = metrics.get(key);
+        if (flakyMetric == null) {
+          flakyMetric = new FlakyMetric();
+          flakyMetric.setConfig(snapshot.getConfigName(run));
+          flakyMetric.setScope(snapshot.getScope(run));
+          flakyMetric.setMetric(snapshot.getMetricName(run, index));
+          metrics.put(key, flakyMetric);
+        }
+        String classification = snapshot.getMetricClassification(run, index);
+        flakyMetric.setRuns(flakyMetric.getRuns() + 1);
+        if (!"Pass".equals(classification)) flakyMetric.setFailures(flakyMetric.getFailures() + 1);
+        if (flakyMetric.getLastClassification() != null && !flakyMetric.getLastClassification().equals(classification)) {
+          flakyMetric.setFlips(flakyMetric.getFlips() + 1);
+        }
+        flakyMetric.setLastClassification(classification);
+      }
+    }
+    List<FlakyMetric> rows = new ArrayList<>();
+    for (FlakyMetric flakyMetric : metrics.values()) {
+      if (flakyMetric.getRuns() < 2) continue;
+      flakyMetric.setFlakiness((double) flakyMetric.getFlips() / (flakyMetric.getRuns() - 1));
+      rows.add(flakyMetric);
+    }
+    rows.sort(Comparator.comparingDouble(FlakyMetric::getFlakiness).thenComparingInt(FlakyMetric::getFlips).reversed());
+    return rows.size() > limit ? rows.subList(0, limit) : rows;
+  }
+
+}
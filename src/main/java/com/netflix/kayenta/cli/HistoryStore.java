@@ -0,0 +1,514 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.primitives.Ints;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.CanaryScopePair;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+
+/**
+ * Append-only local store of canary verdicts: the overall score and classification of every recorded execution and the
+ * classification of each of its metrics, for trend, pass rate and flaky metric queries without going back to Kayenta.
+ * <p>
+ * Names (configs, scopes, metrics and classifications) are kept once in a string dictionary, one per line, and referred
+ * to by their line number; the dictionary only grows with new names and is read incrementally. Execution ids, which are
+ * all different, are appended to their own file. Executions and metric classifications are fixed size records in two
+ * files that are memory-mapped, in segments, for queries; an execution record is appended last and points at its
+ * execution id and its range of metric records, so a partially written record is never seen. Appends from several
+ * processes are serialized with an exclusive file lock and snapshots are taken under a shared one. Records are in
+ * recording order, so the in-memory index by config and scope built when the store is opened is also ordered by time.
+ */
+public class HistoryStore {
+
+  public static final String DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".kayenta-cli", "history").toString();
+
+  static final String STRINGS = "strings.txt";
+  static final String RUNS = "runs.dat";
+  static final String METRICS = "metrics.dat";
+  static final String EXECUTIONS = "executions.dat";
+  static final String LOCK = "lock";
+
+  // recorded at, config, scope, classification, score, first metric, metric count, execution id offset and length
+  static final int RUN_RECORD_SIZE = 8 + 4 + 4 + 4 + 8 + 8 + 4 + 8 + 4;
+  // metric name, classification
+  static final int METRIC_RECORD_SIZE = 4 + 4;
+
+  // files are mapped in segments of up to 1 GB, as a single mapping is limited to 2 GB
+  static final long SEGMENT_SIZE = 1L << 30;
+
+  // file locks are held by the whole process, so appends from threads of one process are serialized here
+  private static final Object APPEND_LOCK = new Object();
+
+  final Path directory;
+
+  // the dictionary as of the last append by this instance, guarded by APPEND_LOCK
+  Dictionary dictionary = null;
+
+  public HistoryStore(String directory) {
+    super();
+    this.directory = Paths.get(directory);
+  }
+
+  /**
+   * The name of the config a request was built from.
+   */
+  public static String configName(CanaryAdhocExecutionRequest adhocRequest) {
+    String name = adhocRequest.getCanaryConfig().getName();
+    return name != null ? name : "";
+  }
+
+  /**
+   * The scope a request analyzes, e.g. the service or cluster; the scopes of a request with several are joined.
+   */
+  public static String scope(CanaryAdhocExecutionRequest adhocRequest) {
+    List<String> scopes = new ArrayList<>();
+    for (CanaryScopePair scopePair : adhocRequest.getExecutionRequest().getScopes().values()) {
+      scopes.add(scopePair.getExperimentScope().getScope());
+    }
+    Collections.sort(scopes);
+    return String.join(",", scopes);
+  }
+
+  /**
+   * Record the final status of an execution.
+   * 
+   * @param configName
+   * @param scope
+   * @param canaryExecutionId
+   * @param status
+   * @return whether the status had a verdict to record.
+   */
+  public boolean record(String configName, String scope, String canaryExecutionId, CanaryExecutionStatusResponse status) {
+
+    if (status == null || !Boolean.TRUE.equals(status.getComplete()) 
+        || status.getResult() == null || status.getResult().getJudgeResult() == null) {
+      return false;
+    }
+    CanaryJudgeResult judgeResult = status.getResult().getJudgeResult();
+    List<CanaryAnalysisResult> results = judgeResult.getResults() != null ? judgeResult.getResults() : Collections.<CanaryAnalysisResult>emptyList();
+
+    synchronized (APPEND_LOCK) {
+      try {
+        Files.createDirectories(directory);
+        try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = lockChannel.lock()) {
+
+          if (dictionary == null) {
+            dictionary = new Dictionary(directory.resolve(STRINGS));
+          }
+          // only the names appended by others since are read
+          dictionary.refresh();
+
+          ByteBuffer metrics = ByteBuffer.allocate(results.size() * METRIC_RECORD_SIZE);
+          for (CanaryAnalysisResult result : results) {
+            metrics.putInt(dictionary.add(result.getName())).putInt(dictionary.add(result.getClassification()));
+          }
+          metrics.flip();
+
+          ByteBuffer run = ByteBuffer.allocate(RUN_RECORD_SIZE);
+          run.putLong(0)
+             .putInt(dictionary.add(configName))
+             .putInt(dictionary.add(scope))
+             .putInt(dictionary.add(judgeResult.getScore().getClassification()))
+             .putDouble(judgeResult.getScore().getScore());
+
+          dictionary.append();
+
+          long firstMetric = append(directory.resolve(METRICS), METRIC_RECORD_SIZE, metrics, null);
+          byte[] executionId = (canaryExecutionId != null ? canaryExecutionId : "").getBytes(StandardCharsets.UTF_8);
+          long executionIdOffset = append(directory.resolve(EXECUTIONS), 1, ByteBuffer.wrap(executionId), null);
+          run.putLong(firstMetric).putInt(results.size()).putLong(executionIdOffset).putInt(executionId.length);
+          run.flip();
+          append(directory.resolve(RUNS), RUN_RECORD_SIZE, run, runChannel -> {
+            // keep records in time order even if the clock goes back
+            long recordedAt = System.currentTimeMillis();
+            long runCount = runChannel.size() / RUN_RECORD_SIZE;
+            if (runCount > 0) {
+              ByteBuffer last = ByteBuffer.allocate(8);
+              runChannel.read(last, (runCount - 1) * RUN_RECORD_SIZE);
+              last.flip();
+              recordedAt = Math.max(recordedAt, last.getLong());
+            }
+            run.putLong(0, recordedAt);
+          });
+
+        }
+      } catch (IOException ex) {
+        // names added by the failed append may not have been stored
+        dictionary = null;
+        throw new RuntimeException("Unable to record the canary result in the history store " + directory + ", reason: " + ex.getMessage(), ex);
+      }
+    }
+
+    return true;
+
+  }
+
+  interface BeforeAppend {
+    void prepare(FileChannel channel) throws IOException;
+  }
+
+  /**
+   * Append whole records to a file, dropping a partially written record left by an interrupted append first.
+   * 
+   * @return the index of the first appended record.
+   */
+  static long append(Path file, int recordSize, ByteBuffer records, BeforeAppend beforeAppend) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long count = channel.size() / recordSize;
+      channel.truncate(count * recordSize);
+      if (beforeAppend != null) beforeAppend.prepare(channel);
+      long position = count * recordSize;
+      while (records.hasRemaining()) {
+        position += channel.write(records, position);
+      }
+      channel.force(false);
+      return count;
+    }
+  }
+
+  /**
+   * Open the store for queries; records appended later are not seen.
+   * 
+   * @return a snapshot, empty if nothing was recorded yet.
+   */
+  public Snapshot open() {
+    Path lockFile = directory.resolve(LOCK);
+    if (!Files.isRegularFile(lockFile)) {
+      return new Snapshot(new Dictionary(directory.resolve(STRINGS)), MappedFile.EMPTY, MappedFile.EMPTY, MappedFile.EMPTY);
+    }
+    // the lock is held by the whole process, so it is not taken while a thread of this one appends
+    synchronized (APPEND_LOCK) {
+      try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.READ);
+           FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+        // the runs are mapped first and the dictionary read last, so everything a mapped run refers to is seen even
+        // where file locks are only advisory
+        MappedFile runs = MappedFile.map(directory.resolve(RUNS), RUN_RECORD_SIZE);
+        MappedFile metrics = MappedFile.map(directory.resolve(METRICS), METRIC_RECORD_SIZE);
+        MappedFile executions = MappedFile.map(directory.resolve(EXECUTIONS), 1);
+        Dictionary names = new Dictionary(directory.resolve(STRINGS));
+        names.refresh();
+        return new Snapshot(names, runs, metrics, executions);
+      } catch (IOException ex) {
+        throw new RuntimeException("Unable to read the history store " + directory + ", reason: " + ex.getMessage(), ex);
+      }
+    }
+  }
+
+  /**
+   * A read-only mapping of the whole records of a file, in segments that hold whole records.
+   */
+  static class MappedFile {
+
+    static final MappedFile EMPTY = new MappedFile(new ByteBuffer[0], 1, 0);
+
+    final ByteBuffer[] segments;
+    final long segmentSize;
+    final long size;
+
+    MappedFile(ByteBuffer[] segments, long segmentSize, long size) {
+      this.segments = segments;
+      this.segmentSize = segmentSize;
+      this.size = size;
+    }
+
+    static MappedFile map(Path file, int recordSize) throws IOException {
+      if (!Files.isRegularFile(file)) return EMPTY;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        long size = channel.size() / recordSize * recordSize;
+        long segmentSize = SEGMENT_SIZE / recordSize * recordSize;
+        ByteBuffer[] segments = new ByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+        for (int i = 0; i < segments.length; i++) {
+          long position = i * segmentSize;
+          // the mapping stays valid after the channel is closed
+          segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+        }
+        return new MappedFile(segments, segmentSize, size);
+      }
+    }
+
+    byte get(long position) {
+      return segments[(int) (position / segmentSize)].get((int) (position % segmentSize));
+    }
+
+    int getInt(long position) {
+      return segments[(int) (position / segmentSize)].getInt((int) (position % segmentSize));
+    }
+
+    long getLong(long position) {
+      return segments[(int) (position / segmentSize)].getLong((int) (position % segmentSize));
+    }
+
+    double getDouble(long position) {
+      return segments[(int) (position / segmentSize)].getDouble((int) (position % segmentSize));
+    }
+
+  }
+
+  /**
+   * The names in the store, by their line number.
+   */
+  static class Dictionary {
+
+    final Path file;
+    final List<String> strings = new ArrayList<>();
+    final Map<String, Integer> ids = new HashMap<>();
+    int stored = 0;
+    long storedBytes = 0;
+
+    Dictionary(Path file) {
+      this.file = file;
+    }
+
+    /**
+     * Read the names appended to the file since it was last read or appended to.
+     */
+    void refresh() throws IOException {
+      if (!Files.isRegularFile(file)) return;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size <= storedBytes) return;
+        ByteBuffer buffer = ByteBuffer.allocate(Ints.checkedCast(size - storedBytes));
+        while (buffer.hasRemaining() && channel.read(buffer, storedBytes + buffer.position()) >= 0) {
+          // read to the end
+        }
+        byte[] content = buffer.array();
+        int start = 0;
+        for (int i = 0; i < buffer.position(); i++) {
+          if (content[i] == '\n') {
+            add(new String(content, start, i - start, StandardCharsets.UTF_8));
+            start = i + 1;
+          }
+        }
+        // a line without a newline was not completely appended
+        storedBytes += start;
+      }
+      stored = strings.size();
+    }
+
+    int add(String string) {
+      String value = string != null ? string.replace('\n', ' ') : "";
+      Integer id = ids.get(value);
+      if (id == null) {
+        id = strings.size();
+        strings.add(value);
+        ids.put(value, id);
+      }
+      return id;
+    }
+
+    int find(String string) {
+      Integer id = ids.get(string);
+      return id != null ? id : -1;
+    }
+
+    String get(int id) {
+      return strings.get(id);
+    }
+
+    void append() throws IOException {
+      if (stored == strings.size()) return;
+      StringBuilder builder = new StringBuilder();
+      for (int i = stored; i < strings.size(); i++) {
+        builder.append(strings.get(i)).append('\n');
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        channel.truncate(storedBytes);
+        ByteBuffer content = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+        long position = storedBytes;
+        while (content.hasRemaining()) {
+          position += channel.write(content, position);
+        }
+        channel.force(false);
+        storedBytes = position;
+      }
+      stored = strings.size();
+    }
+
+    int size() {
+      return strings.size();
+    }
+
+  }
+
+  /**
+   * A read-only view of the store, indexed by config and scope.
+   */
+  public static class Snapshot {
+
+    final Dictionary dictionary;
+    final MappedFile runs;
+    final MappedFile metrics;
+    final MappedFile executions;
+    final int runCount;
+    final Map<Integer, int[]> runsByConfig = new HashMap<>();
+    final Map<Integer, int[]> runsByScope = new HashMap<>();
+
+    Snapshot(Dictionary dictionary, MappedFile runs, MappedFile metrics, MappedFile executions) {
+      this.dictionary = dictionary;
+      this.runs = runs;
+      this.metrics = metrics;
+      this.executions = executions;
+      this.runCount = Ints.checkedCast(runs.size / RUN_RECORD_SIZE);
+      Map<Integer, List<Integer>> byConfig = new HashMap<>();
+      Map<Integer, List<Integer>> byScope = new HashMap<>();
+      for (int run = 0; run < runCount; run++) {
+        byConfig.computeIfAbsent(getConfigId(run), id -> new ArrayList<>()).add(run);
+        byScope.computeIfAbsent(getScopeId(run), id -> new ArrayList<>()).add(run);
+      }
+      byConfig.forEach((id, list) -> runsByConfig.put(id, Ints.toArray(list)));
+      byScope.forEach((id, list) -> runsByScope.put(id, Ints.toArray(list)));
+    }
+
+    /**
+     * Select the runs of a config and scope (either may be null for all) recorded since a time, in time order.
+     */
+    public int[] select(String configName, String scope, long sinceMillis) {
+      int[] candidates;
+      if (configName != null) {
+        candidates = runsByConfig.get(dictionary.find(configName));
+      } else if (scope != null) {
+        candidates = runsByScope.get(dictionary.find(scope));
+      } else {
+        candidates = new int[runCount];
+        for (int run = 0; run < runCount; run++) candidates[run] = run;
+      }
+      if (candidates == null) return new int[0];
+
+      // runs are in time order, so the first recent one is found by binary search
+      int low = 0;
+      int high = candidates.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (getRecordedAt(candidates[middle]) < sinceMillis) low = middle + 1; else high = middle;
+      }
+
+      int scopeId = scope != null ? dictionary.find(scope) : -1;
+      int[] selected = new int[candidates.length - low];
+      int count = 0;
+      for (int i = low; i < candidates.length; i++) {
+        if (configName != null && scope != null && getScopeId(candidates[i]) != scopeId) continue;
+        selected[count++] = candidates[i];
+      }
+      return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    public int size() {
+      return runCount;
+    }
+
+    private static long position(int run) {
+      return (long) run * RUN_RECORD_SIZE;
+    }
+
+    public long getRecordedAt(int run) {
+      return runs.getLong(position(run));
+    }
+
+    int getConfigId(int run) {
+      return runs.getInt(position(run) + 8);
+    }
+
+    int getScopeId(int run) {
+      return runs.getInt(position(run) + 12);
+    }
+
+    public String getConfigName(int run) {
+      return dictionary.get(getConfigId(run));
+    }
+
+    public String getScope(int run) {
+      return dictionary.get(getScopeId(run));
+    }
+
+    public String getCanaryExecutionId(int run) {
+      long offset = runs.getLong(position(run) + 40);
+      byte[] executionId = new byte[runs.getInt(position(run) + 48)];
+      for (int i = 0; i < executionId.length; i++) {
+        executionId[i] = executions.get(offset + i);
+      }
+      return new String(executionId, StandardCharsets.UTF_8);
+    }
+
+    public String getClassification(int run) {
+      return dictionary.get(runs.getInt(position(run) + 16));
+    }
+
+    public double getScore(int run) {
+      return runs.getDouble(position(run) + 20);
+    }
+
+    long getFirstMetric(int run) {
+      return runs.getLong(position(run) + 28);
+    }
+
+    public int getMetricCount(int run) {
+      return runs.getInt(position(run) + 36);
+    }
+
+    int getMetricId(int run, int metric) {
+      return metrics.getInt((getFirstMetric(run) + metric) * METRIC_RECORD_SIZE);
+    }
+
+    public String getMetricName(int run, int metric) {
+      return dictionary.get(getMetricId(run, metric));
+    }
+
+    public String getMetricClassification(int run, int metric) {
+      return dictionary.get(metrics.getInt((getFirstMetric(run) + metric) * METRIC_RECORD_SIZE + 4));
+    }
+
+    /**
+     * Find a metric of a run by name.
+     * 
+     * @return the index of the metric in the run, or -1 if the run does not have it.
+     */
+    public int findMetric(int run, String metricName) {
+      int metricId = dictionary.find(metricName);
+      if (metricId < 0) return -1;
+      for (int metric = 0, count = getMetricCount(run); metric < count; metric++) {
+        if (getMetricId(run, metric) == metricId) return metric;
+      }
+      return -1;
+    }
+
+    @Override
+    public String toString() {
+      return "runs: " + runCount + ", metric results: " + metrics.size / METRIC_RECORD_SIZE + ", names: " + dictionary.size();
+    }
+
+  }
+
+}
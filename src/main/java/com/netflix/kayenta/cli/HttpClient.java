@@ -14,96 +14,60 @@
 
 package com.netflix.kayenta.cli;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
 import java.util.Map;
 
 public class HttpClient {
 
-  protected String doGet(String url, Map<String, String> requestParameters) throws Exception {
-    
-    // append request parameters to url
-    StringBuilder builder = new StringBuilder(url);
-    int param = 0;
-    for (String key : requestParameters.keySet()) {
-      if (++param == 1)
-        builder.append("?");
-      else
-        builder.append("&");
-      builder.append(key).append("=").append(requestParameters.get(key));
-    }
-    URL obj = new URL(builder.toString());
-    HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-
-    //add request header
-    con.setRequestMethod("GET");
-
-    // Send get request
-    /*
-    con.setDoOutput(true);
-    DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-    wr.writeBytes(requestBody);
-    wr.flush();
-    wr.close();
-    */
-
-    //int responseCode = con.getResponseCode();
+  // the JDK connection pool is process wide, so by default every client shares a single transport
+  private static volatile HttpTransport defaultTransport;
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+  protected HttpTransport transport;
 
-    String inputLine;
-    StringBuffer response = new StringBuffer();
-    while ((inputLine = in.readLine()) != null) {
-      response.append(inputLine);
-    }
-    in.close();
-
-    return response.toString();
+  public HttpClient() {
+    this(getDefaultTransport());
+  }
 
+  public HttpClient(HttpTransport transport) {
+    super();
+    this.transport = transport;
   }
 
-  protected String doPost(String url, Map<String, String> requestParameters, String requestBody) throws Exception {
-    
-    // append request parameters to url
-    StringBuilder builder = new StringBuilder(url);
-    int param = 0;
-    for (String key : requestParameters.keySet()) {
-      if (++param == 1)
-        builder.append("?");
-      else
-        builder.append("&");
-      builder.append(key).append("=").append(requestParameters.get(key));
+  public static HttpTransport getDefaultTransport() {
+    if (defaultTransport == null) {
+      synchronized (HttpClient.class) {
+        if (defaultTransport == null) {
+          defaultTransport = new UrlConnectionTransport();
+        }
+      }
     }
-    URL obj = new URL(builder.toString());
-    HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-
-    //add request header
-    con.setRequestMethod("POST");
-    con.setRequestProperty("Content-Type", "application/json");
-
-    // Send post request
-    con.setDoOutput(true);
-    DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-    wr.writeBytes(requestBody);
-    wr.flush();
-    wr.close();
+    return defaultTransport;
+  }
 
-    //int responseCode = con.getResponseCode();
+  /**
+   * Replace the transport used by clients created with the default constructor; must be called before the first one is created.
+   * 
+   * @param transport
+   */
+  public static void setDefaultTransport(HttpTransport transport) {
+    defaultTransport = transport;
+  }
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+  public HttpTransport getTransport() {
+    return transport;
+  }
 
-    String inputLine;
-    StringBuffer response = new StringBuffer();
-    while ((inputLine = in.readLine()) != null) {
-      response.append(inputLine);
-    }
-    in.close();
+  public void setTransport(HttpTransport transport) {
+    this.transport = transport;
+  }
 
-    return response.toString();
+  protected <T> T doGet(String url, Map<String, String> requestParameters, HttpTransport.ResponseHandler<T> handler) throws IOException {
+    return transport.get(url, requestParameters, handler);
+  }
 
+  protected <T> T doPost(String url, Map<String, String> requestParameters, HttpTransport.RequestBody requestBody, 
+                         HttpTransport.ResponseHandler<T> handler) throws IOException {
+    return transport.post(url, requestParameters, requestBody, handler);
   }
   
 }
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.List;
+import java.util.Map;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The status and headers of a response; the body is handed to a <code>HttpTransport.ResponseHandler</code> as a stream.
+ * The transport also records how the exchange was spent: connecting (zero when a pooled TLS connection was reused), the
+ * TLS handshake, waiting for the first byte of the response once the request was sent, and the bytes on the wire.
+ * The received byte count is only final once the handler has returned and the transport drained the body.
+ */
+@Data
+@NoArgsConstructor
+public class HttpResponse {
+
+  private int statusCode;
+  private Map<String, List<String>> headers;
+
+  private long connectNanos;
+  private long tlsHandshakeNanos;
+  private long timeToFirstByteNanos;
+  private long bytesSent;
+  private long bytesReceived;
+
+  public HttpResponse(int statusCode, Map<String, List<String>> headers) {
+    super();
+    this.statusCode = statusCode;
+    this.headers = headers;
+  }
+
+  /**
+   * Get the first value of a response header, ignoring the case of its name.
+   * 
+   * @param name
+   * @return the header value or null if the header is not present.
+   */
+  public String getHeader(String name) {
+    if (headers == null) return null;
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a transport when the server answered with an error status, so callers can tell a rejected request
+ * from one that never reached (or never returned from) the server.
+ */
+public class HttpStatusException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  final int statusCode;
+
+  public HttpStatusException(int statusCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * Whether the same request may succeed when repeated: the server was unavailable or overloaded, rather than
+   * rejecting the request itself.
+   */
+  public boolean isTransient() {
+    return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * The wire transport used by <code>HttpClient</code>. Implementations are expected to be thread-safe and to reuse
+ * connections between calls, so a single instance can be shared by every client in the process.
+ * <p>
+ * Request bodies are written, and response bodies read, directly against the connection streams so that payloads
+ * never have to be held in memory as a whole.
+ */
+public interface HttpTransport {
+
+  /**
+   * Writes a request body to the connection.
+   */
+  @FunctionalInterface
+  interface RequestBody {
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Whether the body is sent gzip compressed; null leaves it to the transport configuration.
+     */
+    default Boolean isGzip() {
+      return null;
+    }
+
+    /**
+     * A body that is (or is not) sent gzip compressed, whatever the transport configuration.
+     */
+    static RequestBody gzip(RequestBody body, boolean gzip) {
+      return new RequestBody() {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+          body.writeTo(out);
+        }
+
+        @Override
+        public Boolean isGzip() {
+          return gzip;
+        }
+      };
+    }
+  }
+
+  /**
+   * Reads a successful response. The stream is already decompressed, and closing it is left to the transport.
+   */
+  @FunctionalInterface
+  interface ResponseHandler<T> {
+    T handle(HttpResponse response, InputStream body) throws IOException;
+  }
+
+  <T> T get(String url, Map<String, String> requestParameters, ResponseHandler<T> handler) throws IOException;
+
+  <T> T post(String url, Map<String, String> requestParameters, RequestBody requestBody, ResponseHandler<T> handler) throws IOException;
+
+  <T> T put(String url, Map<String, String> requestParameters, RequestBody requestBody, ResponseHandler<T> handler) throws IOException;
+
+  TransportStats getStats();
+
+}
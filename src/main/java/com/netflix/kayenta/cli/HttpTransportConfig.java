@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import lombok.Data;
+
+@Data
+public class HttpTransportConfig {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 64;
+  public static final int DEFAULT_MAX_RETRIES = 2;
+  public static final double DEFAULT_HEDGE_PERCENTILE = 95.0;
+
+  private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+  private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+  // maximum number of idle keep-alive connections kept per destination
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+  // ask the server to compress response bodies
+  private boolean gzip = true;
+
+  // compress request bodies (the server must accept Content-Encoding: gzip)
+  private boolean gzipRequests = false;
+
+  // stream request bodies with chunked transfer encoding; when off (for servers and proxies that reject chunked bodies)
+  // each body is written twice, first to count its Content-Length, so it is still never held in memory as a whole
+  private boolean chunkedStreaming = true;
+
+  // retries of a failed request, on another endpoint when there is one; posts are only retried when not received
+  private int maxRetries = DEFAULT_MAX_RETRIES;
+  private int retryBackoffMillis = 200;
+  private int maxRetryBackoffMillis = 5000;
+
+  // status reads slower than this percentile of recent ones are repeated on another endpoint, 0 to disable
+  private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+  // consecutive failures that open the circuit of an endpoint, and how long it stays open before a trial request
+  private int circuitFailureThreshold = 5;
+  private int circuitOpenMillis = 10000;
+
+}
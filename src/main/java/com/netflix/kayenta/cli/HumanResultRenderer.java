@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+/**
+ * The human readable status report. With per-metric results, passed results are written as they are found and failed
+ * ones are kept until the end, so the results are walked once.
+ */
+public class HumanResultRenderer implements ResultRenderer {
+
+  static final String LINE_SEPARATOR = System.lineSeparator();
+
+  final boolean verbose;
+
+  public HumanResultRenderer(boolean verbose) {
+    super();
+    this.verbose = verbose;
+  }
+
+  @Override
+  public void render(String statusURL, String canaryExecutionId, CanaryExecutionStatusResponse status, Writer out) throws IOException {
+
+    println(out, "========== Canary Execution Status ==========");
+    println(out, "Status URL: " + statusURL);
+    if (status != null) {
+
+      println(out, "Complete: " + status.getComplete());
+      println(out, "Status: " + status.getStatus());
+      CanaryResult canaryResult = status.getResult();
+      if (canaryResult != null && canaryResult.getJudgeResult() != null) {
+        CanaryJudgeResult judgeResult = canaryResult.getJudgeResult();
+        CanaryJudgeScore judgeScore = judgeResult.getScore();
+        println(out, "Score: " + judgeScore.getScore());
+        println(out, "Grade: " + judgeScore.getClassification());
+        String reason = judgeScore.getClassificationReason();
+        if (!StringUtils.isEmpty(reason)) {
+          println(out, "Reason: " + reason);
+        }
+        if (verbose && judgeResult.getResults() != null) {
+          renderResults(judgeResult.getResults(), out);
+        }
+      }
+
+    } else {
+      println(out, "Complete: false");
+      println(out, "Status: null");
+    }
+
+    println(out, "=============================================");
+
+  }
+
+  void renderResults(List<CanaryAnalysisResult> results, Writer out) throws IOException {
+    StringBuilder failed = new StringBuilder();
+    int passedEntries = 0;
+    int failedEntries = 0;
+    println(out, "========== Passed Results Summary ===========");
+    for (CanaryAnalysisResult result : results) {
+      if ("Pass".equals(result.getClassification())) {
+        if (passedEntries++ > 0) println(out, "-------------");
+        appendEntry(result, out);
+      } else {
+        if (failedEntries++ > 0) failed.append("-------------").append(LINE_SEPARATOR);
+        appendEntry(result, failed);
+      }
+    }
+    println(out, "========== Failed Results Summary ===========");
+    out.append(failed);
+  }
+
+  static void appendEntry(CanaryAnalysisResult result, Appendable out) throws IOException {
+    out.append("Name: ").append(result.getName()).append(LINE_SEPARATOR);
+    out.append("Experiment: ").append(String.valueOf(result.getExperimentMetadata())).append(LINE_SEPARATOR);
+    out.append("Control:    ").append(String.valueOf(result.getControlMetadata())).append(LINE_SEPARATOR);
+    out.append("Overall:    ").append(String.valueOf(result.getResultMetadata())).append(LINE_SEPARATOR);
+  }
+
+  static void println(Writer out, String line) throws IOException {
+    out.write(line);
+    out.write(LINE_SEPARATOR);
+  }
+
+}
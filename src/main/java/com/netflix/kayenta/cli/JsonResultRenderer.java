@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+
+/**
+ * Writes the status as a single JSON document, with the selected per-metric fields in its <code>metrics</code> array,
+ * or as JSON lines with one line per metric. Without per-metric results (e.g. an execution that did not complete) a
+ * single line with the execution level fields is written.
+ */
+public class JsonResultRenderer implements ResultRenderer {
+
+  static final Set<Field> EXECUTION_FIELDS = EnumSet.of(Field.EXECUTION, Field.SCORE, Field.GRADE);
+
+  final ObjectMapper mapper;
+  final Set<Field> fields;
+  final boolean lines;
+
+  public JsonResultRenderer(ObjectMapper mapper, Set<Field> fields, boolean lines) {
+    super();
+    this.mapper = mapper;
+    this.fields = fields;
+    this.lines = lines;
+  }
+
+  @Override
+  public void render(String statusURL, String canaryExecutionId, CanaryExecutionStatusResponse status, Writer out) throws IOException {
+
+    CanaryJudgeResult judgeResult = getJudgeResult(status);
+    CanaryJudgeScore judgeScore = judgeResult != null ? judgeResult.getScore() : null;
+    List<CanaryAnalysisResult> results = 
+        judgeResult != null && judgeResult.getResults() != null ? judgeResult.getResults() : Collections.<CanaryAnalysisResult>emptyList();
+
+    try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.setRootValueSeparator(new SerializedString(System.lineSeparator()));
+
+      if (lines) {
+        if (results.isEmpty()) {
+          generator.writeStartObject();
+          writeStatus(generator, canaryExecutionId, status, judgeScore);
+          generator.writeEndObject();
+        }
+        for (CanaryAnalysisResult result : results) {
+          generator.writeStartObject();
+          for (Field field : fields) {
+            writeField(generator, field, canaryExecutionId, judgeScore, result);
+          }
+          generator.writeEndObject();
+        }
+      } else {
+        generator.writeStartObject();
+        generator.writeStringField("statusURL", statusURL);
+        writeStatus(generator, canaryExecutionId, status, judgeScore);
+        if (judgeScore != null) generator.writeStringField(Field.REASON.getLabel(), judgeScore.getClassificationReason());
+        if (!results.isEmpty() && !EXECUTION_FIELDS.containsAll(fields)) {
+          generator.writeArrayFieldStart("metrics");
+          for (CanaryAnalysisResult result : results) {
+            generator.writeStartObject();
+            for (Field field : fields) {
+              if (!EXECUTION_FIELDS.contains(field)) writeField(generator, field, canaryExecutionId, judgeScore, result);
+            }
+            generator.writeEndObject();
+          }
+          generator.writeEndArray();
+        }
+        generator.writeEndObject();
+      }
+    }
+    out.write(System.lineSeparator());
+
+  }
+
+  static CanaryJudgeResult getJudgeResult(CanaryExecutionStatusResponse status) {
+    return status != null && status.getResult() != null ? status.getResult().getJudgeResult() : null;
+  }
+
+  void writeStatus(JsonGenerator generator, String canaryExecutionId, CanaryExecutionStatusResponse status, CanaryJudgeScore judgeScore) throws IOException {
+    generator.writeStringField(Field.EXECUTION.getLabel(), canaryExecutionId);
+    generator.writeBooleanField("complete", status != null && Boolean.TRUE.equals(status.getComplete()));
+    generator.writeStringField("status", status != null ? status.getStatus() : null);
+    if (judgeScore != null) {
+      generator.writeNumberField(Field.SCORE.getLabel(), judgeScore.getScore());
+      generator.writeStringField(Field.GRADE.getLabel(), judgeScore.getClassification());
+    }
+  }
+
+  void writeField(JsonGenerator generator, Field field, String canaryExecutionId, CanaryJudgeScore judgeScore, 
+                  CanaryAnalysisResult result) throws IOException {
+    generator.writeFieldName(field.getLabel());
+    switch (field) {
+      case EXECUTION:
+        generator.writeString(canaryExecutionId);
+        break;
+      case SCORE:
+        generator.writeNumber(judgeScore.getScore());
+        break;
+      case GRADE:
+        generator.writeString(judgeScore.getClassification());
+        break;
+      case METRIC:
+        generator.writeString(result.getName());
+        break;
+      case CLASSIFICATION:
+        generator.writeString(result.getClassification());
+        break;
+      case REASON:
+        generator.writeString(result.getClassificationReason());
+        break;
+      case GROUPS:
+        generator.writeObject(result.getGroups());
+        break;
+      case CRITICAL:
+        generator.writeBoolean(result.isCritical());
+        break;
+      case EXPERIMENT:
+        generator.writeObject(result.getExperimentMetadata());
+        break;
+      case CONTROL:
+        generator.writeObject(result.getControlMetadata());
+        break;
+      default:
+        generator.writeObject(result.getResultMetadata());
+        break;
+    }
+  }
+
+}
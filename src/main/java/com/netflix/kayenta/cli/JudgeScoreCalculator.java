@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.netflix.kayenta.canary.CanaryClassifierConfig;
+import com.netflix.kayenta.canary.CanaryClassifierThresholdsConfig;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeGroupScore;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+
+/**
+ * Recomputes group and overall scores from per-metric results, the way the Kayenta judge (its weighted sum scorer)
+ * does, so results of executions that each analyzed part of the metrics can be combined into one verdict: a group
+ * scores the percentage of its metrics classified Pass, High or Low that passed (0 when it has none), the overall score
+ * is the sum of the group scores weighted by their share of the classifier group weights, and a failed critical metric
+ * fails the whole analysis.
+ * <p>
+ * As on the server, a group without data keeps its weight (it scores 0), a group missing from the group weights weighs
+ * nothing, and only when the classifier has no group weights at all do the groups weigh the same.
+ */
+public class JudgeScoreCalculator {
+
+  public static final String PASS = "Pass";
+  public static final String HIGH = "High";
+  public static final String LOW = "Low";
+  public static final String NO_DATA = "Nodata";
+
+  final CanaryClassifierConfig classifier;
+  final CanaryClassifierThresholdsConfig thresholds;
+
+  /**
+   * @param classifier the group weights, and the score thresholds used when the request has none
+   * @param requestThresholds the score thresholds of the execution request, which the judge classifies with
+   */
+  public JudgeScoreCalculator(CanaryClassifierConfig classifier, CanaryClassifierThresholdsConfig requestThresholds) {
+    super();
+    this.classifier = classifier;
+    this.thresholds = isComplete(requestThresholds) || classifier == null ? requestThresholds : classifier.getScoreThresholds();
+  }
+
+  private static boolean isComplete(CanaryClassifierThresholdsConfig thresholds) {
+    return thresholds != null && thresholds.getPass() != null && thresholds.getMarginal() != null;
+  }
+
+  /**
+   * Merge the metric results of several judge results and score them as one.
+   * 
+   * @param judgeResults
+   * @return a judge result with all metric results, the recomputed group scores and overall score.
+   */
+  public CanaryJudgeResult combine(List<CanaryJudgeResult> judgeResults) {
+
+    List<CanaryAnalysisResult> results = new ArrayList<>();
+    String judgeName = null;
+    for (CanaryJudgeResult judgeResult : judgeResults) {
+      if (judgeName == null) judgeName = judgeResult.getJudgeName();
+      if (judgeResult.getResults() != null) results.addAll(judgeResult.getResults());
+    }
+
+    // group -> { passed, classified Pass, High or Low }
+    Map<String, int[]> counts = new LinkedHashMap<>();
+    boolean criticalFailure = false;
+    for (CanaryAnalysisResult result : results) {
+      boolean passed = PASS.equals(result.getClassification());
+      boolean failed = HIGH.equals(result.getClassification()) || LOW.equals(result.getClassification());
+      boolean hasData = passed || failed;
+      if (result.isCritical() && failed) criticalFailure = true;
+      if (result.getGroups() == null) continue;
+      for (String group : result.getGroups()) {
+        int[] count = counts.get(group);
+        if (count == null) counts.put(group, count = new int[2]);
+        if (passed) count[0]++;
+        if (hasData) count[1]++;
+      }
+    }
+
+    Map<String, Double> weights = groupWeights(counts.keySet());
+    double totalWeight = 0.0;
+    for (double weight : weights.values()) {
+      totalWeight += weight;
+    }
+
+    List<CanaryJudgeGroupScore> groupScores = new ArrayList<>();
+    double score = 0.0;
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      int[] count = entry.getValue();
+      double groupScore = count[1] > 0 ? 100.0 * count[0] / count[1] : 0.0;
+      Double weight = weights.get(entry.getKey());
+      if (weight != null && totalWeight > 0) score += groupScore * weight / totalWeight;
+      groupScores.add(CanaryJudgeGroupScore.builder().name(entry.getKey()).score(groupScore).build());
+    }
+
+    CanaryJudgeScore.CanaryJudgeScoreBuilder judgeScore = CanaryJudgeScore.builder();
+    if (criticalFailure) {
+      judgeScore.score(0.0).classification("Fail").classificationReason("Canary Failed: a critical metric failed");
+    } else {
+      judgeScore.score(score).classification(WindowedAnalysis.classify(score, thresholds));
+    }
+
+    return CanaryJudgeResult.builder()
+        .judgeName(judgeName)
+        .results(results)
+        .groupScores(groupScores)
+        .score(judgeScore.build())
+        .build();
+
+  }
+
+  /**
+   * The weight of every group: the classifier group weights, including those of groups without metrics, or the same
+   * weight for every group that has metrics when there are none.
+   */
+  private Map<String, Double> groupWeights(Collection<String> groups) {
+    if (classifier != null && classifier.getGroupWeights() != null && !classifier.getGroupWeights().isEmpty()) {
+      return classifier.getGroupWeights();
+    }
+    Map<String, Double> weights = new LinkedHashMap<>();
+    for (String group : groups) {
+      weights.put(group, 1.0);
+    }
+    return weights;
+  }
+
+}
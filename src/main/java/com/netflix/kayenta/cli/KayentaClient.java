@@ -0,0 +1,454 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.CountingOutputStream;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionResponse;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+/**
+ * Immutable, thread-safe client for embedding in other JVM programs: one instance can submit any number of requests
+ * concurrently. <code>submit</code> sends a request on the executor (a shared pool of daemon threads unless one is
+ * supplied, e.g. a virtual thread per task executor on a recent JDK) and hands the execution to an
+ * <code>ExecutionTracker</code>, so a waiting execution holds no thread. Settings are changed by creating a modified
+ * copy with <code>toBuilder()</code>.
+ */
+public class KayentaClient {
+
+  private static volatile ExecutorService defaultExecutor;
+  // one tracker per transport, so executions are polled through the transport of the client that sent them
+  private static final Map<HttpTransport, ExecutionTracker> defaultTrackers = new ConcurrentHashMap<>();
+
+  final ObjectMapper mapper;
+  final HttpTransport transport;
+  final String kayentaURL;
+  final String metricsAccount;
+  final String storageAccount;
+  final PollingStrategy pollingStrategy;
+  final boolean includeMetricResults;
+  final Executor executor;
+  final ExecutionTracker tracker;
+  final PhaseTimings timings;
+  final SubmissionGovernor governor;
+  final SubmissionGovernor.Priority priority;
+  final ExecutionCache executionCache;
+  final CanaryConfigStore configStore;
+
+  KayentaClient(Builder builder) {
+    this.mapper = builder.mapper != null ? builder.mapper : Client.createObjectMapper();
+    this.transport = builder.transport != null ? builder.transport : HttpClient.getDefaultTransport();
+    this.kayentaURL = builder.kayentaURL;
+    this.metricsAccount = builder.metricsAccount;
+    this.storageAccount = builder.storageAccount;
+    this.pollingStrategy = builder.pollingStrategy;
+    this.includeMetricResults = builder.includeMetricResults;
+    this.executor = builder.executor;
+    this.tracker = builder.tracker;
+    this.timings = builder.timings;
+    this.governor = builder.governor != null ? builder.governor : SubmissionGovernor.getDefault();
+    this.priority = builder.priority;
+    this.executionCache = builder.executionCache != null ? builder.executionCache : ExecutionCache.getDefault();
+    this.configStore = builder.configStore != null ? builder.configStore : CanaryConfigStore.getDefault();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public Builder toBuilder() {
+    Builder builder = new Builder();
+    builder.mapper = mapper;
+    builder.transport = transport;
+    builder.kayentaURL = kayentaURL;
+    builder.metricsAccount = metricsAccount;
+    builder.storageAccount = storageAccount;
+    builder.pollingStrategy = pollingStrategy;
+    builder.includeMetricResults = includeMetricResults;
+    builder.executor = executor;
+    builder.tracker = tracker;
+    builder.timings = timings;
+    builder.governor = governor;
+    builder.priority = priority;
+    builder.executionCache = executionCache;
+    builder.configStore = configStore;
+    return builder;
+  }
+
+  /**
+   * Send a request and wait for its verdict without blocking the calling thread.
+   * 
+   * @param adhocRequest
+   * @return a future completed with the final status (not complete if the execution timed out or could not be polled),
+   *         or completed exceptionally if the request could not be sent.
+   */
+  public CompletableFuture<CanaryExecutionStatusResponse> submit(CanaryAdhocExecutionRequest adhocRequest) {
+    PollingStrategy strategy = pollingStrategy.estimateFor(adhocRequest);
+    return sendAsync(adhocRequest).thenCompose(canaryExecutionId -> track(canaryExecutionId, strategy));
+  }
+
+  /**
+   * Send a request on the executor.
+   * 
+   * @return a future completed with the canary execution id.
+   */
+  public CompletableFuture<String> sendAsync(CanaryAdhocExecutionRequest adhocRequest) {
+    return CompletableFuture.supplyAsync(() -> send(adhocRequest), getExecutor());
+  }
+
+  /**
+   * Wait for an execution that was already sent.
+   * 
+   * @param canaryExecutionId
+   * @param strategy
+   * @return a future completed with the final status.
+   */
+  public CompletableFuture<CanaryExecutionStatusResponse> track(String canaryExecutionId, PollingStrategy strategy) {
+    return track(canaryExecutionId, strategy, null);
+  }
+
+  /**
+   * Wait for an execution that was already sent, notifying the listener (on a poll thread) of every poll. The polls
+   * are also recorded in the phase timings of the client.
+   * 
+   * @param canaryExecutionId
+   * @param strategy
+   * @param listener or null
+   * @return a future completed with the final status.
+   */
+  public CompletableFuture<CanaryExecutionStatusResponse> track(String canaryExecutionId, PollingStrategy strategy, ExecutionTracker.PollListener listener) {
+    CanaryExecutionStatusResponse cachedStatus = getCachedStatus(canaryExecutionId);
+    if (cachedStatus != null) {
+      return CompletableFuture.completedFuture(cachedStatus);
+    }
+    ExecutionTracker.PollListener pollListener = (waitNanos, pollNanos, exchange, complete) -> {
+      if (timings != null) {
+        timings.record(PhaseTimings.POLL_WAIT, waitNanos);
+        timings.recordExchange(PhaseTimings.POLL, pollNanos, exchange);
+      }
+      if (listener != null) listener.polled(waitNanos, pollNanos, exchange, complete);
+    };
+    return getTracker().track(getStatusURL(canaryExecutionId), getStatusParameters(canaryExecutionId), strategy, includeMetricResults, pollListener)
+        .whenComplete((status, ex) -> finished(canaryExecutionId, status));
+  }
+
+  /**
+   * Get the cached verdict of an execution, for an identical request that was already analyzed.
+   * 
+   * @param canaryExecutionId
+   * @return the final status, or null if it has to be polled.
+   */
+  public CanaryExecutionStatusResponse getCachedStatus(String canaryExecutionId) {
+    return executionCache != null ? executionCache.getResult(canaryExecutionId, includeMetricResults) : null;
+  }
+
+  /**
+   * Tell the submission governor an execution sent by this client is no longer in flight, and cache its verdict; done by
+   * <code>track</code> for callers that wait for executions themselves.
+   * 
+   * @param canaryExecutionId
+   * @param status the final status, or null if it could not be polled
+   */
+  public void finished(String canaryExecutionId, CanaryExecutionStatusResponse status) {
+    governor.finished(canaryExecutionId);
+    if (executionCache != null) executionCache.completed(canaryExecutionId, status, includeMetricResults);
+  }
+
+  /**
+   * Send a request on the calling thread, once the submission governor allows it. With an execution cache, an identical
+   * request that is still in flight or was recently analyzed is not sent again and its execution id is returned.
+   * 
+   * @param adhocRequest
+   * @return the canary execution id.
+   */
+  public String send(CanaryAdhocExecutionRequest adhocRequest) {
+    if (executionCache == null) {
+      return governedSend(adhocRequest);
+    }
+    String fingerprint = ExecutionCache.fingerprint(mapper, adhocRequest, kayentaURL, metricsAccount, storageAccount);
+    return executionCache.getOrSend(fingerprint, () -> governedSend(adhocRequest), pollingStrategy.getTimeoutMillis());
+  }
+
+  private String governedSend(CanaryAdhocExecutionRequest adhocRequest) {
+
+    SubmissionGovernor.Ticket ticket;
+    long waitNanos = System.nanoTime();
+    try {
+      ticket = governor.acquire(kayentaURL, metricsAccount, priority);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to submit the canary adhoc execution request", ex);
+    } finally {
+      if (timings != null) timings.record(PhaseTimings.SUBMIT_WAIT, System.nanoTime() - waitNanos);
+    }
+
+    String canaryExecutionId = null;
+    try {
+      canaryExecutionId = post(adhocRequest);
+      governor.started(canaryExecutionId, ticket, System.currentTimeMillis() + pollingStrategy.getTimeoutMillis());
+      return canaryExecutionId;
+    } finally {
+      if (canaryExecutionId == null) ticket.release();
+    }
+
+  }
+
+  private String post(CanaryAdhocExecutionRequest adhocRequest) {
+
+    Map<String, String> requestParameters = new HashMap<String, String>();
+    if (!StringUtils.isEmpty(metricsAccount)) requestParameters.put("metricsAccountName", metricsAccount);
+    if (!StringUtils.isEmpty(storageAccount)) requestParameters.put("storageAccountName", storageAccount);
+
+    final HttpResponse[] exchange = { null };
+    HttpTransport.ResponseHandler<String> handler = (response, in) -> {
+      exchange[0] = response;
+      return mapper.readValue(in, CanaryExecutionResponse.class).getCanaryExecutionId();
+    };
+    long startNanos = System.nanoTime();
+    try {
+      if (configStore != null) {
+        return postByConfigId(adhocRequest, requestParameters, handler);
+      }
+      // the request is serialized straight onto the connection and the response parsed straight off it
+      return transport.post(kayentaURL, requestParameters, out -> serialize(adhocRequest, out), handler);
+    } catch (JsonProcessingException ex) {
+      throw new RuntimeException("Error processing canary adhoc execution request, reason: "+ex.getMessage(),ex);
+    } catch (Exception ex) {
+      throw new RuntimeException("Unable to complete POST request, reason: "+ex.getMessage(),ex);
+    } finally {
+      if (timings != null) timings.recordExchange(PhaseTimings.POST, System.nanoTime() - startNanos, exchange[0]);
+    }
+
+  }
+
+  /**
+   * Start an execution of the config stored by the config store, sending only the execution request.
+   */
+  private String postByConfigId(CanaryAdhocExecutionRequest adhocRequest, Map<String, String> requestParameters, 
+                                HttpTransport.ResponseHandler<String> handler) throws IOException {
+    requestParameters.putAll(configStore.getRequestParameters());
+    String configId = configStore.upsert(transport, kayentaURL, adhocRequest.getCanaryConfig());
+    try {
+      return configStore.send(transport, "POST", kayentaURL + "/" + configId, requestParameters, 
+                              out -> serialize(adhocRequest.getExecutionRequest(), out), handler);
+    } catch (HttpStatusException ex) {
+      if (ex.getStatusCode() != 404) throw ex;
+      // the stored config was deleted since its id was remembered
+      configStore.forget(kayentaURL, adhocRequest.getCanaryConfig());
+      configId = configStore.upsert(transport, kayentaURL, adhocRequest.getCanaryConfig());
+      return configStore.send(transport, "POST", kayentaURL + "/" + configId, requestParameters, 
+                              out -> serialize(adhocRequest.getExecutionRequest(), out), handler);
+    }
+  }
+
+  private void serialize(Object request, OutputStream out) throws IOException {
+    if (timings == null) {
+      mapper.writeValue(out, request);
+      return;
+    }
+    // with chunked streaming this includes writing to the connection, as the two are interleaved
+    long startNanos = System.nanoTime();
+    CountingOutputStream counter = new CountingOutputStream(out);
+    mapper.writeValue(counter, request);
+    timings.record(PhaseTimings.REQUEST_SERIALIZE, System.nanoTime() - startNanos, counter.getCount());
+  }
+
+  public String getStatusURL(String canaryExecutionId) {
+    return kayentaURL + "/" + canaryExecutionId;
+  }
+
+  public Map<String, String> getStatusParameters(String canaryExecutionId) {
+    Map<String, String> requestParameters = new HashMap<String, String>();
+    if (!StringUtils.isEmpty(storageAccount)) requestParameters.put("storageAccountName", storageAccount);
+    requestParameters.put("canaryExecutionId", canaryExecutionId);
+    return requestParameters;
+  }
+
+  public ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  public HttpTransport getTransport() {
+    return transport;
+  }
+
+  public String getKayentaURL() {
+    return kayentaURL;
+  }
+
+  public PollingStrategy getPollingStrategy() {
+    return pollingStrategy;
+  }
+
+  Executor getExecutor() {
+    return executor != null ? executor : getDefaultExecutor();
+  }
+
+  ExecutionTracker getTracker() {
+    return tracker != null ? tracker : getDefaultTracker(mapper, transport);
+  }
+
+  static ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      synchronized (KayentaClient.class) {
+        if (defaultExecutor == null) {
+          AtomicInteger count = new AtomicInteger();
+          defaultExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "kayenta-cli-sender-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+        }
+      }
+    }
+    return defaultExecutor;
+  }
+
+  static ExecutionTracker getDefaultTracker(ObjectMapper mapper, HttpTransport transport) {
+    return defaultTrackers.computeIfAbsent(transport, key -> new ExecutionTracker(mapper, key));
+  }
+
+  /**
+   * Settings of a <code>KayentaClient</code>; everything but the Kayenta URL has a default.
+   */
+  public static class Builder {
+
+    ObjectMapper mapper;
+    HttpTransport transport;
+    String kayentaURL = CliOptions.DEFAULT_KAYENTA_URL;
+    String metricsAccount = "";
+    String storageAccount = "";
+    PollingStrategy pollingStrategy = 
+        PollingStrategy.defaultStrategy(PollingStrategy.DEFAULT_TIMEOUT_MILLIS, PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS);
+    boolean includeMetricResults = false;
+    Executor executor;
+    ExecutionTracker tracker;
+    PhaseTimings timings;
+    SubmissionGovernor governor;
+    SubmissionGovernor.Priority priority = SubmissionGovernor.Priority.NORMAL;
+    ExecutionCache executionCache;
+    CanaryConfigStore configStore;
+
+    Builder() {
+    }
+
+    public Builder mapper(ObjectMapper mapper) {
+      this.mapper = mapper;
+      return this;
+    }
+
+    public Builder transport(HttpTransport transport) {
+      this.transport = transport;
+      return this;
+    }
+
+    public Builder kayentaURL(String kayentaURL) {
+      this.kayentaURL = kayentaURL;
+      return this;
+    }
+
+    public Builder metricsAccount(String metricsAccount) {
+      this.metricsAccount = metricsAccount;
+      return this;
+    }
+
+    public Builder storageAccount(String storageAccount) {
+      this.storageAccount = storageAccount;
+      return this;
+    }
+
+    public Builder pollingStrategy(PollingStrategy pollingStrategy) {
+      this.pollingStrategy = pollingStrategy;
+      return this;
+    }
+
+    /**
+     * Whether the per-metric results of the final status are materialized (they are by far its largest part).
+     */
+    public Builder includeMetricResults(boolean includeMetricResults) {
+      this.includeMetricResults = includeMetricResults;
+      return this;
+    }
+
+    /**
+     * The executor requests are sent on.
+     */
+    public Builder executor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public Builder tracker(ExecutionTracker tracker) {
+      this.tracker = tracker;
+      return this;
+    }
+
+    public Builder timings(PhaseTimings timings) {
+      this.timings = timings;
+      return this;
+    }
+
+    /**
+     * The governor submissions wait for; the process wide default unless given.
+     */
+    public Builder governor(SubmissionGovernor governor) {
+      this.governor = governor;
+      return this;
+    }
+
+    public Builder priority(SubmissionGovernor.Priority priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * The cache identical requests reuse executions from; the process wide default (if any) unless given.
+     */
+    public Builder executionCache(ExecutionCache executionCache) {
+      this.executionCache = executionCache;
+      return this;
+    }
+
+    /**
+     * The store configs are kept in, so executions are started by config id; the process wide default (if any) unless
+     * given.
+     */
+    public Builder configStore(CanaryConfigStore configStore) {
+      this.configStore = configStore;
+      return this;
+    }
+
+    public KayentaClient build() {
+      return new KayentaClient(this);
+    }
+
+  }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * A latency distribution recorded from many threads, readable both per reporting interval and in total.
+ */
+public class LatencyStats {
+
+  // one hour, at three significant digits
+  static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+  static final int SIGNIFICANT_DIGITS = 3;
+
+  final String name;
+  final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+  final Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+  Histogram interval = null;
+
+  public LatencyStats(String name) {
+    super();
+    this.name = name;
+  }
+
+  public void recordNanos(long nanos) {
+    recorder.recordValue(Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), HIGHEST_TRACKABLE_MICROS));
+  }
+
+  /**
+   * Close the current interval and add it to the total; not thread-safe, call from the reporting thread only.
+   * 
+   * @return the histogram of the interval that was closed.
+   */
+  public Histogram nextInterval() {
+    interval = recorder.getIntervalHistogram(interval);
+    total.add(interval);
+    return interval;
+  }
+
+  public Histogram getTotal() {
+    return total;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Format the count and percentiles of a histogram recorded in microseconds, in milliseconds.
+   */
+  public static String format(String name, Histogram histogram) {
+    return String.format("%s n=%d p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f ms", name, histogram.getTotalCount(),
+                         histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0, 
+                         histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0, 
+                         histogram.getMaxValue() / 1000.0);
+  }
+
+}
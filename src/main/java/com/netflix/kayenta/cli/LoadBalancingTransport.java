@@ -0,0 +1,423 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.io.ByteStreams;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads requests over several Kayenta endpoints that share their storage, so any of them can serve the status of
+ * any execution. Callers keep using the first endpoint's URL; requests for it are sent to the available endpoint with
+ * the fewest outstanding requests. Failed requests are retried, on another endpoint, with jittered exponential backoff
+ * (posts only when they could not connect or the server refused them with 429 or 503, so an execution is never started
+ * twice; a gateway error may come back after the execution was started), status reads that take longer
+ * than a percentile of recent ones are hedged on a second endpoint, and an endpoint that keeps failing is skipped until
+ * its circuit breaker lets a trial request through. With a single endpoint, failed requests are retried on it.
+ */
+@Slf4j
+public class LoadBalancingTransport implements HttpTransport {
+
+  static final int LATENCY_SAMPLES = 256;
+  static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+  class Endpoint {
+
+    final String url;
+    final AtomicInteger outstanding = new AtomicInteger();
+
+    // circuit breaker state, guarded by this
+    int consecutiveFailures = 0;
+    long openUntilMillis = 0;
+    boolean trialInFlight = false;
+
+    Endpoint(String url) {
+      this.url = url;
+    }
+
+    /**
+     * Whether a request may be sent now; once the open period has passed a single trial request is let through.
+     */
+    synchronized boolean isAvailable() {
+      if (consecutiveFailures < config.getCircuitFailureThreshold()) return true;
+      return System.currentTimeMillis() >= openUntilMillis && !trialInFlight;
+    }
+
+    synchronized void acquired() {
+      if (consecutiveFailures >= config.getCircuitFailureThreshold()) trialInFlight = true;
+    }
+
+    synchronized void succeeded() {
+      consecutiveFailures = 0;
+      trialInFlight = false;
+    }
+
+    synchronized void failed() {
+      trialInFlight = false;
+      if (++consecutiveFailures >= config.getCircuitFailureThreshold()) {
+        if (consecutiveFailures == config.getCircuitFailureThreshold()) log.warn("Opening the circuit of Kayenta endpoint {}", url);
+        openUntilMillis = System.currentTimeMillis() + config.getCircuitOpenMillis();
+      }
+    }
+
+    synchronized boolean isOpen() {
+      return consecutiveFailures >= config.getCircuitFailureThreshold();
+    }
+
+  }
+
+  final HttpTransport delegate;
+  final HttpTransportConfig config;
+  final List<Endpoint> endpoints = new ArrayList<>();
+  final String primaryURL;
+
+  // recent status read latencies, for the hedge delay
+  final long[] latencies = new long[LATENCY_SAMPLES];
+  long latencyCount = 0;
+  volatile long hedgeDelayNanos = 0;
+
+  final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "kayenta-cli-hedge");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public LoadBalancingTransport(HttpTransport delegate, List<String> endpointURLs, HttpTransportConfig config) {
+    super();
+    if (endpointURLs.isEmpty()) {
+      throw new IllegalArgumentException("At least one Kayenta endpoint is required");
+    }
+    this.delegate = delegate;
+    this.config = config;
+    for (String url : endpointURLs) {
+      endpoints.add(new Endpoint(url));
+    }
+    this.primaryURL = endpointURLs.get(0);
+  }
+
+  /**
+   * Split a comma separated list of endpoint URLs.
+   */
+  public static List<String> parseEndpoints(String urls) {
+    List<String> endpointURLs = new ArrayList<>();
+    for (String url : Arrays.asList(urls.split(","))) {
+      if (!url.trim().isEmpty()) endpointURLs.add(url.trim());
+    }
+    return endpointURLs;
+  }
+
+  @Override
+  public <T> T get(String url, Map<String, String> requestParameters, ResponseHandler<T> handler) throws IOException {
+    if (!url.startsWith(primaryURL)) return withRetries("GET", url, () -> delegate.get(url, requestParameters, handler));
+    String path = url.substring(primaryURL.length());
+    return withRetries("GET", endpoint -> hedgedGet(endpoint, path, requestParameters, handler));
+  }
+
+  @Override
+  public <T> T post(String url, Map<String, String> requestParameters, RequestBody requestBody, ResponseHandler<T> handler) throws IOException {
+    if (!url.startsWith(primaryURL)) return withRetries("POST", url, () -> delegate.post(url, requestParameters, requestBody, handler));
+    String path = url.substring(primaryURL.length());
+    return withRetries("POST", endpoint -> 
+        send(endpoint, () -> delegate.post(endpoint.url + path, requestParameters, requestBody, handler)));
+  }
+
+  @Override
+  public <T> T put(String url, Map<String, String> requestParameters, RequestBody requestBody, ResponseHandler<T> handler) throws IOException {
+    if (!url.startsWith(primaryURL)) return withRetries("PUT", url, () -> delegate.put(url, requestParameters, requestBody, handler));
+    String path = url.substring(primaryURL.length());
+    return withRetries("PUT", endpoint -> 
+        send(endpoint, () -> delegate.put(endpoint.url + path, requestParameters, requestBody, handler)));
+  }
+
+  @Override
+  public TransportStats getStats() {
+    return delegate.getStats();
+  }
+
+  interface Attempt<T> {
+    T call(Endpoint endpoint) throws IOException;
+  }
+
+  interface Call<T> {
+    T call() throws IOException;
+  }
+
+  /**
+   * A response read to the end by one attempt of a hedged read.
+   */
+  static class BufferedResponse {
+
+    final HttpResponse response;
+    final byte[] body;
+
+    BufferedResponse(HttpResponse response, byte[] body) {
+      this.response = response;
+      this.body = body;
+    }
+
+  }
+
+  static final ResponseHandler<BufferedResponse> BUFFERING = (response, in) -> new BufferedResponse(response, ByteStreams.toByteArray(in));
+
+  <T> T withRetries(String method, Attempt<T> attempt) throws IOException {
+    Endpoint previous = null;
+    for (int retry = 0; ; retry++) {
+      Endpoint endpoint = choose(previous);
+      try {
+        return attempt.call(endpoint);
+      } catch (IOException ex) {
+        beforeRetry(method, endpoint.url, retry, ex);
+        previous = endpoint;
+      }
+    }
+  }
+
+  /**
+   * Send a request for a URL that is not one of the endpoints (e.g. another server named by a daemon submission)
+   * with the same retries, without balancing.
+   */
+  <T> T withRetries(String method, String url, Call<T> call) throws IOException {
+    for (int retry = 0; ; retry++) {
+      try {
+        return call.call();
+      } catch (IOException ex) {
+        beforeRetry(method, url, retry, ex);
+      }
+    }
+  }
+
+  /**
+   * Rethrow a failure that is not retried (or out of retries), otherwise wait for the backoff of the retry.
+   */
+  private void beforeRetry(String method, String url, int retry, IOException ex) throws IOException {
+    if (retry >= config.getMaxRetries() || !isRetryable(method, ex)) throw ex;
+    log.debug("{} to {} failed, retrying", method, url, ex);
+    delegate.getStats().retries.incrementAndGet();
+    sleep(backoffMillis(retry));
+  }
+
+  /**
+   * Send a request to an endpoint, keeping count of its outstanding requests and feeding its circuit breaker.
+   * Errors in the request itself (4xx other than 429) say nothing about the endpoint's health.
+   */
+  <T> T send(Endpoint endpoint, Call<T> call) throws IOException {
+    endpoint.outstanding.incrementAndGet();
+    endpoint.acquired();
+    try {
+      T result = call.call();
+      endpoint.succeeded();
+      return result;
+    } catch (HttpStatusException ex) {
+      if (ex.isTransient() || ex.getStatusCode() >= 500) {
+        endpoint.failed();
+      } else {
+        endpoint.succeeded();
+      }
+      throw ex;
+    } catch (IOException | RuntimeException ex) {
+      endpoint.failed();
+      throw ex;
+    } finally {
+      endpoint.outstanding.decrementAndGet();
+    }
+  }
+
+  /**
+   * Read from one endpoint and, if that is slower than the hedge delay, from a second one as well; the first
+   * successful response wins and the other is discarded. Each attempt reads its response into its own buffer, and only
+   * the winning one is handed to the handler, once, on the calling thread, so the handler never runs concurrently.
+   */
+  <T> T hedgedGet(Endpoint endpoint, String path, Map<String, String> requestParameters, ResponseHandler<T> handler) throws IOException {
+
+    long delayNanos = hedgeDelayNanos;
+    if (endpoints.size() < 2 || delayNanos <= 0) {
+      return timedGet(endpoint, path, requestParameters, handler);
+    }
+
+    BufferedResponse winner = null;
+    CompletableFuture<BufferedResponse> first = getAsync(endpoint, path, requestParameters);
+    try {
+      winner = first.get(delayNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException ex) {
+      // too slow, hedge below
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      first.cancel(false);
+      throw new IOException("Interrupted while reading from " + endpoint.url, ex);
+    } catch (ExecutionException ex) {
+      throw unwrap(ex.getCause());
+    }
+
+    if (winner == null) {
+      Endpoint other = choose(endpoint);
+      if (other == endpoint) {
+        winner = join(first);
+      } else {
+        delegate.getStats().hedges.incrementAndGet();
+        CompletableFuture<BufferedResponse> second = getAsync(other, path, requestParameters);
+        try {
+          winner = join(firstSuccess(first, second));
+        } finally {
+          // the slower attempt is not waited for: it still reads its body to the end, so its connection goes back to
+          // the pool, but the response is dropped
+          first.cancel(false);
+          second.cancel(false);
+        }
+      }
+    }
+
+    return handler.handle(winner.response, new ByteArrayInputStream(winner.body));
+
+  }
+
+  private <T> T timedGet(Endpoint endpoint, String path, Map<String, String> requestParameters, ResponseHandler<T> handler) throws IOException {
+    long startNanos = System.nanoTime();
+    T result = send(endpoint, () -> delegate.get(endpoint.url + path, requestParameters, handler));
+    recordLatency(System.nanoTime() - startNanos);
+    return result;
+  }
+
+  private CompletableFuture<BufferedResponse> getAsync(Endpoint endpoint, String path, Map<String, String> requestParameters) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return timedGet(endpoint, path, requestParameters, BUFFERING);
+      } catch (IOException ex) {
+        throw new CompletionException(ex);
+      }
+    }, hedgeExecutor);
+  }
+
+  private static <T> CompletableFuture<T> firstSuccess(CompletableFuture<T> first, CompletableFuture<T> second) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger failures = new AtomicInteger();
+    for (CompletableFuture<T> future : Arrays.asList(first, second)) {
+      future.whenComplete((value, ex) -> {
+        if (ex == null) {
+          result.complete(value);
+        } else if (failures.incrementAndGet() == 2) {
+          result.completeExceptionally(ex);
+        }
+      });
+    }
+    return result;
+  }
+
+  private static <T> T join(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException ex) {
+      throw unwrap(ex.getCause());
+    }
+  }
+
+  private static IOException unwrap(Throwable cause) {
+    while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+    if (cause instanceof IOException) return (IOException) cause;
+    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+    return new IOException(cause);
+  }
+
+  /**
+   * The available endpoint with the fewest outstanding requests, preferring one other than <code>previous</code>;
+   * ties are broken randomly. When every circuit is open the least loaded endpoint is used anyway.
+   */
+  Endpoint choose(Endpoint previous) {
+    Endpoint best = null;
+    int ties = 0;
+    for (boolean requireAvailable : new boolean[] { true, false }) {
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint == previous && endpoints.size() > 1) continue;
+        if (requireAvailable && !endpoint.isAvailable()) continue;
+        int outstanding = endpoint.outstanding.get();
+        if (best == null || outstanding < best.outstanding.get()) {
+          best = endpoint;
+          ties = 1;
+        } else if (outstanding == best.outstanding.get() && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+          best = endpoint;
+        }
+      }
+      if (best != null) return best;
+    }
+    return previous != null ? previous : endpoints.get(0);
+  }
+
+  boolean isRetryable(String method, IOException ex) {
+    if (ex instanceof HttpStatusException) {
+      HttpStatusException statusException = (HttpStatusException) ex;
+      if ("POST".equals(method)) {
+        // explicit refusals only: a gateway error (502, 504) may come back after Kayenta started the execution
+        return statusException.getStatusCode() == 429 || statusException.getStatusCode() == 503;
+      }
+      return statusException.isTransient();
+    }
+    if ("GET".equals(method) || "PUT".equals(method)) return true;
+    // a post that failed after it was sent may still have started an execution
+    return ex instanceof ConnectException || ex instanceof NoRouteToHostException || ex instanceof UnknownHostException;
+  }
+
+  long backoffMillis(int retry) {
+    long ceiling = Math.min(config.getMaxRetryBackoffMillis(), (long) config.getRetryBackoffMillis() << Math.min(retry, 20));
+    return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+  }
+
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to retry", ex);
+    }
+  }
+
+  synchronized void recordLatency(long nanos) {
+    latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = nanos;
+    if (config.getHedgePercentile() <= 0 || latencyCount < 32 || latencyCount % 32 != 0) return;
+    long[] sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+    Arrays.sort(sorted);
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(config.getHedgePercentile() / 100.0 * sorted.length) - 1);
+    hedgeDelayNanos = Math.max(MIN_HEDGE_DELAY_NANOS, sorted[Math.max(0, index)]);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Endpoint endpoint : endpoints) {
+      if (builder.length() > 0) builder.append(", ");
+      builder.append(endpoint.url).append(" outstanding=").append(endpoint.outstanding.get());
+      if (endpoint.isOpen()) builder.append(" (open)");
+    }
+    return builder.toString();
+  }
+
+}
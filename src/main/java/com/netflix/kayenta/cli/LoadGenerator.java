@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionResponse;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+/**
+ * Drives canary executions against a Kayenta server (or the stub server) to find its saturation point, using the
+ * request built from the request configuration file.
+ * <p>
+ * In the open model submissions are started on a fixed schedule regardless of how many are outstanding, and every
+ * time-to-verdict is measured from the time the submission was scheduled to start rather than from when it actually
+ * started, so a stalled server shows up in the distribution instead of silently lowering the submission rate
+ * (coordinated omission). Waiting between polls does not hold a thread; only the HTTP calls themselves do.
+ */
+public class LoadGenerator {
+
+  class Execution {
+    final long intendedStartNanos;
+    final Runnable onDone;
+    final long deadlineNanos;
+    String statusURL;
+    Map<String, String> statusParameters;
+    int attempt = 0;
+
+    Execution(long intendedStartNanos, Runnable onDone) {
+      this.intendedStartNanos = intendedStartNanos;
+      this.onDone = onDone;
+      this.deadlineNanos = intendedStartNanos + TimeUnit.MILLISECONDS.toNanos(pollingStrategy.getTimeoutMillis());
+    }
+  }
+
+  final ObjectMapper mapper;
+  final HttpTransport transport;
+  final LoadGeneratorConfig config;
+  final CanaryAdhocExecutionRequest adhocRequest;
+  final String kayentaURL;
+  final String storageAccount;
+  final Map<String, String> submitParameters = new HashMap<>();
+  final PollingStrategy pollingStrategy;
+  final StatusResponseReader statusReader;
+  final PrintStream out;
+
+  final LatencyStats postLatency = new LatencyStats("POST latency     ");
+  final LatencyStats pollLatency = new LatencyStats("poll latency     ");
+  final LatencyStats verdictLatency = new LatencyStats("time-to-verdict  ");
+
+  final AtomicLong submitted = new AtomicLong();
+  final AtomicLong submitErrors = new AtomicLong();
+  final AtomicLong pollErrors = new AtomicLong();
+  final AtomicLong completed = new AtomicLong();
+  final AtomicLong failedVerdicts = new AtomicLong();
+  final AtomicLong timedOut = new AtomicLong();
+  // counted when an execution is handed to the workers, so waiting for zero cannot miss one that has not started yet
+  final AtomicLong outstanding = new AtomicLong();
+  // notified when outstanding drops to zero
+  final Object idle = new Object();
+
+  final ExecutorService workers = Executors.newCachedThreadPool();
+  final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+  long startNanos;
+  long lastReportNanos;
+  long lastSubmitted;
+  long lastCompleted;
+
+  public LoadGenerator(ObjectMapper mapper, HttpTransport transport, LoadGeneratorConfig config, CanaryAdhocExecutionRequest adhocRequest,
+                       String kayentaURL, String metricsAccount, String storageAccount, PollingStrategy pollingStrategy, PrintStream out) {
+    super();
+    this.mapper = mapper;
+    this.transport = transport;
+    this.config = config;
+    this.adhocRequest = adhocRequest;
+    this.kayentaURL = kayentaURL;
+    this.storageAccount = storageAccount;
+    if (!StringUtils.isEmpty(metricsAccount)) submitParameters.put("metricsAccountName", metricsAccount);
+    if (!StringUtils.isEmpty(storageAccount)) submitParameters.put("storageAccountName", storageAccount);
+    this.pollingStrategy = pollingStrategy.estimateFor(adhocRequest);
+    this.statusReader = new StatusResponseReader(mapper, false);
+    this.out = out;
+  }
+
+  /**
+   * Generate load for the configured duration, wait for the outstanding executions and print the final report.
+   * 
+   * @throws InterruptedException
+   */
+  public void run() throws InterruptedException {
+
+    startNanos = System.nanoTime();
+    lastReportNanos = startNanos;
+    long endNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+
+    ScheduledFuture<?> reporter = 
+        scheduler.scheduleAtFixedRate(() -> report("interval"), config.getReportIntervalSeconds(), config.getReportIntervalSeconds(), TimeUnit.SECONDS);
+
+    try {
+
+      if (config.getConcurrency() > 0) {
+        runClosed(endNanos);
+      } else {
+        runOpen(endNanos);
+      }
+
+      // executions time out on their own, so this ends at the latest one polling timeout after the last submission
+      synchronized (idle) {
+        while (outstanding.get() > 0) {
+          idle.wait();
+        }
+      }
+
+    } finally {
+      reporter.cancel(false);
+      workers.shutdownNow();
+      scheduler.shutdownNow();
+    }
+
+    report("total");
+
+  }
+
+  void runOpen(long endNanos) throws InterruptedException {
+    double intervalNanos = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+    for (long i = 0; ; i++) {
+      long intendedStartNanos = startNanos + (long) (i * intervalNanos);
+      if (intendedStartNanos >= endNanos) break;
+      long waitNanos = intendedStartNanos - System.nanoTime();
+      if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+      start(new Execution(intendedStartNanos, null));
+    }
+  }
+
+  void runClosed(long endNanos) throws InterruptedException {
+    Semaphore permits = new Semaphore(config.getConcurrency());
+    while (permits.tryAcquire(Math.max(0, endNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+      start(new Execution(System.nanoTime(), permits::release));
+    }
+  }
+
+  void start(Execution execution) {
+    submitted.incrementAndGet();
+    outstanding.incrementAndGet();
+    workers.execute(() -> submit(execution));
+  }
+
+  void submit(Execution execution) {
+
+    long sendNanos = System.nanoTime();
+    try {
+      String canaryExecutionId = 
+          transport.post(kayentaURL, submitParameters, 
+                         body -> mapper.writeValue(body, adhocRequest),
+                         (response, in) -> mapper.readValue(in, CanaryExecutionResponse.class).getCanaryExecutionId());
+      postLatency.recordNanos(System.nanoTime() - sendNanos);
+      execution.statusURL = kayentaURL + "/" + canaryExecutionId;
+      execution.statusParameters = new HashMap<>();
+      if (!StringUtils.isEmpty(storageAccount)) execution.statusParameters.put("storageAccountName", storageAccount);
+      execution.statusParameters.put("canaryExecutionId", canaryExecutionId);
+    } catch (IOException | RuntimeException ex) {
+      submitErrors.incrementAndGet();
+      finish(execution);
+      return;
+    }
+
+    schedulePoll(execution, pollingStrategy.getInitialDelayMillis());
+
+  }
+
+  void schedulePoll(Execution execution, long delayMillis) {
+    scheduler.schedule(() -> workers.execute(() -> poll(execution)), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void poll(Execution execution) {
+
+    long retryAfterMillis = -1;
+    long sendNanos = System.nanoTime();
+    try {
+      final long[] retryAfter = { -1 };
+      CanaryExecutionStatusResponse status = transport.get(execution.statusURL, execution.statusParameters, (response, in) -> {
+        retryAfter[0] = PollingStrategy.parseRetryAfter(response.getHeader("Retry-After"));
+        return statusReader.read(in);
+      });
+      long now = System.nanoTime();
+      pollLatency.recordNanos(now - sendNanos);
+      retryAfterMillis = retryAfter[0];
+      if (Boolean.TRUE.equals(status.getComplete())) {
+        completed.incrementAndGet();
+        verdictLatency.recordNanos(now - execution.intendedStartNanos);
+        if (status.getResult() != null && status.getResult().getJudgeResult() != null &&
+            !"Pass".equals(status.getResult().getJudgeResult().getScore().getClassification())) {
+          failedVerdicts.incrementAndGet();
+        }
+        finish(execution);
+        return;
+      }
+    } catch (IOException | RuntimeException ex) {
+      // transient poll failures are counted and the execution keeps being polled until its deadline
+      pollErrors.incrementAndGet();
+    }
+
+    if (System.nanoTime() >= execution.deadlineNanos) {
+      timedOut.incrementAndGet();
+      finish(execution);
+    } else {
+      // a long Retry-After is honored, but the execution is polled once more at its deadline
+      long untilDeadlineMillis = TimeUnit.NANOSECONDS.toMillis(execution.deadlineNanos - System.nanoTime());
+      schedulePoll(execution, Math.min(pollingStrategy.nextDelay(++execution.attempt, retryAfterMillis), Math.max(untilDeadlineMillis, 0)));
+    }
+
+  }
+
+  void finish(Execution execution) {
+    if (outstanding.decrementAndGet() == 0) {
+      synchronized (idle) {
+        idle.notifyAll();
+      }
+    }
+    if (execution.onDone != null) execution.onDone.run();
+  }
+
+  /**
+   * Print the counters, the throughput since the previous report and the latency distributions; the interval 
+   * distributions for an interval report, the distributions of the whole run for the total report.
+   */
+  synchronized void report(String kind) {
+
+    long now = System.nanoTime();
+    double intervalSeconds = Math.max(now - lastReportNanos, 1) / 1e9;
+    long currentSubmitted = submitted.get();
+    long currentCompleted = completed.get();
+
+    boolean total = "total".equals(kind);
+    double elapsedSeconds = (now - startNanos) / 1e9;
+    double submitRate = total ? currentSubmitted / elapsedSeconds : (currentSubmitted - lastSubmitted) / intervalSeconds;
+    double completeRate = total ? currentCompleted / elapsedSeconds : (currentCompleted - lastCompleted) / intervalSeconds;
+
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("[%s %.0fs] submitted=%d completed=%d failedVerdicts=%d outstanding=%d submitErrors=%d pollErrors=%d timedOut=%d submit/s=%.2f verdicts/s=%.2f",
+                                kind, elapsedSeconds, currentSubmitted, currentCompleted, failedVerdicts.get(), outstanding.get(), 
+                                submitErrors.get(), pollErrors.get(), timedOut.get(), submitRate, completeRate));
+    for (LatencyStats stats : new LatencyStats[] { postLatency, pollLatency, verdictLatency }) {
+      report.append(System.lineSeparator()).append("  ")
+            .append(LatencyStats.format(stats.getName(), total ? closeInterval(stats).getTotal() : stats.nextInterval()));
+    }
+    out.println(report);
+    out.flush();
+
+    lastReportNanos = now;
+    lastSubmitted = currentSubmitted;
+    lastCompleted = currentCompleted;
+
+  }
+
+  private LatencyStats closeInterval(LatencyStats stats) {
+    stats.nextInterval();
+    return stats;
+  }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import lombok.Data;
+
+/**
+ * Shape of the load produced by the <code>LoadGenerator</code>: either an open model with a fixed submission rate,
+ * or, when a concurrency is given, a closed model with that many executions outstanding at all times.
+ */
+@Data
+public class LoadGeneratorConfig {
+
+  public static final double DEFAULT_RATE = 1.0;
+  public static final int DEFAULT_DURATION_SECONDS = 60;
+  public static final int DEFAULT_REPORT_INTERVAL_SECONDS = 10;
+
+  // submissions per second (open model)
+  private double rate = DEFAULT_RATE;
+
+  // executions kept outstanding (closed model), 0 to use the rate instead
+  private int concurrency = 0;
+
+  private int durationSeconds = DEFAULT_DURATION_SECONDS;
+  private int reportIntervalSeconds = DEFAULT_REPORT_INTERVAL_SECONDS;
+
+}
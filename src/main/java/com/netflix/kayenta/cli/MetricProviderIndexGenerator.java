@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import org.springframework.util.ClassUtils;
+
+/**
+ * Build time generator of the metric provider index read by <code>MetricProviderRegistry</code>. It performs the
+ * classpath scan once, while the jar is built, so the client never has to at runtime.
+ * <p>
+ * Usage: MetricProviderIndexGenerator outputDirectory
+ */
+public class MetricProviderIndexGenerator {
+
+  public static void main(String[] args) throws IOException {
+
+    if (args.length != 1) {
+      System.err.println("Usage: MetricProviderIndexGenerator outputDirectory");
+      System.exit(1);
+    }
+
+    Map<String, Class<?>> providers = MetricProviderRegistry.scan(ClassUtils.getDefaultClassLoader());
+
+    Properties index = new Properties();
+    for (Map.Entry<String, Class<?>> provider : providers.entrySet()) {
+      index.setProperty(provider.getKey(), provider.getValue().getName());
+    }
+
+    File indexFile = new File(args[0], MetricProviderRegistry.INDEX_RESOURCE);
+    if (!indexFile.getParentFile().isDirectory() && !indexFile.getParentFile().mkdirs()) {
+      throw new IOException("Unable to create directory " + indexFile.getParentFile());
+    }
+    try (OutputStream out = new FileOutputStream(indexFile)) {
+      index.store(out, "CanaryMetricSetQueryConfig subtypes by JsonTypeName, generated by MetricProviderIndexGenerator");
+    }
+
+    System.out.println("Wrote " + providers.size() + " metric providers to " + indexFile);
+
+  }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.util.ClassUtils;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.fasterxml.jackson.databind.jsontype.NamedType;
+import com.netflix.kayenta.canary.CanaryMetricSetQueryConfig;
+import com.netflix.spinnaker.kork.jackson.InvalidSubtypeConfigurationException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The <code>CanaryMetricSetQueryConfig</code> subtypes (metric providers) available to the client, keyed by their
+ * <code>JsonTypeName</code>, i.e. the <code>serviceType</code> of a metric group. The registry is read from an index
+ * generated at build time by <code>MetricProviderIndexGenerator</code>, so no classpath scanning happens at runtime;
+ * the scan is only used as a fallback when no index is packaged (e.g. when running from an IDE).
+ * <p>
+ * The registry also holds the <code>MetricQueryFactory</code> implementations found with <code>ServiceLoader</code>;
+ * the query config types of custom factories are added to the providers.
+ */
+@Slf4j
+public class MetricProviderRegistry {
+
+  public static final String INDEX_RESOURCE = "META-INF/kayenta-cli/metric-providers.properties";
+  public static final String PROVIDER_PACKAGE = "com.netflix.kayenta.canary.providers.metrics";
+
+  private static volatile MetricProviderRegistry instance;
+
+  private final Map<String, Class<?>> providers;
+  private final Map<String, MetricQueryFactory> queryFactories;
+  private final String source;
+  private final long loadTimeMillis;
+
+  MetricProviderRegistry(Map<String, Class<?>> providers, Map<String, MetricQueryFactory> queryFactories, String source, long loadTimeMillis) {
+    super();
+    this.providers = Collections.unmodifiableMap(providers);
+    this.queryFactories = Collections.unmodifiableMap(queryFactories);
+    this.source = source;
+    this.loadTimeMillis = loadTimeMillis;
+  }
+
+  /**
+   * Get the process wide registry, loading it on first use.
+   */
+  public static MetricProviderRegistry getInstance() {
+    if (instance == null) {
+      synchronized (MetricProviderRegistry.class) {
+        if (instance == null) {
+          instance = load(ClassUtils.getDefaultClassLoader());
+        }
+      }
+    }
+    return instance;
+  }
+
+  static MetricProviderRegistry load(ClassLoader classLoader) {
+
+    long start = System.nanoTime();
+
+    Map<String, Class<?>> providers = new LinkedHashMap<>();
+    String source;
+    try {
+      Enumeration<URL> indexes = classLoader.getResources(INDEX_RESOURCE);
+      while (indexes.hasMoreElements()) {
+        readIndex(indexes.nextElement(), classLoader, providers);
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException("An exception was encountered reading the metric provider index "+INDEX_RESOURCE, ex);
+    }
+
+    if (!providers.isEmpty()) {
+      source = "build-time index";
+    } else {
+      log.warn("No metric provider index ({}) was found on the classpath, scanning {} instead", INDEX_RESOURCE, PROVIDER_PACKAGE);
+      providers = scan(classLoader);
+      source = "classpath scan";
+    }
+
+    Map<String, MetricQueryFactory> queryFactories = new HashMap<>();
+    for (MetricQueryFactory queryFactory : ServiceLoader.load(MetricQueryFactory.class, classLoader)) {
+      String serviceType = queryFactory.getServiceType();
+      MetricQueryFactory previous = queryFactories.put(serviceType, queryFactory);
+      if (previous != null) {
+        log.warn("Metric query factory {} replaces {} for service type {}", 
+                 queryFactory.getClass().getName(), previous.getClass().getName(), serviceType);
+      }
+      providers.putIfAbsent(serviceType, queryFactory.getQueryConfigType());
+    }
+
+    long loadTimeMillis = (System.nanoTime() - start) / 1000000;
+    log.debug("Loaded {} metric providers and {} query factories from {} in {} ms", 
+              providers.size(), queryFactories.size(), source, loadTimeMillis);
+
+    return new MetricProviderRegistry(providers, queryFactories, source, loadTimeMillis);
+
+  }
+
+  private static void readIndex(URL index, ClassLoader classLoader, Map<String, Class<?>> providers) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = index.openStream()) {
+      properties.load(in);
+    }
+    for (String name : properties.stringPropertyNames()) {
+      providers.put(name, ClassUtils.resolveClassName(properties.getProperty(name), classLoader));
+    }
+  }
+
+  /**
+   * Find the metric providers by scanning the classpath. This is taken from
+   * com.netflix.spinnaker.kork.jackson.ObjectMapperSubtypeConfigurer.findSubtypes, and is only used at build time
+   * (to generate the index) or when the index is missing.
+   */
+  static Map<String, Class<?>> scan(ClassLoader classLoader) {
+
+    Map<String, Class<?>> providers = new LinkedHashMap<>();
+
+    ClassPathScanningCandidateComponentProvider provider = new ClassPathScanningCandidateComponentProvider(false);
+    provider.addIncludeFilter(new AssignableTypeFilter(CanaryMetricSetQueryConfig.class));
+
+    Set<BeanDefinition> beans = provider.findCandidateComponents(PROVIDER_PACKAGE);
+    for (BeanDefinition bean : beans) {
+
+      Class<?> cls = ClassUtils.resolveClassName(bean.getBeanClassName(), classLoader);
+
+      JsonTypeName nameAnnotation = cls.getAnnotation(JsonTypeName.class);
+      if (nameAnnotation == null || "".equals(nameAnnotation.value())) {
+        String message = "Subtype " + cls.getSimpleName() + " does not have a JsonTypeName annotation";
+        throw new InvalidSubtypeConfigurationException(message);
+      }
+
+      providers.put(nameAnnotation.value(), cls);
+
+    }
+
+    return providers;
+
+  }
+
+  public Map<String, Class<?>> getProviders() {
+    return providers;
+  }
+
+  public Class<?> getProviderClass(String serviceType) {
+    return providers.get(serviceType);
+  }
+
+  /**
+   * The query factories by service type.
+   */
+  public Map<String, MetricQueryFactory> getQueryFactories() {
+    return queryFactories;
+  }
+
+  /**
+   * The providers as Jackson named types, for registering them as subtypes with an object mapper.
+   */
+  public NamedType[] getNamedTypes() {
+    List<NamedType> namedTypes = new ArrayList<>();
+    for (Map.Entry<String, Class<?>> provider : providers.entrySet()) {
+      namedTypes.add(new NamedType(provider.getValue(), provider.getKey()));
+    }
+    return namedTypes.toArray(new NamedType[0]);
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public long getLoadTimeMillis() {
+    return loadTimeMillis;
+  }
+
+  @Override
+  public String toString() {
+    return providers.size() + " metric providers " + providers.keySet() + " loaded from " + source + " in " + loadTimeMillis + " ms";
+  }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.netflix.kayenta.canary.CanaryMetricSetQueryConfig;
+
+/**
+ * Service provider interface for building the query of a metric, one implementation per metric provider. 
+ * Implementations are found with <code>java.util.ServiceLoader</code>, so a custom metric provider only has to ship
+ * an implementation together with a <code>META-INF/services/com.netflix.kayenta.cli.MetricQueryFactory</code> entry.
+ */
+public interface MetricQueryFactory {
+
+  /**
+   * The query config subtype built by this factory; it is also registered with the client's object mapper.
+   */
+  Class<? extends CanaryMetricSetQueryConfig> getQueryConfigType();
+
+  /**
+   * The metric group service type handled by this factory, by default the <code>JsonTypeName</code> of the query config type.
+   */
+  default String getServiceType() {
+    JsonTypeName nameAnnotation = getQueryConfigType().getAnnotation(JsonTypeName.class);
+    if (nameAnnotation == null || "".equals(nameAnnotation.value())) {
+      throw new IllegalStateException("Subtype " + getQueryConfigType().getSimpleName() + " does not have a JsonTypeName annotation");
+    }
+    return nameAnnotation.value();
+  }
+
+  /**
+   * Build the query of one metric of a metric group.
+   * 
+   * @param metricName
+   * @param metricGroup
+   * @return the query config
+   */
+  CanaryMetricSetQueryConfig createQuery(String metricName, AdhocRequestConfig.MetricGroup metricGroup);
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryConfig;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.CanaryMetricConfig;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Partitions the metrics of a request into shards that are analyzed by separate, concurrent executions (a single
+ * execution fetches its metrics one after the other on one Kayenta worker), then merges the per-metric results and
+ * recomputes the group and overall scores locally with <code>JudgeScoreCalculator</code>.
+ */
+@Slf4j
+public class MetricSharding {
+
+  ObjectMapper mapper;
+  int shardSize;
+  int parallelism;
+
+  String kayentaURL;
+  String metricsAccount;
+  String storageAccount;
+
+  PollingStrategy pollingStrategy = 
+      PollingStrategy.defaultStrategy(PollingStrategy.DEFAULT_TIMEOUT_MILLIS, PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS);
+  PhaseTimings timings = null;
+
+  List<ShardResult> results = new ArrayList<>();
+  CanaryJudgeResult judgeResult = null;
+
+  public MetricSharding(ObjectMapper mapper, int shardSize, int parallelism, String kayentaURL, String metricsAccount, String storageAccount) {
+    super();
+    this.mapper = mapper;
+    this.shardSize = shardSize;
+    this.parallelism = parallelism;
+    this.kayentaURL = kayentaURL;
+    this.metricsAccount = metricsAccount;
+    this.storageAccount = storageAccount;
+  }
+
+  public void setPollingStrategy(PollingStrategy pollingStrategy) {
+    this.pollingStrategy = pollingStrategy;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
+  /**
+   * Create one request per shard of at most <code>shardSize</code> metrics. The shard requests share the execution
+   * request (scopes and thresholds) of the original request.
+   */
+  public List<CanaryAdhocExecutionRequest> split(CanaryAdhocExecutionRequest adhocRequest) {
+    CanaryConfig canaryConfig = adhocRequest.getCanaryConfig();
+    List<CanaryMetricConfig> metrics = canaryConfig.getMetrics();
+    List<CanaryAdhocExecutionRequest> shards = new ArrayList<>();
+    for (int from = 0; from < metrics.size(); from += shardSize) {
+      CanaryConfig shardConfig = 
+          CanaryConfig.builder()
+          .name(canaryConfig.getName())
+          .application(canaryConfig.getApplication())
+          .judge(canaryConfig.getJudge())
+          .metrics(new ArrayList<>(metrics.subList(from, Math.min(from + shardSize, metrics.size()))))
+          .templates(canaryConfig.getTemplates())
+          .classifier(canaryConfig.getClassifier())
+          .createdTimestamp(canaryConfig.getCreatedTimestamp())
+          .createdTimestampIso(canaryConfig.getCreatedTimestampIso())
+          .updatedTimestamp(canaryConfig.getUpdatedTimestamp())
+          .updatedTimestampIso(canaryConfig.getUpdatedTimestampIso())
+          .build();
+      CanaryAdhocExecutionRequest shard = new CanaryAdhocExecutionRequest();
+      shard.setCanaryConfig(shardConfig);
+      shard.setExecutionRequest(adhocRequest.getExecutionRequest());
+      shards.add(shard);
+    }
+    return shards;
+  }
+
+  /**
+   * Run one execution per shard, at most <code>parallelism</code> at a time, and combine their metric results.
+   * 
+   * @param adhocRequest
+   * @return true when every shard completed with a result, so that the combined verdict is known.
+   */
+  public boolean run(CanaryAdhocExecutionRequest adhocRequest) {
+
+    List<CanaryAdhocExecutionRequest> shards = split(adhocRequest);
+    if (shards.isEmpty()) {
+      throw new RuntimeException("The canary adhoc execution request has no metrics to shard");
+    }
+
+    // one slot per shard, so the merged metric results keep the order of the configuration
+    CanaryJudgeResult[] judgeResults = new CanaryJudgeResult[shards.size()];
+    KayentaClient client = 
+        KayentaClient.builder()
+        .mapper(mapper)
+        .kayentaURL(kayentaURL)
+        .metricsAccount(metricsAccount)
+        .storageAccount(storageAccount)
+        .pollingStrategy(pollingStrategy)
+        // the per-metric results are merged
+        .includeMetricResults(true)
+        .timings(timings)
+        .build();
+    results.addAll(ConcurrentExecutions.run(client, shards, parallelism, "shard", 
+                                            (index, canaryExecutionId, status, error) -> result(index + 1, shards.get(index), canaryExecutionId, status, error, judgeResults)));
+
+    if (Arrays.asList(judgeResults).contains(null)) return false;
+
+    judgeResult = new JudgeScoreCalculator(adhocRequest.getCanaryConfig().getClassifier(), adhocRequest.getExecutionRequest().getThresholds())
+        .combine(Arrays.asList(judgeResults));
+    return true;
+
+  }
+
+  ShardResult result(int shard, CanaryAdhocExecutionRequest shardRequest, String canaryExecutionId, CanaryExecutionStatusResponse status, 
+                     Throwable error, CanaryJudgeResult[] judgeResults) {
+
+    ShardResult result = new ShardResult();
+    result.setShard(shard);
+    result.setMetricCount(shardRequest.getCanaryConfig().getMetrics().size());
+    result.setCanaryExecutionId(canaryExecutionId);
+
+    if (error != null) {
+      log.debug("Shard {} failed", shard, error);
+      result.setError(error.getMessage());
+      return result;
+    }
+
+    result.setComplete(status.getComplete());
+    result.setStatus(status.getStatus());
+    CanaryResult canaryResult = status.getResult();
+    if (Boolean.TRUE.equals(status.getComplete()) && canaryResult != null && canaryResult.getJudgeResult() != null) {
+      result.setScore(canaryResult.getJudgeResult().getScore().getScore());
+      judgeResults[shard - 1] = canaryResult.getJudgeResult();
+    }
+    return result;
+
+  }
+
+  public List<ShardResult> getResults() {
+    return results;
+  }
+
+  /**
+   * The combined judge result, or null when not every shard completed.
+   */
+  public CanaryJudgeResult getJudgeResult() {
+    return judgeResult;
+  }
+
+}
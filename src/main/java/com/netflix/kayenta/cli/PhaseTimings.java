@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Wall clock time (and bytes) spent in each phase of one client run, so a slow canary can be attributed to the client
+ * (parsing, building, serializing, rendering), the network (connect, TLS handshake) or Kayenta (time to first byte,
+ * waiting between polls). Phases may be recorded from several threads, e.g. by the executions of a batch.
+ */
+public class PhaseTimings {
+
+  public static final String CONFIG_PARSE = "config_parse";
+  public static final String PROVIDER_DISCOVERY = "provider_discovery";
+  public static final String REQUEST_BUILD = "request_build";
+  public static final String REQUEST_SERIALIZE = "request_serialize";
+  public static final String HTTP_CONNECT = "http_connect";
+  public static final String TLS_HANDSHAKE = "tls_handshake";
+  public static final String TIME_TO_FIRST_BYTE = "time_to_first_byte";
+  public static final String SUBMIT_WAIT = "submit_wait";
+  public static final String POST = "post";
+  public static final String POLL = "poll";
+  public static final String POLL_WAIT = "poll_wait";
+  public static final String DATA_WAIT = "data_wait";
+  public static final String RENDER = "render";
+
+  static final String PROMETHEUS_PREFIX = "kayenta_cli_";
+
+  static class Phase {
+    long count;
+    long totalNanos;
+    long maxNanos;
+    long bytes;
+  }
+
+  final Map<String, Phase> phases = new LinkedHashMap<>();
+  final long startNanos = System.nanoTime();
+  final long startMillis = System.currentTimeMillis();
+
+  public synchronized void record(String phase, long nanos, long bytes) {
+    Phase entry = phases.get(phase);
+    if (entry == null) {
+      entry = new Phase();
+      phases.put(phase, entry);
+    }
+    entry.count++;
+    entry.totalNanos += nanos;
+    entry.maxNanos = Math.max(entry.maxNanos, nanos);
+    entry.bytes += bytes;
+  }
+
+  public void record(String phase, long nanos) {
+    record(phase, nanos, 0);
+  }
+
+  /**
+   * Record an HTTP exchange as the given phase, along with the connect, TLS handshake and time to first byte
+   * measured by the transport. A new TLS connection, direct or through a proxy, counts its TCP connect as the connect
+   * and its handshake separately. Taking a plain HTTP connection from the keep-alive pool still counts as a (short)
+   * connect; a reused TLS connection is not counted at all.
+   * 
+   * @param phase
+   * @param nanos
+   * @param response the response of the exchange, or null when it failed
+   */
+  public void recordExchange(String phase, long nanos, HttpResponse response) {
+    if (response == null) {
+      record(phase, nanos);
+      return;
+    }
+    record(phase, nanos, response.getBytesSent() + response.getBytesReceived());
+    if (response.getConnectNanos() > 0) record(HTTP_CONNECT, response.getConnectNanos());
+    if (response.getTlsHandshakeNanos() > 0) record(TLS_HANDSHAKE, response.getTlsHandshakeNanos());
+    record(TIME_TO_FIRST_BYTE, response.getTimeToFirstByteNanos());
+  }
+
+  public long getElapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  /**
+   * The run as a single JSON object: when it started, how long it took, whether it succeeded and the count, total
+   * and maximum milliseconds and bytes of every phase.
+   */
+  public synchronized ObjectNode toJson(ObjectMapper mapper, String command, boolean success) {
+    ObjectNode run = mapper.createObjectNode();
+    run.put("timestamp", Instant.ofEpochMilli(startMillis).toString());
+    run.put("command", command);
+    run.put("success", success);
+    run.put("elapsedMillis", getElapsedNanos() / 1e6);
+    ObjectNode phasesNode = run.putObject("phases");
+    for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+      Phase phase = entry.getValue();
+      ObjectNode phaseNode = phasesNode.putObject(entry.getKey());
+      phaseNode.put("count", phase.count);
+      phaseNode.put("totalMillis", phase.totalNanos / 1e6);
+      phaseNode.put("maxMillis", phase.maxNanos / 1e6);
+      phaseNode.put("bytes", phase.bytes);
+    }
+    return run;
+  }
+
+  /**
+   * Append the run to a JSON lines file, so it can be tracked across many runs.
+   */
+  public void appendJson(String filename, ObjectMapper mapper, String command, boolean success) throws IOException {
+    byte[] line = (mapper.writeValueAsString(toJson(mapper, command, success)) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    try (OutputStream out = Files.newOutputStream(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      out.write(line);
+    }
+  }
+
+  /**
+   * Write the run as gauges in the Prometheus text format, for the node exporter textfile collector. The file is
+   * replaced atomically so the collector never reads a partial file.
+   */
+  public void writePrometheus(String filename, String command, boolean success) throws IOException {
+    Path target = Paths.get(filename).toAbsolutePath();
+    Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write(toPrometheus(command, success));
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  synchronized String toPrometheus(String command, boolean success) {
+    String labels = "command=\"" + command + "\"";
+    StringBuilder builder = new StringBuilder();
+    gauge(builder, "last_run_timestamp_seconds", "Start time of the last run.", labels, startMillis / 1000.0);
+    gauge(builder, "last_run_success", "Whether the last run succeeded.", labels, success ? 1 : 0);
+    gauge(builder, "last_run_duration_seconds", "Wall clock duration of the last run.", labels, getElapsedNanos() / 1e9);
+    String[][] series = {
+      { "last_run_phase_seconds", "Time spent in each phase of the last run." },
+      { "last_run_phase_max_seconds", "Longest single occurrence of each phase in the last run." },
+      { "last_run_phase_count", "Number of occurrences of each phase in the last run." },
+      { "last_run_phase_bytes", "Bytes transferred by each phase of the last run." }
+    };
+    for (int i = 0; i < series.length; i++) {
+      builder.append("# HELP ").append(PROMETHEUS_PREFIX).append(series[i][0]).append(' ').append(series[i][1]).append('\n');
+      builder.append("# TYPE ").append(PROMETHEUS_PREFIX).append(series[i][0]).append(" gauge\n");
+      for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+        Phase phase = entry.getValue();
+        double value = i == 0 ? phase.totalNanos / 1e9 : i == 1 ? phase.maxNanos / 1e9 : i == 2 ? phase.count : phase.bytes;
+        sample(builder, series[i][0], labels + ",phase=\"" + entry.getKey() + "\"", value);
+      }
+    }
+    return builder.toString();
+  }
+
+  private static void gauge(StringBuilder builder, String name, String help, String labels, double value) {
+    builder.append("# HELP ").append(PROMETHEUS_PREFIX).append(name).append(' ').append(help).append('\n');
+    builder.append("# TYPE ").append(PROMETHEUS_PREFIX).append(name).append(" gauge\n");
+    sample(builder, name, labels, value);
+  }
+
+  private static void sample(StringBuilder builder, String name, String labels, double value) {
+    builder.append(PROMETHEUS_PREFIX).append(name).append('{').append(labels).append("} ").append(value).append('\n');
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder(String.format("elapsedMillis=%.1f", getElapsedNanos() / 1e6));
+    for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+      Phase phase = entry.getValue();
+      builder.append(String.format(" %s=%dx/%.1fms", entry.getKey(), phase.count, phase.totalNanos / 1e6));
+      if (phase.bytes > 0) builder.append('/').append(phase.bytes).append('B');
+    }
+    return builder.toString();
+  }
+
+}
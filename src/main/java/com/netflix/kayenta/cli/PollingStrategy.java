@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryScope;
+import com.netflix.kayenta.canary.CanaryScopePair;
+
+import lombok.Getter;
+
+/**
+ * Decides how long to wait between execution status polls: exponential backoff with jitter, capped at a maximum
+ * interval, until an overall deadline. The first poll is delayed (and the backoff starts) according to an estimate of
+ * the analysis duration taken from the analysis window size and the number of metrics, and a <code>Retry-After</code>
+ * hint from the server takes precedence over the computed interval.
+ */
+@Getter
+public class PollingStrategy {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = Duration.ofSeconds(Client.WAIT_TIMEOUT_IN_SECONDS).toMillis();
+  public static final long DEFAULT_MAX_INTERVAL_MILLIS = Duration.ofSeconds(30).toMillis();
+  public static final long MIN_INTERVAL_MILLIS = 1000;
+  public static final double DEFAULT_MULTIPLIER = 1.5;
+  public static final double DEFAULT_JITTER = 0.2;
+
+  // rough per request and per metric analysis costs used to estimate how long an execution takes
+  static final long BASE_ANALYSIS_MILLIS = 2000;
+  static final long METRIC_ANALYSIS_MILLIS = 100;
+  static final double DATA_POINT_ANALYSIS_MILLIS = 0.1;
+
+  private final long timeoutMillis;
+  private final long maxIntervalMillis;
+  private final long initialDelayMillis;
+  private final long initialIntervalMillis;
+  private final double multiplier;
+  private final double jitter;
+
+  public PollingStrategy(long timeoutMillis, long maxIntervalMillis, long initialDelayMillis, long initialIntervalMillis, 
+                         double multiplier, double jitter) {
+    super();
+    this.timeoutMillis = timeoutMillis;
+    this.maxIntervalMillis = Math.max(maxIntervalMillis, MIN_INTERVAL_MILLIS);
+    this.initialDelayMillis = initialDelayMillis;
+    this.initialIntervalMillis = clamp(initialIntervalMillis);
+    this.multiplier = multiplier;
+    this.jitter = jitter;
+  }
+
+  /**
+   * The default strategy: poll after one second, then back off.
+   * 
+   * @param timeoutMillis
+   * @param maxIntervalMillis
+   */
+  public static PollingStrategy defaultStrategy(long timeoutMillis, long maxIntervalMillis) {
+    return new PollingStrategy(timeoutMillis, maxIntervalMillis, MIN_INTERVAL_MILLIS, MIN_INTERVAL_MILLIS, DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+  }
+
+  /**
+   * Derive the initial delay and interval from the expected duration of the analysis.
+   * 
+   * @param adhocRequest
+   * @return a new strategy with the same deadline, maximum interval, multiplier and jitter.
+   */
+  public PollingStrategy estimateFor(CanaryAdhocExecutionRequest adhocRequest) {
+    long expectedMillis = estimateAnalysisMillis(adhocRequest);
+    return new PollingStrategy(timeoutMillis, maxIntervalMillis, clamp(expectedMillis / 2), expectedMillis / 10, multiplier, jitter);
+  }
+
+  /**
+   * Estimate how long Kayenta takes to analyze a request: a fixed cost plus, for every metric, a per query cost and
+   * a cost per data point in the analysis window.
+   */
+  static long estimateAnalysisMillis(CanaryAdhocExecutionRequest adhocRequest) {
+
+    int metricCount = adhocRequest.getCanaryConfig().getMetrics().size();
+
+    long dataPoints = 0;
+    Map<String, CanaryScopePair> scopes = adhocRequest.getExecutionRequest().getScopes();
+    if (scopes != null) {
+      for (CanaryScopePair scopePair : scopes.values()) {
+        CanaryScope scope = scopePair.getControlScope();
+        if (scope != null && scope.getStart() != null && scope.getEnd() != null) {
+          long windowSeconds = Duration.between(scope.getStart(), scope.getEnd()).getSeconds();
+          Long step = scope.getStep();
+          dataPoints = Math.max(dataPoints, windowSeconds / (step != null && step > 0 ? step : 60));
+        }
+      }
+    }
+
+    return BASE_ANALYSIS_MILLIS + (long) (metricCount * (METRIC_ANALYSIS_MILLIS + dataPoints * DATA_POINT_ANALYSIS_MILLIS));
+
+  }
+
+  /**
+   * The delay before the next poll.
+   * 
+   * @param attempt the number of polls already made (starting at 1)
+   * @param retryAfterMillis the interval hinted by the server, or a negative number if there was none; it is honored
+   *        even when longer than the maximum interval, up to the timeout (callers stop at the deadline of the execution)
+   * @return the delay in milliseconds
+   */
+  public long nextDelay(int attempt, long retryAfterMillis) {
+    if (retryAfterMillis >= 0) {
+      return Math.min(Math.max(retryAfterMillis, MIN_INTERVAL_MILLIS), Math.max(timeoutMillis, MIN_INTERVAL_MILLIS));
+    }
+    double interval = initialIntervalMillis * Math.pow(multiplier, Math.max(0, attempt - 1));
+    double jittered = interval * (1.0 + jitter * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0));
+    return clamp((long) Math.min(jittered, maxIntervalMillis));
+  }
+
+  /**
+   * Parse a <code>Retry-After</code> header value given in seconds.
+   * 
+   * @param retryAfter
+   * @return the interval in milliseconds, or -1 if the header is absent or not a number of seconds.
+   */
+  public static long parseRetryAfter(String retryAfter) {
+    if (retryAfter == null) return -1;
+    try {
+      return Duration.ofSeconds(Long.parseLong(retryAfter.trim())).toMillis();
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private long clamp(long millis) {
+    return Math.min(Math.max(millis, MIN_INTERVAL_MILLIS), maxIntervalMillis);
+  }
+
+}
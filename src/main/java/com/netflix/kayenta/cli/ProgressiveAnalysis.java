@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.PrintStream;
+import java.time.Instant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryClassifierThresholdsConfig;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+/**
+ * Re-analyzes a growing window, from the analysis start time up to one more interval each time, until the data is
+ * conclusive: it stops as soon as a score falls below the marginal threshold, or after a number of consecutive passes.
+ * Windows that end in the future are analyzed once their end time has been reached, so a rollout can be gated while it
+ * is in progress. The request is built once and every iteration goes through the same client (and pooled connection).
+ */
+public class ProgressiveAnalysis {
+
+  public static final int DEFAULT_INTERVAL_MINUTES = 5;
+  public static final int DEFAULT_REQUIRED_PASSES = 3;
+
+  public enum Outcome { PASS, EARLY_PASS, FAIL, MARGINAL, ERROR }
+
+  final Client client;
+  final long intervalMillis;
+  final int requiredPasses;
+  final PrintStream out;
+
+  PhaseTimings timings = null;
+
+  int iterations = 0;
+  Double score = null;
+  String classification = null;
+  String status = null;
+
+  /**
+   * @param client
+   * @param intervalMillis how much the window grows between iterations
+   * @param requiredPasses consecutive passes after which the analysis stops early, 0 to always run up to the end time
+   * @param out
+   */
+  public ProgressiveAnalysis(Client client, long intervalMillis, int requiredPasses, PrintStream out) {
+    super();
+    this.client = client;
+    this.intervalMillis = intervalMillis;
+    this.requiredPasses = requiredPasses;
+    this.out = out;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
+  /**
+   * Analyze growing windows of the request until the outcome is known.
+   * 
+   * @param adhocRequest the built request; its analysis window is changed for every iteration.
+   * @param kayentaURL
+   * @param metricsAccount
+   * @param storageAccount
+   * @param analysisStartTime
+   * @param analysisEndTime
+   * @return the outcome; ERROR when an execution did not complete or the wait was interrupted.
+   */
+  public Outcome run(CanaryAdhocExecutionRequest adhocRequest, String kayentaURL, String metricsAccount, String storageAccount, 
+                     long analysisStartTime, long analysisEndTime) {
+
+    CanaryClassifierThresholdsConfig thresholds = adhocRequest.getExecutionRequest().getThresholds();
+    int passes = 0;
+
+    for (long windowEnd = Math.min(analysisStartTime + intervalMillis, analysisEndTime); ; 
+         windowEnd = Math.min(windowEnd + intervalMillis, analysisEndTime)) {
+
+      if (!waitUntil(windowEnd)) {
+        status = "interrupted waiting for the next window";
+        return Outcome.ERROR;
+      }
+
+      iterations++;
+      AdhocRequestBuilder.setAnalysisWindow(adhocRequest, analysisStartTime, windowEnd);
+      client.sendAdhocRequest(adhocRequest, kayentaURL, metricsAccount, storageAccount, false);
+      client.waitForRequestToComplete();
+
+      CanaryExecutionStatusResponse executionStatus = client.getCanaryExecutionStatus();
+      status = executionStatus.getStatus();
+      CanaryResult canaryResult = executionStatus.getResult();
+      if (!Boolean.TRUE.equals(executionStatus.getComplete()) || canaryResult == null || canaryResult.getJudgeResult() == null) {
+        out.println("window " + iterations + " ending " + Instant.ofEpochMilli(windowEnd) + ": " + status);
+        return Outcome.ERROR;
+      }
+
+      CanaryJudgeScore judgeScore = canaryResult.getJudgeResult().getScore();
+      score = judgeScore.getScore();
+      classification = WindowedAnalysis.classify(score, thresholds);
+      if (classification == null) classification = judgeScore.getClassification();
+      out.println("window " + iterations + " ending " + Instant.ofEpochMilli(windowEnd) + ": score " + score + " (" + classification + ")");
+      out.flush();
+
+      if ("Fail".equals(classification)) {
+        return Outcome.FAIL;
+      }
+      passes = "Pass".equals(classification) ? passes + 1 : 0;
+      if (windowEnd >= analysisEndTime) {
+        return "Pass".equals(classification) ? Outcome.PASS : Outcome.MARGINAL;
+      }
+      if (requiredPasses > 0 && passes >= requiredPasses) {
+        return Outcome.EARLY_PASS;
+      }
+
+    }
+
+  }
+
+  /**
+   * Wait until the metrics of a window ending at the given time can be available.
+   * 
+   * @return false if interrupted.
+   */
+  boolean waitUntil(long time) {
+    long startNanos = System.nanoTime();
+    try {
+      long delay;
+      while ((delay = time - System.currentTimeMillis()) > 0) {
+        Thread.sleep(delay);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      if (timings != null) timings.record(PhaseTimings.DATA_WAIT, System.nanoTime() - startNanos);
+    }
+    return true;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public Double getScore() {
+    return score;
+  }
+
+  public String getClassification() {
+    return classification;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+
+/**
+ * Writes the final status of an execution in one of the output formats. Renderers write to a buffered writer in a
+ * single pass over the per-metric results, and only format the fields that were selected.
+ */
+public interface ResultRenderer {
+
+  enum Format { HUMAN, JSON, JSONL, CSV }
+
+  /**
+   * The fields that can be selected for the machine-readable formats. The execution level fields are repeated on every
+   * per-metric JSONL line and CSV row.
+   */
+  enum Field {
+    EXECUTION("canaryExecutionId"),
+    SCORE("score"),
+    GRADE("grade"),
+    METRIC("metric"),
+    CLASSIFICATION("classification"),
+    REASON("reason"),
+    GROUPS("groups"),
+    CRITICAL("critical"),
+    EXPERIMENT("experiment"),
+    CONTROL("control"),
+    RESULT("result");
+
+    public static final Set<Field> DEFAULT = EnumSet.of(EXECUTION, METRIC, CLASSIFICATION, REASON, CRITICAL);
+
+    final String label;
+
+    Field(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    /**
+     * Parse a comma separated list of field names, e.g. <code>metric,classification,reason</code>, keeping their order.
+     */
+    public static Set<Field> parse(String list) {
+      Set<Field> fields = new LinkedHashSet<>();
+      for (String name : list.split(",")) {
+        try {
+          fields.add(Field.valueOf(name.trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Unknown output field " + name + ", the fields are " + EnumSet.allOf(Field.class).toString().toLowerCase());
+        }
+      }
+      return fields;
+    }
+  }
+
+  /**
+   * Write the final status of an execution.
+   * 
+   * @param statusURL
+   * @param canaryExecutionId
+   * @param status the final status, or null if none was read
+   * @param out
+   */
+  void render(String statusURL, String canaryExecutionId, CanaryExecutionStatusResponse status, Writer out) throws IOException;
+
+  /**
+   * Create the renderer for a format.
+   * 
+   * @param format
+   * @param fields the selected fields, or null for the default ones
+   * @param mapper
+   * @param verbose whether the human readable format includes the per-metric results
+   */
+  static ResultRenderer create(Format format, Set<Field> fields, ObjectMapper mapper, boolean verbose) {
+    Set<Field> selected = fields != null ? fields : Field.DEFAULT;
+    switch (format) {
+      case JSON:
+        return new JsonResultRenderer(mapper, selected, false);
+      case JSONL:
+        return new JsonResultRenderer(mapper, selected, true);
+      case CSV:
+        return new CsvResultRenderer(mapper, selected);
+      default:
+        return new HumanResultRenderer(verbose);
+    }
+  }
+
+}
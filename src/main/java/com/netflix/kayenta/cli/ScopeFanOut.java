@@ -0,0 +1,439 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Expands the scope parameters listed in <code>extendedScopeParamValues</code> (whose values may be patterns like
+ * <code>canary-{01..40}</code> and <code>{us-east-1,us-west-2}</code>) into one scope per combination of values, analyzes every scope by its own,
+ * concurrent execution, and combines their scores locally. Kayenta judges all scope pairs of one execution together
+ * into a single score, so per-scope verdicts need an execution per scope.
+ * <p>
+ * The values of <code>extendedScopeParams</code> are taken as they are, as without fan-out, since metric store filters
+ * (e.g. PromQL or Atlas) use braces and commas themselves.
+ * <p>
+ * Parameters that vary in the experiment scope are combined with each other; a parameter that varies in both scopes
+ * with the same number of values is paired up by position (e.g. canary-07 with baseline-07) rather than combined.
+ */
+@Slf4j
+public class ScopeFanOut {
+
+  // an upper bound on the expansion, so a typo in a range does not start a million executions
+  public static final int MAX_SCOPES = 1000;
+
+  // scores further below the median than this many (normalized) median absolute deviations are outliers
+  public static final double OUTLIER_DEVIATIONS = 3.0;
+
+  private static final Pattern RANGE = Pattern.compile("(-?\\d+)\\.\\.(-?\\d+)");
+
+  /**
+   * One combination of scope parameter values and the request configuration that analyzes it.
+   */
+  @Data
+  public static class ExpandedScope {
+    private final String label;
+    private final AdhocRequestConfig config;
+  }
+
+  /**
+   * A scope parameter that takes several values; <code>controlParam</code> is set when it varies in the control
+   * scope and <code>experimentParam</code> when it varies in the experiment scope (both when paired up).
+   */
+  static class Dimension {
+    String name;
+    String controlParam;
+    String experimentParam;
+    int size;
+  }
+
+  ObjectMapper mapper;
+  WindowedAnalysis.Aggregation aggregation;
+  int parallelism;
+
+  String kayentaURL;
+  String metricsAccount;
+  String storageAccount;
+
+  PollingStrategy pollingStrategy = 
+      PollingStrategy.defaultStrategy(PollingStrategy.DEFAULT_TIMEOUT_MILLIS, PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS);
+  PhaseTimings timings = null;
+  CompiledConfigCache configCache = null;
+
+  List<ScopeResult> results = new ArrayList<>();
+  Double score = null;
+  String classification = null;
+
+  public ScopeFanOut(ObjectMapper mapper, WindowedAnalysis.Aggregation aggregation, int parallelism, 
+                     String kayentaURL, String metricsAccount, String storageAccount) {
+    super();
+    this.mapper = mapper;
+    this.aggregation = aggregation;
+    this.parallelism = parallelism;
+    this.kayentaURL = kayentaURL;
+    this.metricsAccount = metricsAccount;
+    this.storageAccount = storageAccount;
+  }
+
+  public void setPollingStrategy(PollingStrategy pollingStrategy) {
+    this.pollingStrategy = pollingStrategy;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
+  public void setConfigCache(CompiledConfigCache configCache) {
+    this.configCache = configCache;
+  }
+
+  /**
+   * Expand the brace patterns of a value: <code>{a,b}</code> is a list of alternatives and <code>{1..12}</code> a range
+   * of numbers, zero padded when either bound is (<code>{01..12}</code>). Braces holding neither are kept as they are.
+   * 
+   * @param value
+   * @return the values in order; the value itself when it has no pattern.
+   */
+  public static List<String> expandPattern(String value) {
+    return expandPattern(value, 0);
+  }
+
+  private static List<String> expandPattern(String value, int from) {
+    int open = value.indexOf('{', from);
+    int close = open < 0 ? -1 : value.indexOf('}', open);
+    if (close < 0) return Collections.singletonList(value);
+
+    List<String> alternatives = alternatives(value.substring(open + 1, close));
+    if (alternatives == null) return expandPattern(value, close + 1);
+
+    String prefix = value.substring(0, open);
+    List<String> suffixes = expandPattern(value.substring(close + 1), 0);
+    if ((long) alternatives.size() * suffixes.size() > MAX_SCOPES) {
+      throw new IllegalArgumentException("The pattern "+value+" expands to more than "+MAX_SCOPES+" values");
+    }
+    List<String> values = new ArrayList<>();
+    for (String alternative : alternatives) {
+      for (String suffix : suffixes) {
+        values.add(prefix + alternative + suffix);
+      }
+    }
+    return values;
+  }
+
+  private static List<String> alternatives(String body) {
+    Matcher range = RANGE.matcher(body);
+    if (range.matches()) {
+      String first = range.group(1);
+      String last = range.group(2);
+      long start = Long.parseLong(first);
+      long end = Long.parseLong(last);
+      if (Math.abs(end - start) >= MAX_SCOPES) {
+        throw new IllegalArgumentException("The range {"+body+"} has more than "+MAX_SCOPES+" values");
+      }
+      int width = isZeroPadded(first) || isZeroPadded(last) ? Math.max(first.length(), last.length()) : 0;
+      long step = start <= end ? 1 : -1;
+      List<String> values = new ArrayList<>();
+      for (long number = start; number != end + step; number += step) {
+        values.add(width > 0 ? String.format("%0" + width + "d", number) : Long.toString(number));
+      }
+      return values;
+    }
+    return body.indexOf(',') >= 0 ? Arrays.asList(body.split(",", -1)) : null;
+  }
+
+  private static boolean isZeroPadded(String number) {
+    String digits = number.startsWith("-") ? number.substring(1) : number;
+    return digits.length() > 1 && digits.startsWith("0");
+  }
+
+  /**
+   * Expand the request configuration into one configuration per combination of scope parameter values.
+   * 
+   * @param config the request configuration; it is not modified.
+   * @return the expanded scopes, in the order of the parameter values; a single one when no parameter has several values.
+   */
+  public List<ExpandedScope> expand(AdhocRequestConfig config) {
+
+    Map<String, List<String>> controlValues = values(config.getControlScope());
+    Map<String, List<String>> experimentValues = values(config.getExperimentScope());
+
+    List<Dimension> dimensions = new ArrayList<>();
+    for (Map.Entry<String, List<String>> entry : experimentValues.entrySet()) {
+      if (entry.getValue().size() < 2) continue;
+      Dimension dimension = new Dimension();
+      dimension.name = entry.getKey();
+      dimension.experimentParam = entry.getKey();
+      dimension.size = entry.getValue().size();
+      List<String> paired = controlValues.get(entry.getKey());
+      if (paired != null && paired.size() > 1) {
+        if (paired.size() != dimension.size) {
+          throw new IllegalArgumentException("The scope parameter "+entry.getKey()+" has "+paired.size()+" control values and "
+                                             +dimension.size+" experiment values; values are paired up, so their number must match");
+        }
+        dimension.controlParam = entry.getKey();
+      }
+      dimensions.add(dimension);
+    }
+    for (Map.Entry<String, List<String>> entry : controlValues.entrySet()) {
+      List<String> experiment = experimentValues.get(entry.getKey());
+      if (entry.getValue().size() < 2 || (experiment != null && experiment.size() > 1)) continue;
+      Dimension dimension = new Dimension();
+      dimension.name = "control." + entry.getKey();
+      dimension.controlParam = entry.getKey();
+      dimension.size = entry.getValue().size();
+      dimensions.add(dimension);
+    }
+
+    long total = 1;
+    for (Dimension dimension : dimensions) {
+      total *= dimension.size;
+      if (total > MAX_SCOPES) {
+        throw new IllegalArgumentException("The scope parameters expand to more than "+MAX_SCOPES+" scopes");
+      }
+    }
+
+    List<ExpandedScope> scopes = new ArrayList<>();
+    int[] indexes = new int[dimensions.size()];
+    for (int n = 0; n < total; n++) {
+      // the last dimension varies fastest, as in nested loops over the parameters in configuration order
+      int remainder = n;
+      for (int d = dimensions.size() - 1; d >= 0; d--) {
+        indexes[d] = remainder % dimensions.get(d).size;
+        remainder /= dimensions.get(d).size;
+      }
+
+      Map<String, Integer> controlIndexes = new LinkedHashMap<>();
+      Map<String, Integer> experimentIndexes = new LinkedHashMap<>();
+      List<String> label = new ArrayList<>();
+      for (int d = 0; d < dimensions.size(); d++) {
+        Dimension dimension = dimensions.get(d);
+        if (dimension.controlParam != null) controlIndexes.put(dimension.controlParam, indexes[d]);
+        if (dimension.experimentParam != null) experimentIndexes.put(dimension.experimentParam, indexes[d]);
+        List<String> values = dimension.experimentParam != null ? experimentValues.get(dimension.experimentParam) : controlValues.get(dimension.controlParam);
+        label.add(dimension.name + "=" + values.get(indexes[d]));
+      }
+
+      AdhocRequestConfig scopeConfig = mapper.convertValue(config, AdhocRequestConfig.class);
+      scopeConfig.setControlScope(select(config.getControlScope(), controlValues, controlIndexes));
+      scopeConfig.setExperimentScope(select(config.getExperimentScope(), experimentValues, experimentIndexes));
+      scopes.add(new ExpandedScope(label.isEmpty() ? config.getScopeName() : StringUtils.join(label, ","), scopeConfig));
+    }
+    return scopes;
+
+  }
+
+  /**
+   * Collect the values of every scope parameter: the single value of those in <code>extendedScopeParams</code>, and the
+   * listed values, with their patterns expanded, of those in <code>extendedScopeParamValues</code>.
+   */
+  private static Map<String, List<String>> values(AdhocRequestConfig.ClientCanaryScope scope) {
+    Map<String, List<String>> values = new LinkedHashMap<>();
+    if (scope.getExtendedScopeParams() != null) {
+      for (Map.Entry<String, String> entry : scope.getExtendedScopeParams().entrySet()) {
+        values.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+      }
+    }
+    if (scope.getExtendedScopeParamValues() != null) {
+      for (Map.Entry<String, List<String>> entry : scope.getExtendedScopeParamValues().entrySet()) {
+        List<String> listed = new ArrayList<>();
+        for (String value : entry.getValue()) {
+          listed.addAll(expandPattern(value));
+        }
+        if (listed.isEmpty()) {
+          throw new IllegalArgumentException("The scope parameter "+entry.getKey()+" lists no values");
+        }
+        values.put(entry.getKey(), listed);
+      }
+    }
+    return values;
+  }
+
+  private static AdhocRequestConfig.ClientCanaryScope select(AdhocRequestConfig.ClientCanaryScope scope, Map<String, List<String>> values, 
+                                                             Map<String, Integer> indexes) {
+    Map<String, String> params = new LinkedHashMap<>();
+    for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+      Integer index = indexes.get(entry.getKey());
+      params.put(entry.getKey(), entry.getValue().get(index != null ? index : 0));
+    }
+    AdhocRequestConfig.ClientCanaryScope selected = new AdhocRequestConfig.ClientCanaryScope();
+    selected.setLocation(scope.getLocation());
+    selected.setExtendedScopeParams(params);
+    return selected;
+  }
+
+  /**
+   * Run one execution per expanded scope, at most <code>parallelism</code> at a time, aggregate their scores and mark
+   * the outliers.
+   * 
+   * @param configFilename the request configuration file, with scope parameters that have several values.
+   * @param analysisStartTime
+   * @param analysisEndTime
+   * @return true when every scope produced a score, so that the aggregate score is known.
+   */
+  public boolean run(String configFilename, long analysisStartTime, long analysisEndTime) {
+
+    AdhocRequestBuilder adhocRequestBuilder = new AdhocRequestBuilder(mapper, configCache);
+    adhocRequestBuilder.setTimings(timings);
+
+    List<ExpandedScope> scopes;
+    try {
+      scopes = expand(adhocRequestBuilder.readConfig(configFilename));
+    } catch (IllegalArgumentException ex) {
+      throw new RuntimeException("Unable to expand the scope parameters, reason: "+ex.getMessage(), ex);
+    }
+
+    List<AdhocRequestConfig> scopeConfigs = new ArrayList<>();
+    for (ExpandedScope scope : scopes) {
+      scopeConfigs.add(scope.getConfig());
+    }
+    List<CanaryAdhocExecutionRequest> scopeRequests = adhocRequestBuilder.buildExpanded(configFilename, scopeConfigs, analysisStartTime, analysisEndTime);
+
+    KayentaClient client = 
+        KayentaClient.builder()
+        .mapper(mapper)
+        .kayentaURL(kayentaURL)
+        .metricsAccount(metricsAccount)
+        .storageAccount(storageAccount)
+        .pollingStrategy(pollingStrategy)
+        // the per-metric results name the metrics that failed in a scope
+        .includeMetricResults(true)
+        .timings(timings)
+        .build();
+    results.addAll(ConcurrentExecutions.run(client, scopeRequests, parallelism, "scope", 
+                                            (index, canaryExecutionId, status, error) -> result(scopes.get(index).getLabel(), canaryExecutionId, status, error)));
+
+    markOutliers(results);
+
+    List<Double> scores = new ArrayList<>();
+    for (ScopeResult result : results) {
+      if (result.getScore() == null) return false;
+      scores.add(result.getScore());
+    }
+    score = aggregation.aggregate(scores);
+    classification = WindowedAnalysis.classify(score, scopeRequests.get(0).getExecutionRequest().getThresholds());
+    return true;
+
+  }
+
+  ScopeResult result(String scope, String canaryExecutionId, CanaryExecutionStatusResponse status, Throwable error) {
+
+    ScopeResult result = new ScopeResult();
+    result.setScope(scope);
+    result.setCanaryExecutionId(canaryExecutionId);
+
+    if (error != null) {
+      log.debug("Scope {} failed", scope, error);
+      result.setError(error.getMessage());
+      return result;
+    }
+
+    result.setComplete(status.getComplete());
+    result.setStatus(status.getStatus());
+    CanaryResult canaryResult = status.getResult();
+    if (canaryResult != null && canaryResult.getJudgeResult() != null) {
+      CanaryJudgeResult judgeResult = canaryResult.getJudgeResult();
+      result.setScore(judgeResult.getScore().getScore());
+      result.setClassification(judgeResult.getScore().getClassification());
+      result.setFailedMetrics(failedMetrics(judgeResult));
+    }
+    return result;
+
+  }
+
+  private static List<String> failedMetrics(CanaryJudgeResult judgeResult) {
+    if (judgeResult.getResults() == null) return null;
+    List<String> failed = new ArrayList<>();
+    for (CanaryAnalysisResult analysisResult : judgeResult.getResults()) {
+      String metricClassification = analysisResult.getClassification();
+      if (!"Pass".equals(metricClassification) && !"Nodata".equals(metricClassification)) {
+        failed.add(analysisResult.getName());
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Mark the scopes that did not produce a score, and those whose score is further below the median of all scores than
+   * <code>OUTLIER_DEVIATIONS</code> median absolute deviations (scaled to a standard deviation for normally distributed
+   * scores). When most scores are equal any lower score is an outlier. Scores above the median are never outliers.
+   */
+  static void markOutliers(List<ScopeResult> results) {
+    List<Double> scores = new ArrayList<>();
+    for (ScopeResult result : results) {
+      if (result.getScore() != null) scores.add(result.getScore());
+    }
+    double median = scores.isEmpty() ? 0.0 : median(scores);
+    List<Double> deviations = new ArrayList<>();
+    for (double score : scores) {
+      deviations.add(Math.abs(score - median));
+    }
+    double threshold = scores.isEmpty() ? 0.0 : median - OUTLIER_DEVIATIONS * 1.4826 * median(deviations);
+    for (ScopeResult result : results) {
+      Double score = result.getScore();
+      // with fewer than three scores there is no telling what is typical
+      result.setOutlier(score == null || (scores.size() >= 3 && score < threshold));
+    }
+  }
+
+  private static double median(List<Double> values) {
+    List<Double> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    int middle = sorted.size() / 2;
+    return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2.0;
+  }
+
+  public List<ScopeResult> getResults() {
+    return results;
+  }
+
+  /**
+   * The scopes marked as outliers, in the order of the expansion.
+   */
+  public List<ScopeResult> getOutliers() {
+    List<ScopeResult> outliers = new ArrayList<>();
+    for (ScopeResult result : results) {
+      if (result.isOutlier()) outliers.add(result);
+    }
+    return outliers;
+  }
+
+  public Double getScore() {
+    return score;
+  }
+
+  public String getClassification() {
+    return classification;
+  }
+
+}
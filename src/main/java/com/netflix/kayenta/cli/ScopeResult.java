@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.Data;
+
+/**
+ * The outcome of the execution of one expanded scope of a fan-out analysis.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ScopeResult {
+
+  // the expanded scope parameter values, e.g. host=canary-07,region=us-east-1
+  private String scope;
+  private String canaryExecutionId;
+  private Boolean complete;
+  private String status;
+  private Double score;
+  private String classification;
+  private List<String> failedMetrics;
+  private boolean outlier;
+  private String error;
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.Data;
+
+/**
+ * The outcome of the execution of one metric shard of a sharded analysis; the score is the shard's own, not part of
+ * the combined verdict.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ShardResult {
+
+  private int shard;
+  private int metricCount;
+  private String canaryExecutionId;
+  private Boolean complete;
+  private String status;
+  private Double score;
+  private String error;
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+/**
+ * Token level reader for <code>CanaryExecutionStatusResponse</code> bodies. Only <code>complete</code>,
+ * <code>status</code> and <code>result</code> are read, every other property is skipped without being materialized.
+ * Kayenta only fills in the result once the execution is complete, so polls of a running execution never build
+ * any objects besides the response itself. On the final response the per-metric analysis results, which are by far
+ * the largest part of the body, are only materialized when they are going to be reported.
+ */
+public class StatusResponseReader {
+
+  final ObjectMapper mapper;
+  final boolean includeMetricResults;
+
+  public StatusResponseReader(ObjectMapper mapper, boolean includeMetricResults) {
+    super();
+    this.mapper = mapper;
+    this.includeMetricResults = includeMetricResults;
+  }
+
+  public CanaryExecutionStatusResponse read(InputStream in) throws IOException {
+
+    Boolean complete = null;
+    String status = null;
+    CanaryResult result = null;
+
+    try (JsonParser parser = mapper.getFactory().createParser(in)) {
+
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Expected a canary execution status object but found " + parser.getCurrentToken());
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        if ("complete".equals(field)) {
+          complete = parser.getValueAsBoolean();
+        } else if ("status".equals(field)) {
+          status = parser.getValueAsString();
+        } else if ("result".equals(field)) {
+          result = readResult(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+    }
+
+    return CanaryExecutionStatusResponse.builder()
+        .complete(complete != null ? complete : Boolean.FALSE)
+        .status(status)
+        .result(result)
+        .build();
+
+  }
+
+  /**
+   * Read the result object the parser is positioned on, leaving out <code>judgeResult.results</code> unless the
+   * per-metric results were asked for.
+   */
+  CanaryResult readResult(JsonParser parser) throws IOException {
+
+    if (includeMetricResults) {
+      return mapper.readValue(parser, CanaryResult.class);
+    }
+
+    ObjectNode resultNode = mapper.createObjectNode();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("judgeResult".equals(field) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+        ObjectNode judgeResultNode = resultNode.putObject(field);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String judgeResultField = parser.getCurrentName();
+          parser.nextToken();
+          if ("results".equals(judgeResultField)) {
+            parser.skipChildren();
+          } else {
+            judgeResultNode.set(judgeResultField, mapper.readTree(parser));
+          }
+        }
+      } else {
+        resultNode.set(field, mapper.readTree(parser));
+      }
+    }
+
+    return mapper.treeToValue(resultNode, CanaryResult.class);
+
+  }
+
+}
@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedded stand-in for the Kayenta canary endpoints, for exercising and load testing the client without a Kayenta
+ * (or metric store) deployment. It implements <code>POST /canary</code>, which registers an execution that completes
+ * after a configurable delay, and <code>GET /canary/{id}</code>, which answers with a running or completed
+ * <code>CanaryExecutionStatusResponse</code>. Executions of stored configs are started with
+ * <code>POST /canary/{configId}</code>, and configs are stored in memory with <code>GET</code>, <code>POST</code> and
+ * <code>PUT /canaryConfig</code>. Response latency, error rate, verdicts and the size of completed results
+ * are configurable; completed bodies are generated once and shared by all executions.
+ */
+@Slf4j
+public class StubKayentaServer {
+
+  public static final String CANARY_PATH = "/canary";
+  public static final String CONFIG_PATH = "/canaryConfig";
+  public static final int GROUP_COUNT = 4;
+
+  static final double PASS_SCORE = 95.0;
+  static final double FAIL_SCORE = 40.0;
+
+  static class StubExecution {
+    final long completeAt;
+    final boolean fail;
+
+    StubExecution(long completeAt, boolean fail) {
+      this.completeAt = completeAt;
+      this.fail = fail;
+    }
+  }
+
+  final StubServerConfig config;
+  final ObjectMapper mapper;
+  final Map<String, StubExecution> executions = new ConcurrentHashMap<>();
+  final Map<String, ObjectNode> configs = new ConcurrentHashMap<>();
+
+  final AtomicLong submissions = new AtomicLong();
+  final AtomicLong statusRequests = new AtomicLong();
+  final AtomicLong injectedErrors = new AtomicLong();
+  final AtomicLong configUpdates = new AtomicLong();
+
+  byte[] runningBody;
+  byte[] passBody;
+  byte[] failBody;
+
+  ScheduledExecutorService scheduler;
+  HttpServer server;
+
+  public StubKayentaServer(StubServerConfig config, ObjectMapper mapper) {
+    super();
+    this.config = config;
+    this.mapper = mapper;
+  }
+
+  public StubKayentaServer start() throws IOException {
+
+    runningBody = "{\"complete\":false,\"status\":\"running\"}".getBytes(StandardCharsets.UTF_8);
+    passBody = completedStatusBody(mapper, config.getResultMetricCount(), false);
+    failBody = completedStatusBody(mapper, config.getResultMetricCount(), true);
+
+    scheduler = new ScheduledThreadPoolExecutor(config.getThreads());
+    scheduler.scheduleWithFixedDelay(this::evictExpiredExecutions, 1, 1, TimeUnit.MINUTES);
+
+    server = HttpServer.create(new InetSocketAddress(config.getPort()), 1024);
+    server.createContext(CANARY_PATH, this::handle);
+    server.createContext(CONFIG_PATH, this::handleConfig);
+    server.setExecutor(scheduler);
+    server.start();
+
+    log.info("Stub Kayenta server listening on {} ({} byte completed status responses)", getCanaryURL(), passBody.length);
+    return this;
+
+  }
+
+  public void stop() {
+    if (server != null) server.stop(0);
+    if (scheduler != null) scheduler.shutdownNow();
+  }
+
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  /**
+   * The URL to pass to the client as the Kayenta server URL.
+   */
+  public String getCanaryURL() {
+    return "http://localhost:" + server.getAddress().getPort() + CANARY_PATH;
+  }
+
+  public int getOutstandingExecutions() {
+    return executions.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("submissions=%d statusRequests=%d injectedErrors=%d trackedExecutions=%d configUpdates=%d",
+                         submissions.get(), statusRequests.get(), injectedErrors.get(), executions.size(), configUpdates.get());
+  }
+
+  void handle(HttpExchange exchange) throws IOException {
+
+    try (InputStream in = exchange.getRequestBody()) {
+      ByteStreams.exhaust(in);
+    }
+
+    if (rejectGzip(exchange)) return;
+
+    if (config.getErrorRate() > 0 && ThreadLocalRandom.current().nextDouble() < config.getErrorRate()) {
+      injectedErrors.incrementAndGet();
+      respondLater(exchange, 503, "{\"error\":\"injected failure\"}".getBytes(StandardCharsets.UTF_8), 0);
+      return;
+    }
+
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+
+    boolean storedConfig = path.startsWith(CANARY_PATH + "/") && path.length() > CANARY_PATH.length() + 1;
+    if ("POST".equals(method) && storedConfig && !configs.containsKey(path.substring(CANARY_PATH.length() + 1))) {
+      respondLater(exchange, 404, "{\"error\":\"unknown canary config\"}".getBytes(StandardCharsets.UTF_8), 0);
+    } else if ("POST".equals(method)) {
+      submissions.incrementAndGet();
+      String canaryExecutionId = UUID.randomUUID().toString();
+      long delay = config.getCompletionDelayMillis();
+      long completeAt = System.currentTimeMillis() + (long) (delay * (0.5 + ThreadLocalRandom.current().nextDouble()));
+      executions.put(canaryExecutionId, new StubExecution(completeAt, ThreadLocalRandom.current().nextDouble() < config.getFailRate()));
+      respondLater(exchange, 200, ("{\"canaryExecutionId\":\"" + canaryExecutionId + "\"}").getBytes(StandardCharsets.UTF_8), 0);
+    } else if ("GET".equals(method) && path.startsWith(CANARY_PATH + "/")) {
+      statusRequests.incrementAndGet();
+      StubExecution execution = executions.get(path.substring(CANARY_PATH.length() + 1));
+      if (execution == null) {
+        respondLater(exchange, 404, "{\"error\":\"unknown canary execution\"}".getBytes(StandardCharsets.UTF_8), 0);
+      } else if (System.currentTimeMillis() < execution.completeAt) {
+        respondLater(exchange, 200, runningBody, config.getRetryAfterSeconds());
+      } else {
+        respondLater(exchange, 200, execution.fail ? failBody : passBody, 0);
+      }
+    } else {
+      respondLater(exchange, 404, "{\"error\":\"not found\"}".getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+  }
+
+  /**
+   * Store, update, list and get canary configs; only the id and name are checked.
+   */
+  void handleConfig(HttpExchange exchange) throws IOException {
+
+    byte[] body;
+    try (InputStream in = exchange.getRequestBody()) {
+      body = ByteStreams.toByteArray(in);
+    }
+
+    if (rejectGzip(exchange)) return;
+
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    String configId = path.startsWith(CONFIG_PATH + "/") ? path.substring(CONFIG_PATH.length() + 1) : "";
+
+    try {
+      if ("GET".equals(method) && configId.isEmpty()) {
+        ArrayNode summaries = mapper.createArrayNode();
+        configs.forEach((id, stored) -> summaries.addObject().put("id", id).set("name", stored.get("name")));
+        respondLater(exchange, 200, mapper.writeValueAsBytes(summaries), 0);
+      } else if ("GET".equals(method)) {
+        ObjectNode stored = configs.get(configId);
+        if (stored == null) {
+          respondLater(exchange, 404, "{\"error\":\"unknown canary config\"}".getBytes(StandardCharsets.UTF_8), 0);
+        } else {
+          respondLater(exchange, 200, mapper.writeValueAsBytes(stored), 0);
+        }
+      } else if ("POST".equals(method) || ("PUT".equals(method) && configs.containsKey(configId))) {
+        String id = configId.isEmpty() ? UUID.randomUUID().toString() : configId;
+        InputStream in = new ByteArrayInputStream(body);
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) in = new GZIPInputStream(in);
+        ObjectNode stored = (ObjectNode) mapper.readTree(in);
+        stored.put("id", id);
+        configs.put(id, stored);
+        configUpdates.incrementAndGet();
+        respondLater(exchange, 200, ("{\"canaryConfigId\":\"" + id + "\"}").getBytes(StandardCharsets.UTF_8), 0);
+      } else {
+        respondLater(exchange, 404, "{\"error\":\"not found\"}".getBytes(StandardCharsets.UTF_8), 0);
+      }
+    } catch (IOException | RuntimeException ex) {
+      respondLater(exchange, 400, "{\"error\":\"invalid canary config\"}".getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+  }
+
+  /**
+   * Answer a gzip compressed request with 415 Unsupported Media Type when compressed bodies are not accepted.
+   * 
+   * @return whether the request was rejected.
+   */
+  boolean rejectGzip(HttpExchange exchange) {
+    if (config.isAcceptGzip() || !"gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) return false;
+    respondLater(exchange, 415, "{\"error\":\"unsupported content encoding\"}".getBytes(StandardCharsets.UTF_8), 0);
+    return true;
+  }
+
+  /**
+   * Send the response once the simulated latency has passed, without holding a handler thread meanwhile.
+   */
+  void respondLater(HttpExchange exchange, int statusCode, byte[] body, int retryAfterSeconds) {
+    long latency = sampleLatency();
+    Runnable response = () -> respond(exchange, statusCode, body, retryAfterSeconds);
+    if (latency <= 0) {
+      response.run();
+    } else {
+      scheduler.schedule(response, latency, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  void respond(HttpExchange exchange, int statusCode, byte[] body, int retryAfterSeconds) {
+    try {
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      if (retryAfterSeconds > 0) {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+      }
+      exchange.sendResponseHeaders(statusCode, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } catch (IOException ex) {
+      log.debug("Unable to send stub response", ex);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  long sampleLatency() {
+    long mean = config.getLatencyMillis();
+    if (mean <= 0) return 0;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    switch (config.getLatencyDistribution()) {
+      case UNIFORM:
+        return (long) (2.0 * mean * random.nextDouble());
+      case EXPONENTIAL:
+        return (long) (-mean * Math.log(1.0 - random.nextDouble()));
+      default:
+        return mean;
+    }
+  }
+
+  void evictExpiredExecutions() {
+    long expiredBefore = System.currentTimeMillis() - config.getExecutionTtlMillis();
+    executions.values().removeIf(execution -> execution.completeAt < expiredBefore);
+  }
+
+  /**
+   * Generate a completed execution status response with one analysis result per metric.
+   * 
+   * @param mapper
+   * @param metricCount
+   * @param fail whether the execution is judged "Fail" rather than "Pass"
+   * @return the JSON body.
+   */
+  public static byte[] completedStatusBody(ObjectMapper mapper, int metricCount, boolean fail) throws IOException {
+
+    double score = fail ? FAIL_SCORE : PASS_SCORE;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeStringField("application", "stub");
+      generator.writeBooleanField("complete", true);
+      generator.writeStringField("status", "succeeded");
+      generator.writeObjectFieldStart("result");
+      generator.writeObjectFieldStart("judgeResult");
+      generator.writeStringField("name", "NetflixACAJudge-v1.0");
+      generator.writeArrayFieldStart("results");
+      for (int metric = 0; metric < metricCount; metric++) {
+        boolean metricFails = fail ? metric % 2 == 0 : metric % 20 == 0;
+        generator.writeStartObject();
+        generator.writeStringField("name", "metric-name-" + metric);
+        generator.writeStringField("id", "metric-id-" + metric);
+        generator.writeStringField("classification", metricFails ? "High" : "Pass");
+        generator.writeStringField("classificationReason", "");
+        generator.writeArrayFieldStart("groups");
+        generator.writeString("GROUP" + (metric % GROUP_COUNT));
+        generator.writeEndArray();
+        writeMetadata(generator, "experimentMetadata", metric);
+        writeMetadata(generator, "controlMetadata", metric);
+        generator.writeObjectFieldStart("resultMetadata");
+        generator.writeNumberField("ratio", 1.0 + (metric % 7) / 100.0);
+        generator.writeEndObject();
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+      generator.writeArrayFieldStart("groupScores");
+      for (int group = 0; group < GROUP_COUNT; group++) {
+        generator.writeStartObject();
+        generator.writeStringField("name", "GROUP" + group);
+        generator.writeNumberField("score", score);
+        generator.writeStringField("classification", "");
+        generator.writeStringField("classificationReason", "");
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+      generator.writeObjectFieldStart("score");
+      generator.writeNumberField("score", score);
+      generator.writeStringField("classification", fail ? "Fail" : "Pass");
+      generator.writeStringField("classificationReason", "");
+      generator.writeEndObject();
+      generator.writeEndObject();
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+    return out.toByteArray();
+
+  }
+
+  private static void writeMetadata(JsonGenerator generator, String field, int metric) throws IOException {
+    generator.writeObjectFieldStart(field);
+    generator.writeObjectFieldStart("stats");
+    generator.writeNumberField("count", 60);
+    generator.writeNumberField("mean", 100.0 + metric % 13);
+    generator.writeNumberField("min", 50.0);
+    generator.writeNumberField("max", 150.0 + metric % 17);
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import lombok.Data;
+
+/**
+ * Behavior of the <code>StubKayentaServer</code>.
+ */
+@Data
+public class StubServerConfig {
+
+  public enum LatencyDistribution { FIXED, UNIFORM, EXPONENTIAL }
+
+  public static final int DEFAULT_PORT = 8090;
+
+  private int port = DEFAULT_PORT;
+
+  // how long after submission an execution completes (uniformly spread over 50% to 150% of this value)
+  private long completionDelayMillis = 5000;
+
+  // added to every response, drawn from the distribution with this mean
+  private long latencyMillis = 0;
+  private LatencyDistribution latencyDistribution = LatencyDistribution.FIXED;
+
+  // fraction of requests answered with 503 Service Unavailable
+  private double errorRate = 0.0;
+
+  // fraction of executions judged "Fail" instead of "Pass"
+  private double failRate = 0.0;
+
+  // number of per-metric analysis results in a completed status response
+  private int resultMetricCount = 10;
+
+  // Retry-After hint sent with the status of running executions, 0 for none
+  private int retryAfterSeconds = 0;
+
+  // whether gzip compressed request bodies are accepted, or rejected with 415 Unsupported Media Type
+  private boolean acceptGzip = true;
+
+  // completed executions are forgotten after this long
+  private long executionTtlMillis = 10 * 60 * 1000;
+
+  private int threads = 16;
+
+}
@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how fast executions are submitted and how many are in flight (submitted and not yet finished), per Kayenta
+ * endpoint and per metrics account, so a burst of canaries from many pipelines does not flood Kayenta and the metric
+ * stores behind it. Each limited endpoint or account has a token bucket (refilled at the configured rate, holding up to
+ * one second's worth of tokens) and an in-flight count. Submissions that cannot proceed wait in priority order: a
+ * submission only waits behind earlier or higher priority submissions that need one of the same limits.
+ * <p>
+ * Limits are keyed by <code>endpoint</code> or <code>account</code> (the defaults for every endpoint or account), or
+ * by <code>endpoint:URL</code> or <code>account:NAME</code>, and written as <code>rate/maxInFlight</code> where 0 means
+ * unlimited.
+ */
+public class SubmissionGovernor {
+
+  public enum Priority { HIGH, NORMAL, LOW }
+
+  static final String ENDPOINT = "endpoint";
+  static final String ACCOUNT = "account";
+
+  // how long waiting submissions sleep at most before checking for expired in-flight executions
+  static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static volatile SubmissionGovernor defaultGovernor;
+
+  /**
+   * A configured limit: submissions per second and executions in flight, 0 for unlimited.
+   */
+  public static class Limit {
+
+    final double rate;
+    final int maxInFlight;
+
+    public Limit(double rate, int maxInFlight) {
+      this.rate = rate;
+      this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Parse <code>rate[/maxInFlight]</code>.
+     */
+    public static Limit parse(String spec) {
+      String[] parts = spec.split("/");
+      try {
+        double rate = Double.parseDouble(parts[0]);
+        int maxInFlight = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        if (parts.length <= 2 && rate >= 0 && maxInFlight >= 0) return new Limit(rate, maxInFlight);
+      } catch (NumberFormatException e) {
+        // reported below
+      }
+      throw new IllegalArgumentException("A limit must be written as rate[/maxInFlight], e.g. 2/10, but was " + spec);
+    }
+
+    @Override
+    public String toString() {
+      return rate + "/" + maxInFlight;
+    }
+
+  }
+
+  class Bucket {
+
+    final String key;
+    final Limit limit;
+    double tokens;
+    long refilledNanos = System.nanoTime();
+    int inFlight = 0;
+
+    Bucket(String key, Limit limit) {
+      this.key = key;
+      this.limit = limit;
+      this.tokens = capacity();
+    }
+
+    double capacity() {
+      return Math.max(1.0, limit.rate);
+    }
+
+    /**
+     * @return 0 when a submission may take from this bucket now, otherwise how long to wait before checking again.
+     */
+    long waitNanos(long now) {
+      if (limit.maxInFlight > 0 && inFlight >= limit.maxInFlight) return MAX_WAIT_NANOS;
+      if (limit.rate <= 0) return 0;
+      tokens = Math.min(capacity(), tokens + (now - refilledNanos) / 1e9 * limit.rate);
+      refilledNanos = now;
+      return tokens >= 1.0 ? 0 : (long) Math.ceil((1.0 - tokens) / limit.rate * 1e9);
+    }
+
+    void take() {
+      if (limit.rate > 0) tokens -= 1.0;
+      inFlight++;
+    }
+
+  }
+
+  class Waiter implements Comparable<Waiter> {
+
+    final Priority priority;
+    final long sequence;
+    final List<Bucket> buckets;
+
+    Waiter(Priority priority, long sequence, List<Bucket> buckets) {
+      this.priority = priority;
+      this.sequence = sequence;
+      this.buckets = buckets;
+    }
+
+    @Override
+    public int compareTo(Waiter other) {
+      int order = priority.compareTo(other.priority);
+      return order != 0 ? order : Long.compare(sequence, other.sequence);
+    }
+
+    boolean sharesBucket(Waiter other) {
+      for (Bucket bucket : buckets) {
+        if (other.buckets.contains(bucket)) return true;
+      }
+      return false;
+    }
+
+  }
+
+  /**
+   * The limits taken by one submission; returned to the governor when its execution finishes, or when it could not be
+   * submitted at all.
+   */
+  public class Ticket {
+
+    final List<Bucket> buckets;
+    long expiresAtMillis = Long.MAX_VALUE;
+    boolean released = false;
+
+    Ticket(List<Bucket> buckets) {
+      this.buckets = buckets;
+    }
+
+    public void release() {
+      lock.lock();
+      try {
+        if (released) return;
+        released = true;
+        for (Bucket bucket : buckets) bucket.inFlight--;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+  }
+
+  final Map<String, Limit> limits;
+  final Map<String, Bucket> buckets = new HashMap<>();
+  final List<Waiter> waiting = new ArrayList<>();
+  final Map<String, Ticket> executions = new HashMap<>();
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition changed = lock.newCondition();
+  long sequence = 0;
+
+  // statistics, guarded by lock
+  final long[] acquired = new long[Priority.values().length];
+  final long[] waitNanos = new long[Priority.values().length];
+  long maxWaitNanos = 0;
+  int maxQueueDepth = 0;
+
+  public SubmissionGovernor(Map<String, Limit> limits) {
+    super();
+    this.limits = new LinkedHashMap<>(limits);
+  }
+
+  public static SubmissionGovernor getDefault() {
+    if (defaultGovernor == null) {
+      synchronized (SubmissionGovernor.class) {
+        if (defaultGovernor == null) {
+          defaultGovernor = new SubmissionGovernor(Collections.<String, Limit>emptyMap());
+        }
+      }
+    }
+    return defaultGovernor;
+  }
+
+  /**
+   * Replace the process wide governor used by clients that were not given one, e.g. with the limits of the daemon.
+   */
+  public static void setDefault(SubmissionGovernor governor) {
+    defaultGovernor = governor;
+  }
+
+  /**
+   * Wait until a submission to the endpoint, for the metrics account, is allowed.
+   * 
+   * @param endpoint
+   * @param metricsAccount
+   * @param priority
+   * @return the ticket to hand back with <code>started</code> or <code>release</code>.
+   * @throws InterruptedException
+   */
+  public Ticket acquire(String endpoint, String metricsAccount, Priority priority) throws InterruptedException {
+
+    long startNanos = System.nanoTime();
+    lock.lock();
+    try {
+
+      List<Bucket> required = new ArrayList<>();
+      addBucket(required, ENDPOINT, endpoint);
+      addBucket(required, ACCOUNT, metricsAccount);
+      if (required.isEmpty()) {
+        record(priority, 0);
+        return new Ticket(required);
+      }
+
+      Waiter waiter = new Waiter(priority, sequence++, required);
+      waiting.add(waiter);
+      maxQueueDepth = Math.max(maxQueueDepth, waiting.size());
+      try {
+        long delay;
+        while ((delay = waitNanos(waiter)) > 0) {
+          changed.awaitNanos(Math.min(delay, MAX_WAIT_NANOS));
+        }
+        for (Bucket bucket : required) bucket.take();
+      } finally {
+        waiting.remove(waiter);
+        changed.signalAll();
+      }
+
+      record(priority, System.nanoTime() - startNanos);
+      return new Ticket(required);
+
+    } finally {
+      lock.unlock();
+    }
+
+  }
+
+  /**
+   * Keep the ticket of a submitted execution until <code>finished</code> is called with its id, or until it expires
+   * (for executions that are never waited for).
+   */
+  public void started(String canaryExecutionId, Ticket ticket, long expiresAtMillis) {
+    if (ticket.buckets.isEmpty()) return;
+    lock.lock();
+    try {
+      ticket.expiresAtMillis = expiresAtMillis;
+      executions.put(canaryExecutionId, ticket);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return the limits taken by an execution that finished (or timed out).
+   */
+  public void finished(String canaryExecutionId) {
+    Ticket ticket;
+    lock.lock();
+    try {
+      ticket = executions.remove(canaryExecutionId);
+    } finally {
+      lock.unlock();
+    }
+    if (ticket != null) ticket.release();
+  }
+
+  private void addBucket(List<Bucket> required, String kind, String name) {
+    if (name == null || name.isEmpty()) return;
+    String key = kind + ":" + name;
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      Limit limit = limits.containsKey(key) ? limits.get(key) : limits.get(kind);
+      if (limit == null || (limit.rate <= 0 && limit.maxInFlight <= 0)) return;
+      bucket = new Bucket(key, limit);
+      buckets.put(key, bucket);
+    }
+    required.add(bucket);
+  }
+
+  /**
+   * @return 0 when the waiter may proceed, otherwise how long to wait before checking again.
+   */
+  private long waitNanos(Waiter waiter) {
+    expireExecutions();
+    for (Waiter other : waiting) {
+      if (other != waiter && other.compareTo(waiter) < 0 && other.sharesBucket(waiter)) return MAX_WAIT_NANOS;
+    }
+    long now = System.nanoTime();
+    long delay = 0;
+    for (Bucket bucket : waiter.buckets) {
+      delay = Math.max(delay, bucket.waitNanos(now));
+    }
+    return delay;
+  }
+
+  private void expireExecutions() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Ticket> tickets = executions.values().iterator(); tickets.hasNext(); ) {
+      Ticket ticket = tickets.next();
+      if (ticket.expiresAtMillis <= now) {
+        tickets.remove();
+        ticket.release();
+      }
+    }
+  }
+
+  private void record(Priority priority, long nanos) {
+    acquired[priority.ordinal()]++;
+    waitNanos[priority.ordinal()] += nanos;
+    maxWaitNanos = Math.max(maxWaitNanos, nanos);
+  }
+
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return waiting.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      StringBuilder builder = new StringBuilder(String.format("queued=%d maxQueued=%d maxWaitMillis=%.1f", 
+                                                              waiting.size(), maxQueueDepth, maxWaitNanos / 1e6));
+      for (Priority priority : Priority.values()) {
+        long count = acquired[priority.ordinal()];
+        builder.append(String.format(" %s=%d/avgWaitMillis=%.1f", priority.name().toLowerCase(), count, 
+                                     count == 0 ? 0.0 : waitNanos[priority.ordinal()] / 1e6 / count));
+      }
+      for (Bucket bucket : buckets.values()) {
+        builder.append(String.format(" [%s inFlight=%d limit=%s]", bucket.key, bucket.inFlight, bucket.limit));
+      }
+      return builder.toString();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
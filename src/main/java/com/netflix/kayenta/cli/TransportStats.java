@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters maintained by an <code>HttpTransport</code>. All counters are cumulative for the lifetime of the transport,
+ * except <code>inFlight</code>.
+ */
+public class TransportStats {
+
+  final AtomicLong requests = new AtomicLong();
+  final AtomicLong failures = new AtomicLong();
+  final AtomicLong connectionsOpened = new AtomicLong();
+  final AtomicLong bytesSent = new AtomicLong();
+  final AtomicLong bytesReceived = new AtomicLong();
+  final AtomicLong requestTimeNanos = new AtomicLong();
+  final AtomicLong inFlight = new AtomicLong();
+  final AtomicLong peakInFlight = new AtomicLong();
+  final AtomicLong retries = new AtomicLong();
+  final AtomicLong hedges = new AtomicLong();
+
+  void requestStarted() {
+    requests.incrementAndGet();
+    long current = inFlight.incrementAndGet();
+    long peak;
+    while (current > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, current));
+  }
+
+  void requestFinished(long startNanos, boolean failed) {
+    inFlight.decrementAndGet();
+    requestTimeNanos.addAndGet(System.nanoTime() - startNanos);
+    if (failed) failures.incrementAndGet();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * The number of new (TLS) connections opened; requests beyond this count were served from the keep-alive pool.
+   */
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  public long getInFlight() {
+    return inFlight.get();
+  }
+
+  public long getPeakInFlight() {
+    return peakInFlight.get();
+  }
+
+  /**
+   * The number of requests repeated after a failure, and of status reads repeated on another endpoint because they were slow.
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  public long getHedges() {
+    return hedges.get();
+  }
+
+  public double getAverageRequestMillis() {
+    long count = requests.get();
+    return count == 0 ? 0.0 : requestTimeNanos.get() / 1000000.0 / count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("requests=%d failures=%d retries=%d hedges=%d connectionsOpened=%d inFlight=%d peakInFlight=%d bytesSent=%d bytesReceived=%d avgRequestMillis=%.1f",
+                         getRequests(), getFailures(), getRetries(), getHedges(), getConnectionsOpened(), getInFlight(), getPeakInFlight(), 
+                         getBytesSent(), getBytesReceived(), getAverageRequestMillis());
+  }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * <code>HttpTransport</code> built on the JDK <code>HttpURLConnection</code>. The JDK keeps a process wide pool of
+ * keep-alive connections, but only hands a connection back to that pool once its response (or error) stream has been
+ * read to the end and closed, so every call here drains and closes the stream instead of disconnecting.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+  static final int ERROR_BODY_LIMIT = 512;
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  final HttpTransportConfig config;
+  final TransportStats stats = new TransportStats();
+  final SSLSocketFactory sslSocketFactory;
+
+  public UrlConnectionTransport() {
+    this(new HttpTransportConfig());
+  }
+
+  public UrlConnectionTransport(HttpTransportConfig config) {
+    super();
+    this.config = config;
+    // the keep-alive pool size is read once by the JDK, so it must be set before the first connection is opened
+    System.setProperty("http.keepAlive", "true");
+    if (System.getProperty("http.maxConnections") == null) {
+      System.setProperty("http.maxConnections", String.valueOf(config.getMaxConnections()));
+    }
+    this.sslSocketFactory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(), stats);
+  }
+
+  @Override
+  public <T> T get(String url, Map<String, String> requestParameters, ResponseHandler<T> handler) throws IOException {
+    return execute("GET", url, requestParameters, null, handler);
+  }
+
+  @Override
+  public <T> T post(String url, Map<String, String> requestParameters, RequestBody requestBody, ResponseHandler<T> handler) throws IOException {
+    return execute("POST", url, requestParameters, requestBody, handler);
+  }
+
+  @Override
+  public <T> T put(String url, Map<String, String> requestParameters, RequestBody requestBody, ResponseHandler<T> handler) throws IOException {
+    return execute("PUT", url, requestParameters, requestBody, handler);
+  }
+
+  @Override
+  public TransportStats getStats() {
+    return stats;
+  }
+
+  protected <T> T execute(String method, String url, Map<String, String> requestParameters, RequestBody requestBody, 
+                          ResponseHandler<T> handler) throws IOException {
+
+    long startNanos = System.nanoTime();
+    boolean failed = true;
+    stats.requestStarted();
+    try {
+
+      HttpURLConnection con = openConnection(method, url, requestParameters);
+      HttpResponse response = new HttpResponse();
+
+      if (requestBody != null) {
+        prepareBody(con, requestBody);
+      }
+      connect(con, response);
+      if (requestBody != null) {
+        response.setBytesSent(sendBody(con, requestBody));
+      }
+
+      long sentNanos = System.nanoTime();
+      int statusCode = con.getResponseCode();
+      response.setTimeToFirstByteNanos(System.nanoTime() - sentNanos);
+      if (statusCode >= 400) {
+        String errorBody = readErrorBody(con);
+        throw new HttpStatusException(statusCode, "Server returned HTTP response code: " + statusCode + " for URL: " + con.getURL() +
+                              (errorBody.isEmpty() ? "" : ", body: " + abbreviate(errorBody)));
+      }
+      response.setStatusCode(statusCode);
+      response.setHeaders(con.getHeaderFields());
+
+      T result;
+      CountingInputStream wire = new CountingInputStream(con.getInputStream());
+      try (InputStream in = decode(con, wire)) {
+        result = handler.handle(response, new UnclosableInputStream(in));
+        // the connection only goes back to the keep-alive pool once the body has been read to the end
+        ByteStreams.exhaust(in);
+      } finally {
+        response.setBytesReceived(wire.getCount());
+        stats.bytesReceived.addAndGet(wire.getCount());
+      }
+      failed = false;
+      return result;
+
+    } finally {
+      stats.requestFinished(startNanos, failed);
+    }
+
+  }
+
+  /**
+   * Set the request properties of a request body, which must be done before connecting. Without chunked streaming
+   * the body is written once here, only to count its (encoded) length, and written again by <code>sendBody</code>,
+   * so it is never held in memory as a whole.
+   */
+  void prepareBody(HttpURLConnection con, RequestBody requestBody) throws IOException {
+
+    con.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+    if (isGzip(requestBody)) {
+      con.setRequestProperty("Content-Encoding", "gzip");
+    }
+    con.setDoOutput(true);
+
+    if (config.isChunkedStreaming()) {
+      con.setChunkedStreamingMode(CHUNK_SIZE);
+      return;
+    }
+
+    CountingOutputStream length = new CountingOutputStream(ByteStreams.nullOutputStream());
+    try (OutputStream out = encode(length, requestBody)) {
+      requestBody.writeTo(new UnclosableOutputStream(out));
+    }
+    con.setFixedLengthStreamingMode(length.getCount());
+
+  }
+
+  /**
+   * Send the request body, streaming it to the connection as it is produced (optionally gzip compressed).
+   * 
+   * @return the number of bytes sent.
+   */
+  long sendBody(HttpURLConnection con, RequestBody requestBody) throws IOException {
+
+    CountingOutputStream wire = new CountingOutputStream(con.getOutputStream());
+    try (OutputStream out = encode(wire, requestBody)) {
+      requestBody.writeTo(new UnclosableOutputStream(out));
+    } finally {
+      stats.bytesSent.addAndGet(wire.getCount());
+    }
+    return wire.getCount();
+
+  }
+
+  /**
+   * Connect explicitly, so the time spent opening a connection (or taking one from the keep-alive pool) can be told
+   * apart from the time spent waiting for the server. For new TLS connections, direct or tunneled through a proxy, the
+   * socket factory marks when the TCP connection was established, which splits the connect time into the TCP connect
+   * and the TLS handshake.
+   */
+  void connect(HttpURLConnection con, HttpResponse response) throws IOException {
+    long startNanos = System.nanoTime();
+    CountingSSLSocketFactory.handshakeStartNanos.remove();
+    long opened = stats.connectionsOpened.get();
+    con.connect();
+    long endNanos = System.nanoTime();
+    Long handshakeStartNanos = CountingSSLSocketFactory.handshakeStartNanos.get();
+    if (handshakeStartNanos != null && handshakeStartNanos >= startNanos) {
+      response.setConnectNanos(handshakeStartNanos - startNanos);
+      response.setTlsHandshakeNanos(endNanos - handshakeStartNanos);
+    } else if (!(con instanceof HttpsURLConnection) || stats.connectionsOpened.get() != opened) {
+      response.setConnectNanos(endNanos - startNanos);
+    }
+    CountingSSLSocketFactory.handshakeStartNanos.remove();
+  }
+
+  boolean isGzip(RequestBody requestBody) {
+    return requestBody.isGzip() != null ? requestBody.isGzip() : config.isGzipRequests();
+  }
+
+  OutputStream encode(OutputStream out, RequestBody requestBody) throws IOException {
+    return isGzip(requestBody) ? new GZIPOutputStream(out, CHUNK_SIZE) : out;
+  }
+
+  InputStream decode(HttpURLConnection con, InputStream in) throws IOException {
+    return "gzip".equalsIgnoreCase(con.getContentEncoding()) ? new GZIPInputStream(in, CHUNK_SIZE) : in;
+  }
+
+  protected HttpURLConnection openConnection(String method, String url, Map<String, String> requestParameters) throws IOException {
+
+    HttpURLConnection con = (HttpURLConnection) new URL(buildUrl(url, requestParameters)).openConnection();
+    if (con instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) con).setSSLSocketFactory(sslSocketFactory);
+    }
+    con.setRequestMethod(method);
+    con.setConnectTimeout(config.getConnectTimeoutMillis());
+    con.setReadTimeout(config.getReadTimeoutMillis());
+    con.setUseCaches(false);
+    con.setRequestProperty("Accept", "application/json");
+    con.setRequestProperty("Connection", "keep-alive");
+    if (config.isGzip()) {
+      con.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    return con;
+
+  }
+
+  /**
+   * Append the URL encoded request parameters to the url.
+   */
+  static String buildUrl(String url, Map<String, String> requestParameters) throws UnsupportedEncodingException {
+    StringBuilder builder = new StringBuilder(url);
+    int param = 0;
+    for (Map.Entry<String, String> entry : requestParameters.entrySet()) {
+      builder.append(++param == 1 ? "?" : "&");
+      builder.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append("=").append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Read an error response (which releases the connection back to the keep-alive pool) and close it.
+   */
+  String readErrorBody(HttpURLConnection con) throws IOException {
+    InputStream stream = con.getErrorStream();
+    if (stream == null) return "";
+    CountingInputStream wire = new CountingInputStream(stream);
+    try (InputStream in = decode(con, wire)) {
+      return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+    } finally {
+      stats.bytesReceived.addAndGet(wire.getCount());
+    }
+  }
+
+  static String abbreviate(String body) {
+    return body.length() <= ERROR_BODY_LIMIT ? body : body.substring(0, ERROR_BODY_LIMIT) + "...";
+  }
+
+  /**
+   * Keeps handlers (and Jackson, which closes its source by default) from closing a stream the transport still has to drain.
+   */
+  static class UnclosableInputStream extends FilterInputStream {
+    UnclosableInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public void close() {
+      // closed by the transport
+    }
+  }
+
+  /**
+   * Keeps request bodies from closing the connection stream before a compressed body has been finished; flushes on close.
+   */
+  static class UnclosableOutputStream extends FilterOutputStream {
+    UnclosableOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /**
+   * Delegating socket factory that counts the TLS connections opened on behalf of this transport. The JDK only calls it
+   * when no pooled connection is available, so it also tells how effective connection reuse is.
+   * <p>
+   * For a direct connection the JDK first asks for an unconnected TLS socket, which it connects and then performs the
+   * handshake on, so the end of the TCP connect would not be visible here. This factory does not provide unconnected
+   * sockets; the JDK then connects a plain socket and layers the TLS socket over it, as it always does for a proxy
+   * tunnel, and performs the handshake right after, on the connecting thread. So on both paths the layering call marks
+   * the start of the handshake.
+   */
+  static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+    static final ThreadLocal<Long> handshakeStartNanos = new ThreadLocal<>();
+
+    final SSLSocketFactory delegate;
+    final TransportStats stats;
+
+    CountingSSLSocketFactory(SSLSocketFactory delegate, TransportStats stats) {
+      this.delegate = delegate;
+      this.stats = stats;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      // throws the SocketException (caused by UnsupportedOperationException) that makes the JDK fall back to a plain
+      // socket it layers TLS over; counted when it is layered
+      return super.createSocket();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+      stats.connectionsOpened.incrementAndGet();
+      handshakeStartNanos.set(System.nanoTime());
+      return delegate.createSocket(s, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      stats.connectionsOpened.incrementAndGet();
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+      stats.connectionsOpened.incrementAndGet();
+      return delegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      stats.connectionsOpened.incrementAndGet();
+      return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+      stats.connectionsOpened.incrementAndGet();
+      return delegate.createSocket(address, port, localAddress, localPort);
+    }
+
+  }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.kayenta.canary.CanaryAdhocExecutionRequest;
+import com.netflix.kayenta.canary.CanaryClassifierThresholdsConfig;
+import com.netflix.kayenta.canary.CanaryExecutionStatusResponse;
+import com.netflix.kayenta.canary.CanaryScopePair;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+import com.netflix.kayenta.canary.results.CanaryResult;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Splits a long analysis window into sub-windows that are analyzed by separate, concurrent executions, and combines
+ * their judge scores locally. Kayenta judges all scope pairs of one execution together, so each sub-window is its own
+ * execution of the same request; besides finishing sooner, this spreads the metric store queries over several jobs.
+ */
+@Slf4j
+public class WindowedAnalysis {
+
+  public static final int DEFAULT_WINDOW_COUNT = 1;
+
+  /**
+   * How the sub-window scores are combined into the overall score.
+   */
+  public enum Aggregation {
+
+    // the lowest sub-window score, so a regression in any part of the window fails the analysis
+    WORST,
+
+    // the mean of the sub-window scores
+    MEAN,
+
+    // the mean weighted by position (1 for the first sub-window up to N for the last), favoring the later, warmed up part of a bake
+    WEIGHTED;
+
+    public double aggregate(List<Double> scores) {
+      double result = this == WORST ? Double.MAX_VALUE : 0.0;
+      double totalWeight = 0.0;
+      for (int i = 0; i < scores.size(); i++) {
+        double score = scores.get(i);
+        double weight = this == WEIGHTED ? i + 1 : 1.0;
+        if (this == WORST) {
+          result = Math.min(result, score);
+        } else {
+          result += weight * score;
+          totalWeight += weight;
+        }
+      }
+      return this == WORST ? result : result / totalWeight;
+    }
+
+  }
+
+  ObjectMapper mapper;
+  int windowCount;
+  Aggregation aggregation;
+  int parallelism;
+
+  String kayentaURL;
+  String metricsAccount;
+  String storageAccount;
+
+  PollingStrategy pollingStrategy = 
+      PollingStrategy.defaultStrategy(PollingStrategy.DEFAULT_TIMEOUT_MILLIS, PollingStrategy.DEFAULT_MAX_INTERVAL_MILLIS);
+  PhaseTimings timings = null;
+
+  List<WindowResult> results = new ArrayList<>();
+  Double score = null;
+  String classification = null;
+
+  public WindowedAnalysis(ObjectMapper mapper, int windowCount, Aggregation aggregation, int parallelism, 
+                          String kayentaURL, String metricsAccount, String storageAccount) {
+    super();
+    this.mapper = mapper;
+    this.windowCount = windowCount;
+    this.aggregation = aggregation;
+    this.parallelism = parallelism;
+    this.kayentaURL = kayentaURL;
+    this.metricsAccount = metricsAccount;
+    this.storageAccount = storageAccount;
+  }
+
+  public void setPollingStrategy(PollingStrategy pollingStrategy) {
+    this.pollingStrategy = pollingStrategy;
+  }
+
+  public void setTimings(PhaseTimings timings) {
+    this.timings = timings;
+  }
+
+  /**
+   * Split the analysis window into sub-windows of equal length, rounded up to whole steps; the last one ends at the
+   * end of the analysis window and may be shorter.
+   * 
+   * @return the start and end time of every sub-window.
+   */
+  public static List<long[]> split(long analysisStartTime, long analysisEndTime, int windowCount, long stepMillis) {
+    long length = (analysisEndTime - analysisStartTime + windowCount - 1) / windowCount;
+    if (stepMillis > 0) length = ((length + stepMillis - 1) / stepMillis) * stepMillis;
+    List<long[]> windows = new ArrayList<>();
+    for (long start = analysisStartTime; start < analysisEndTime; start += length) {
+      windows.add(new long[] { start, Math.min(start + length, analysisEndTime) });
+    }
+    return windows;
+  }
+
+  /**
+   * Classify a score as Kayenta does: Pass at or above the pass threshold, Fail below the marginal threshold and
+   * Marginal in between.
+   */
+  public static String classify(double score, CanaryClassifierThresholdsConfig thresholds) {
+    if (thresholds == null || thresholds.getPass() == null || thresholds.getMarginal() == null) return null;
+    if (score >= thresholds.getPass()) return "Pass";
+    if (score < thresholds.getMarginal()) return "Fail";
+    return "Marginal";
+  }
+
+  /**
+   * Run one execution per sub-window, at most <code>parallelism</code> at a time, and aggregate their scores.
+   * 
+   * @param adhocRequest the request for the whole analysis window; it is not modified.
+   * @param analysisStartTime
+   * @param analysisEndTime
+   * @return true when every sub-window produced a score, so that the aggregate score is known.
+   */
+  public boolean run(CanaryAdhocExecutionRequest adhocRequest, long analysisStartTime, long analysisEndTime) {
+
+    List<long[]> windows = split(analysisStartTime, analysisEndTime, windowCount, stepMillis(adhocRequest));
+
+    List<CanaryAdhocExecutionRequest> windowRequests = new ArrayList<>();
+    for (long[] times : windows) {
+      CanaryAdhocExecutionRequest windowRequest = copy(adhocRequest);
+      AdhocRequestBuilder.setAnalysisWindow(windowRequest, times[0], times[1]);
+      windowRequests.add(windowRequest);
+    }
+
+    KayentaClient client = 
+        KayentaClient.builder()
+        .mapper(mapper)
+        .kayentaURL(kayentaURL)
+        .metricsAccount(metricsAccount)
+        .storageAccount(storageAccount)
+        .pollingStrategy(pollingStrategy)
+        .timings(timings)
+        .build();
+    results.addAll(ConcurrentExecutions.run(client, windowRequests, parallelism, "window", 
+                                            (index, canaryExecutionId, status, error) -> result(index + 1, windows.get(index), canaryExecutionId, status, error)));
+
+    List<Double> scores = new ArrayList<>();
+    for (WindowResult result : results) {
+      if (result.getScore() == null) return false;
+      scores.add(result.getScore());
+    }
+    score = aggregation.aggregate(scores);
+    classification = classify(score, adhocRequest.getExecutionRequest().getThresholds());
+    return true;
+
+  }
+
+  WindowResult result(int window, long[] times, String canaryExecutionId, CanaryExecutionStatusResponse status, Throwable error) {
+
+    WindowResult result = new WindowResult();
+    result.setWindow(window);
+    result.setStart(Instant.ofEpochMilli(times[0]).toString());
+    result.setEnd(Instant.ofEpochMilli(times[1]).toString());
+    result.setCanaryExecutionId(canaryExecutionId);
+
+    if (error != null) {
+      log.debug("Window {} failed", window, error);
+      result.setError(error.getMessage());
+      return result;
+    }
+
+    result.setComplete(status.getComplete());
+    result.setStatus(status.getStatus());
+    CanaryResult canaryResult = status.getResult();
+    if (canaryResult != null && canaryResult.getJudgeResult() != null) {
+      CanaryJudgeScore judgeScore = canaryResult.getJudgeResult().getScore();
+      result.setScore(judgeScore.getScore());
+      result.setClassification(judgeScore.getClassification());
+    }
+    return result;
+
+  }
+
+  private CanaryAdhocExecutionRequest copy(CanaryAdhocExecutionRequest adhocRequest) {
+    try {
+      return mapper.readValue(mapper.writeValueAsBytes(adhocRequest), CanaryAdhocExecutionRequest.class);
+    } catch (Exception ex) {
+      throw new RuntimeException("Unable to copy the canary adhoc execution request, reason: "+ex.getMessage(), ex);
+    }
+  }
+
+  private static long stepMillis(CanaryAdhocExecutionRequest adhocRequest) {
+    for (CanaryScopePair scopePair : adhocRequest.getExecutionRequest().getScopes().values()) {
+      Long step = scopePair.getControlScope().getStep();
+      if (step != null) return step * 1000L;
+    }
+    return 0;
+  }
+
+  public List<WindowResult> getResults() {
+    return results;
+  }
+
+  public Double getScore() {
+    return score;
+  }
+
+  public String getClassification() {
+    return classification;
+  }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli.providers;
+
+import com.netflix.kayenta.canary.CanaryMetricSetQueryConfig;
+import com.netflix.kayenta.canary.providers.metrics.StackdriverCanaryMetricSetQueryConfig;
+import com.netflix.kayenta.cli.AdhocRequestConfig;
+import com.netflix.kayenta.cli.MetricQueryFactory;
+
+public class StackdriverMetricQueryFactory implements MetricQueryFactory {
+
+  @Override
+  public Class<? extends CanaryMetricSetQueryConfig> getQueryConfigType() {
+    return StackdriverCanaryMetricSetQueryConfig.class;
+  }
+
+  @Override
+  public CanaryMetricSetQueryConfig createQuery(String metricName, AdhocRequestConfig.MetricGroup metricGroup) {
+    return StackdriverCanaryMetricSetQueryConfig.builder()
+        .metricType(metricName)
+        .groupByFields(metricGroup.getGroupByFields())
+        .customFilter(metricGroup.getCustomFilter())
+        .customFilterTemplate(metricGroup.getCustomFilterTemplate())
+        .build();
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.netflix.kayenta.canary.CanaryClassifierConfig;
+import com.netflix.kayenta.canary.CanaryClassifierThresholdsConfig;
+import com.netflix.kayenta.canary.results.CanaryAnalysisResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeGroupScore;
+import com.netflix.kayenta.canary.results.CanaryJudgeResult;
+import com.netflix.kayenta.canary.results.CanaryJudgeScore;
+
+public class JudgeScoreCalculatorTest {
+
+  private static final double DELTA = 1e-9;
+
+  private static final CanaryClassifierThresholdsConfig THRESHOLDS =
+      CanaryClassifierThresholdsConfig.builder().marginal(50.0).pass(75.0).build();
+
+  /**
+   * The metric results of an unsharded execution, with the group and overall scores the judge gave them: with weights
+   * errors 60, latency 30 and saturation 10, errors scores 2/3 (the Nodata metric does not count), latency 100 and
+   * saturation (no data) 0, so 66.67 * 0.6 + 100 * 0.3 + 0 * 0.1 = 70.
+   */
+  private static CanaryJudgeResult unshardedResult() {
+    List<CanaryAnalysisResult> results = Arrays.asList(
+        metric("5xx", "errors", "Pass"),
+        metric("4xx", "errors", "High"),
+        metric("timeouts", "errors", "Pass"),
+        metric("retries", "errors", "Nodata"),
+        metric("p99", "latency", "Pass"),
+        metric("p50", "latency", "Pass"),
+        metric("cpu", "saturation", "Nodata"));
+    return CanaryJudgeResult.builder()
+        .judgeName("NetflixACAJudge-v1.0")
+        .results(results)
+        .groupScores(Arrays.asList(
+            CanaryJudgeGroupScore.builder().name("errors").score(200.0 / 3).build(),
+            CanaryJudgeGroupScore.builder().name("latency").score(100.0).build(),
+            CanaryJudgeGroupScore.builder().name("saturation").score(0.0).build()))
+        .score(CanaryJudgeScore.builder().score(70.0).classification("Marginal").build())
+        .build();
+  }
+
+  @Test
+  public void shardedResultsScoreAsTheUnshardedResult() {
+    CanaryJudgeResult unsharded = unshardedResult();
+    List<CanaryJudgeResult> shards = new ArrayList<>();
+    for (int from = 0; from < unsharded.getResults().size(); from += 3) {
+      shards.add(CanaryJudgeResult.builder()
+                 .judgeName(unsharded.getJudgeName())
+                 .results(new ArrayList<>(unsharded.getResults().subList(from, Math.min(from + 3, unsharded.getResults().size()))))
+                 .build());
+    }
+
+    CanaryJudgeResult combined = calculator(weights()).combine(shards);
+
+    assertEquals(unsharded.getResults(), combined.getResults());
+    assertEquals(unsharded.getGroupScores().size(), combined.getGroupScores().size());
+    for (int i = 0; i < unsharded.getGroupScores().size(); i++) {
+      assertEquals(unsharded.getGroupScores().get(i).getName(), combined.getGroupScores().get(i).getName());
+      assertEquals(unsharded.getGroupScores().get(i).getScore(), combined.getGroupScores().get(i).getScore(), DELTA);
+    }
+    assertEquals(unsharded.getScore().getScore(), combined.getScore().getScore(), DELTA);
+    assertEquals(unsharded.getScore().getClassification(), combined.getScore().getClassification());
+  }
+
+  @Test
+  public void groupWithoutWeightDoesNotCount() {
+    CanaryClassifierConfig classifier = CanaryClassifierConfig.builder().groupWeight("errors", 100.0).build();
+    CanaryJudgeResult judgeResult = CanaryJudgeResult.builder()
+        .results(Arrays.asList(metric("5xx", "errors", "Pass"), metric("p99", "latency", "High")))
+        .build();
+
+    CanaryJudgeResult combined = calculator(classifier).combine(Collections.singletonList(judgeResult));
+
+    assertEquals(100.0, combined.getScore().getScore(), DELTA);
+  }
+
+  @Test
+  public void groupsWeighTheSameWithoutWeights() {
+    CanaryJudgeResult judgeResult = CanaryJudgeResult.builder()
+        .results(Arrays.asList(metric("5xx", "errors", "Pass"), metric("p99", "latency", "High")))
+        .build();
+
+    CanaryJudgeResult combined = calculator(CanaryClassifierConfig.builder().build()).combine(Collections.singletonList(judgeResult));
+
+    assertEquals(50.0, combined.getScore().getScore(), DELTA);
+  }
+
+  @Test
+  public void requestThresholdsTakePrecedenceOverClassifierThresholds() {
+    // as in adhoc-request.json: the request's marginal threshold is 70, the classifier's 75
+    CanaryClassifierConfig classifier = CanaryClassifierConfig.builder()
+        .groupWeight("errors", 100.0)
+        .scoreThresholds(CanaryClassifierThresholdsConfig.builder().marginal(75.0).pass(95.0).build())
+        .build();
+    CanaryClassifierThresholdsConfig requestThresholds = CanaryClassifierThresholdsConfig.builder().marginal(70.0).pass(95.0).build();
+    List<CanaryAnalysisResult> results = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      results.add(metric("metric-" + i, "errors", i < 18 ? "Pass" : "High"));
+    }
+    CanaryJudgeResult judgeResult = CanaryJudgeResult.builder().results(results).build();
+
+    CanaryJudgeResult combined = new JudgeScoreCalculator(classifier, requestThresholds).combine(Collections.singletonList(judgeResult));
+
+    assertEquals(72.0, combined.getScore().getScore(), DELTA);
+    assertEquals("Marginal", combined.getScore().getClassification());
+  }
+
+  @Test
+  public void classifierThresholdsApplyWithoutRequestThresholds() {
+    CanaryClassifierConfig classifier = CanaryClassifierConfig.builder()
+        .groupWeight("errors", 100.0)
+        .scoreThresholds(CanaryClassifierThresholdsConfig.builder().marginal(75.0).pass(95.0).build())
+        .build();
+    CanaryJudgeResult judgeResult = CanaryJudgeResult.builder()
+        .results(Arrays.asList(metric("5xx", "errors", "Pass"), metric("4xx", "errors", "High")))
+        .build();
+
+    CanaryJudgeResult combined = new JudgeScoreCalculator(classifier, null).combine(Collections.singletonList(judgeResult));
+
+    assertEquals("Fail", combined.getScore().getClassification());
+  }
+
+  @Test
+  public void failedCriticalMetricFails() {
+    CanaryAnalysisResult critical = CanaryAnalysisResult.builder()
+        .name("5xx").classification("High").groups(Collections.singletonList("errors")).critical(true).build();
+    CanaryJudgeResult judgeResult = CanaryJudgeResult.builder()
+        .results(Arrays.asList(critical, metric("p99", "latency", "Pass")))
+        .build();
+
+    CanaryJudgeResult combined = calculator(weights()).combine(Collections.singletonList(judgeResult));
+
+    assertEquals(0.0, combined.getScore().getScore(), DELTA);
+    assertEquals("Fail", combined.getScore().getClassification());
+  }
+
+  private static CanaryClassifierConfig weights() {
+    return CanaryClassifierConfig.builder()
+        .groupWeight("errors", 60.0)
+        .groupWeight("latency", 30.0)
+        .groupWeight("saturation", 10.0)
+        .build();
+  }
+
+  private static JudgeScoreCalculator calculator(CanaryClassifierConfig classifier) {
+    return new JudgeScoreCalculator(classifier, THRESHOLDS);
+  }
+
+  private static CanaryAnalysisResult metric(String name, String group, String classification) {
+    return CanaryAnalysisResult.builder()
+        .name(name)
+        .classification(classification)
+        .groups(Collections.singletonList(group))
+        .build();
+  }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.kayenta.cli;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ScopeFanOutTest {
+
+  @Test
+  public void valueWithoutPatternIsKept() {
+    assertEquals(Collections.singletonList("canary.example.com"), ScopeFanOut.expandPattern("canary.example.com"));
+  }
+
+  @Test
+  public void rangeIsExpanded() {
+    assertEquals(Arrays.asList("canary-1", "canary-2", "canary-3"), ScopeFanOut.expandPattern("canary-{1..3}"));
+  }
+
+  @Test
+  public void descendingRangeIsExpanded() {
+    assertEquals(Arrays.asList("3", "2", "1"), ScopeFanOut.expandPattern("{3..1}"));
+  }
+
+  @Test
+  public void zeroPaddedRangeKeepsItsWidth() {
+    List<String> values = ScopeFanOut.expandPattern("canary-{08..11}.example.com");
+    assertEquals(Arrays.asList("canary-08.example.com", "canary-09.example.com", "canary-10.example.com", "canary-11.example.com"), values);
+  }
+
+  @Test
+  public void listIsExpanded() {
+    assertEquals(Arrays.asList("us-east-1", "us-west-2"), ScopeFanOut.expandPattern("{us-east-1,us-west-2}"));
+  }
+
+  @Test
+  public void patternsAreCombinedInOrder() {
+    assertEquals(Arrays.asList("a-1", "a-2", "b-1", "b-2"), ScopeFanOut.expandPattern("{a,b}-{1..2}"));
+  }
+
+  @Test
+  public void bracesHoldingNeitherAreKept() {
+    assertEquals(Arrays.asList("{app} 1", "{app} 2"), ScopeFanOut.expandPattern("{app} {1..2}"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rangeOverTheLimitIsRejected() {
+    ScopeFanOut.expandPattern("canary-{1..5000}");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void combinationOverTheLimitIsRejected() {
+    ScopeFanOut.expandPattern("{1..100}-{1..100}");
+  }
+
+  @Test
+  public void extendedScopeParamsAreNotExpanded() {
+    Map<String, String> params = new HashMap<>();
+    params.put("filter", "{app=\"checkout\",stack=\"a\"}");
+    AdhocRequestConfig config = config(params, null, params, null);
+
+    List<ScopeFanOut.ExpandedScope> scopes = fanOut().expand(config);
+
+    assertEquals(1, scopes.size());
+    assertEquals("{app=\"checkout\",stack=\"a\"}", scopes.get(0).getConfig().getExperimentScope().getExtendedScopeParams().get("filter"));
+  }
+
+  @Test
+  public void listedValuesArePairedUpByPosition() {
+    Map<String, List<String>> controlValues = new LinkedHashMap<>();
+    controlValues.put("host", Collections.singletonList("baseline-{1..2}"));
+    Map<String, List<String>> experimentValues = new LinkedHashMap<>();
+    experimentValues.put("host", Collections.singletonList("canary-{1..2}"));
+    AdhocRequestConfig config = config(null, controlValues, null, experimentValues);
+
+    List<ScopeFanOut.ExpandedScope> scopes = fanOut().expand(config);
+
+    assertEquals(2, scopes.size());
+    assertEquals("host=canary-2", scopes.get(1).getLabel());
+    assertEquals("baseline-2", scopes.get(1).getConfig().getControlScope().getExtendedScopeParams().get("host"));
+    assertEquals("canary-2", scopes.get(1).getConfig().getExperimentScope().getExtendedScopeParams().get("host"));
+  }
+
+  @Test
+  public void listedValuesAreCombined() {
+    Map<String, List<String>> experimentValues = new LinkedHashMap<>();
+    experimentValues.put("host", Arrays.asList("canary-1", "canary-2"));
+    experimentValues.put("region", Collections.singletonList("{us-east-1,us-west-2}"));
+    AdhocRequestConfig config = config(null, null, null, experimentValues);
+
+    List<ScopeFanOut.ExpandedScope> scopes = fanOut().expand(config);
+
+    assertEquals(4, scopes.size());
+    assertEquals("host=canary-1,region=us-west-2", scopes.get(1).getLabel());
+  }
+
+  private static ScopeFanOut fanOut() {
+    return new ScopeFanOut(Client.createObjectMapper(), WindowedAnalysis.Aggregation.WORST, 1, "http://localhost:8090/canary", null, null);
+  }
+
+  private static AdhocRequestConfig config(Map<String, String> controlParams, Map<String, List<String>> controlValues,
+                                           Map<String, String> experimentParams, Map<String, List<String>> experimentValues) {
+    AdhocRequestConfig.ClientCanaryScope controlScope = new AdhocRequestConfig.ClientCanaryScope();
+    controlScope.setLocation("us-east-1");
+    controlScope.setExtendedScopeParams(controlParams);
+    controlScope.setExtendedScopeParamValues(controlValues);
+    AdhocRequestConfig.ClientCanaryScope experimentScope = new AdhocRequestConfig.ClientCanaryScope();
+    experimentScope.setLocation("us-east-1");
+    experimentScope.setExtendedScopeParams(experimentParams);
+    experimentScope.setExtendedScopeParamValues(experimentValues);
+    AdhocRequestConfig config = new AdhocRequestConfig();
+    config.setScopeName("default");
+    config.setControlScope(controlScope);
+    config.setExperimentScope(experimentScope);
+    return config;
+  }
+
+}